@@ -0,0 +1,64 @@
+// Benchmark harness for generated C code. Each benchmark program defines
+// a Whiley function bench(i32) -> i32, which is invoked repeatedly here.
+// The average time per invocation is printed in nanoseconds, along with
+// the result (to prevent the call being optimised away).
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+#include <whiley.h>
+
+#ifndef ITERATIONS
+#define ITERATIONS 10000
+#endif
+
+#ifndef ARENA_SIZE
+#define ARENA_SIZE (1024 * 1024)
+#endif
+
+extern int32_t bench(int32_t seed);
+
+// Allocations are aligned for the elements of arrays (see WY_ARRAY_ALIGN)
+#if defined(WY_ARRAY_ALIGN) && WY_ARRAY_ALIGN > 8
+#define ALIGNMENT WY_ARRAY_ALIGN
+#else
+#define ALIGNMENT 8
+#endif
+
+// Simple arena allocator, which is reset before each invocation.
+static uint8_t arena[ARENA_SIZE] __attribute__((aligned(ALIGNMENT)));
+static size_t arena_used;
+
+void *wy_alloc(size_t size) {
+	size = (size + (ALIGNMENT - 1)) & ~((size_t) (ALIGNMENT - 1));
+	if(arena_used + size > ARENA_SIZE) {
+		fprintf(stderr, "arena exhausted\n");
+		exit(1);
+	}
+	void *p = &arena[arena_used];
+	arena_used += size;
+	return p;
+}
+
+// Storage is reclaimed by resetting the arena, rather than individually.
+void wy_free(void *p) {
+	(void) p;
+}
+
+static uint64_t now(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ((uint64_t) ts.tv_sec * 1000000000u) + (uint64_t) ts.tv_nsec;
+}
+
+int main(void) {
+	volatile int32_t result = 0;
+	uint64_t start = now();
+	for(int32_t i=0;i!=ITERATIONS;++i) {
+		arena_used = 0;
+		result += bench(i);
+	}
+	uint64_t elapsed = now() - start;
+	printf("%llu %ld\n", (unsigned long long) (elapsed / ITERATIONS), (long) result);
+	return 0;
+}
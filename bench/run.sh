@@ -0,0 +1,137 @@
+#!/bin/sh
+# Execution benchmarks for generated C code.
+#
+# Each program in bench/programs is compiled to WyIL with the Whiley
+# compiler, translated to C with WyEC, built with the local gcc at fixed
+# flags, and then executed. For each program, the time per invocation,
+# the .text and .data sizes, and the maximum stack usage are recorded.
+# These are compared against bench/baseline.tsv, and any regression
+# beyond the tolerances recorded there for that program causes a non-zero
+# exit status. Every program must build and run successfully, and must
+# have a measured entry in the baseline.
+#
+# usage: bench/run.sh [--update]
+#
+#   --update    Overwrite the baseline with the results of this run,
+#               provided every program succeeded. The tolerances of
+#               existing entries are kept.
+#
+# Environment:
+#   WYC               Command for compiling Whiley to WyIL (default: wyc)
+#   WYEC              Command for running WyEC (default: uses target/classes)
+#   WYEC_CLASSPATH    Classpath of WyEC's dependencies (e.g. wycc, wyc)
+#   WYEC_FLAGS        Additional options for WyEC (e.g. --packed-bools or
+#                     --align 16)
+#   CC                C compiler (default: gcc)
+#   TIME_TOLERANCE    Permitted slowdown in percent, for programs new to the
+#                     baseline (default: 10)
+#   SIZE_TOLERANCE    Permitted growth of code, data and stack in percent,
+#                     for programs new to the baseline (default: 2)
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BENCH="$ROOT/bench"
+OUT="$ROOT/target/bench"
+BASELINE="$BENCH/baseline.tsv"
+RESULTS="$OUT/results.tsv"
+# NOTE: the arguments are read here, since set is used below
+UPDATE=${1:-}
+
+CC=${CC:-gcc}
+CFLAGS="-O2 -std=gnu11 -fstack-usage -I$ROOT/include"
+# The alignment of arrays must agree across translation units, including
+# the harness (see WY_ARRAY_ALIGN in whiley.h)
+ALIGN=$(echo " ${WYEC_FLAGS:-} " | sed -n 's/.* --align \([0-9]*\) .*/\1/p')
+if [ -n "$ALIGN" ] && [ "$ALIGN" != 0 ]; then
+    CFLAGS="$CFLAGS -DWY_ARRAY_ALIGN=$ALIGN"
+fi
+WYC=${WYC:-wyc}
+WYEC=${WYEC:-"java -cp $ROOT/target/classes:${WYEC_CLASSPATH:-} wyec.WyEC"}
+TIME_TOLERANCE=${TIME_TOLERANCE:-10}
+SIZE_TOLERANCE=${SIZE_TOLERANCE:-2}
+
+mkdir -p "$OUT"
+printf "name\ttime_ns\ttext\tdata\tstack\tstatus\n" > "$RESULTS"
+
+for src in "$BENCH"/programs/*.whiley; do
+    name=$(basename "$src" .whiley)
+    dir="$OUT/$name"
+    mkdir -p "$dir"
+    cp "$src" "$dir/"
+    status=ok
+    time_ns=-; text=-; data=-; stack=-
+    if ! (cd "$dir" && $WYC "$name.whiley" > wyc.log 2>&1); then
+        status=wyc-failed
+    elif ! (cd "$dir" && $WYEC ${WYEC_FLAGS:-} "$name.wyil" > "$name.c" 2> wyec.log); then
+        status=wyec-failed
+    elif ! (cd "$dir" && $CC $CFLAGS -c "$name.c" -o "$name.o" > cc.log 2>&1 \
+            && $CC $CFLAGS "$BENCH/harness.c" "$name.o" -o "$name" >> cc.log 2>&1); then
+        status=cc-failed
+    else
+        # Sizes are for the generated code only, not the harness
+        set -- $(size "$dir/$name.o" | tail -n 1)
+        text=$1; data=$2
+        stack=$(cut -f 2 "$dir/$name.su" | sort -n | tail -n 1)
+        if output=$("$dir/$name"); then
+            time_ns=${output%% *}
+        else
+            status=run-failed
+        fi
+    fi
+    printf "%s\t%s\t%s\t%s\t%s\t%s\n" "$name" "$time_ns" "$text" "$data" "$stack" "$status" >> "$RESULTS"
+done
+
+cat "$RESULTS"
+
+if [ "$UPDATE" = "--update" ]; then
+    if cut -f 6 "$RESULTS" | tail -n +2 | grep -qv '^ok$'; then
+        echo "baseline not updated, since some programs failed"
+        exit 1
+    fi
+    # Append the tolerances for each program, keeping those already in
+    # the baseline
+    touch "$BASELINE"
+    awk -F '\t' -v OFS='\t' -v tt="$TIME_TOLERANCE" -v st="$SIZE_TOLERANCE" -v base="$BASELINE" '
+        FILENAME == base { if (FNR > 1 && $7 != "") { tol[$1] = $7 OFS $8 } next }
+        FNR == 1 { print $0, "time_tol", "size_tol"; next }
+        { print $0, ($1 in tol) ? tol[$1] : tt OFS st }
+    ' "$BASELINE" "$RESULTS" > "$OUT/baseline.tsv" && mv "$OUT/baseline.tsv" "$BASELINE"
+    echo "baseline updated"
+    exit 0
+elif [ ! -f "$BASELINE" ]; then
+    echo "no baseline found (run with --update to create one)"
+    exit 1
+fi
+
+# Compare against the baseline. Any program which fails to build or run
+# (including cc-failed) is a regression, as is any program missing from
+# either the baseline or the results. A metric regresses when it exceeds
+# its baseline value by more than the tolerance (in percent) recorded for
+# that program. A metric which has not been measured (i.e. is "-") in the
+# baseline is also a failure, since it could not otherwise be compared.
+awk -F '\t' '
+    function worse(now, then, tol) {
+        return now != "-" && now > then * (1 + tol / 100);
+    }
+    NR == FNR { if (FNR > 1) { base[$1] = $0 } next }
+    FNR > 1 {
+        seen[$1] = 1;
+        if ($6 != "ok") { print $1 ": " $6; failed = 1 }
+        if (!($1 in base)) { print $1 ": no baseline entry"; failed = 1; next }
+        split(base[$1], b, "\t");
+        if (b[2] == "-" || b[3] == "-" || b[4] == "-" || b[5] == "-" || b[7] == "" || b[8] == "") {
+            print $1 ": baseline not measured (run with --update)"; failed = 1; next
+        }
+        tt = b[7]; st = b[8];
+        if (worse($2, b[2], tt)) { print $1 ": time " b[2] " -> " $2 "ns"; failed = 1 }
+        if (worse($3, b[3], st)) { print $1 ": text " b[3] " -> " $3; failed = 1 }
+        if (worse($4, b[4], st)) { print $1 ": data " b[4] " -> " $4; failed = 1 }
+        if (worse($5, b[5], st)) { print $1 ": stack " b[5] " -> " $5; failed = 1 }
+    }
+    END {
+        for (name in base) {
+            if (!(name in seen)) { print name ": missing from results"; failed = 1 }
+        }
+        exit failed
+    }
+' "$BASELINE" "$RESULTS" || { echo "benchmark regressions detected"; exit 1; }
+echo "no regressions"
@@ -1,13 +1,259 @@
 #ifndef WHILEY_H
 #define WHILEY_H
 
+// The host profiling backend requires clock_gettime(), which must be
+// enabled before any system header is included.
+#if defined(WY_PROFILE_HOST) && !defined(_POSIX_C_SOURCE)
+#define _POSIX_C_SOURCE 199309L
+#endif
+
 #include <stddef.h>
 #include <stdint.h>
 #include <stdbool.h>
+#include <string.h>
+
+// ============================================================
+// Attributes
+// ============================================================
+// Whiley functions are pure, and this allows the C compiler to eliminate
+// repeated calls. Functions which read only their (scalar) arguments are
+// additionally const.
+#if defined(__GNUC__)
+#define WY_PURE __attribute__((pure))
+#define WY_CONST __attribute__((const))
+#else
+#define WY_PURE
+#define WY_CONST
+#endif
+
+// ============================================================
+// Instrumentation
+// ============================================================
+// Hooks written around each function (and, optionally, each loop) when
+// instrumentation is enabled in the compiler. The identifiers passed to
+// these are numbered from zero in each module, and WY_PROF_MODULE is
+// written once per module with the corresponding names. By default these
+// expand to nothing. A backend can be provided by defining them before
+// including this file, or by defining WY_PROFILE_HOST to use the host
+// backend.
+#if defined(WY_PROFILE_HOST)
+#include "whiley_prof_host.h"
+#endif
+
+#ifndef WY_FUNC_ENTER
+#define WY_FUNC_ENTER(id)
+#endif
+#ifndef WY_FUNC_EXIT
+#define WY_FUNC_EXIT(id)
+#endif
+#ifndef WY_LOOP_ENTER
+#define WY_LOOP_ENTER(id)
+#endif
+#ifndef WY_LOOP_EXIT
+#define WY_LOOP_EXIT(id)
+#endif
+#ifndef WY_PROF_MODULE
+#define WY_PROF_MODULE(names, n)
+#endif
+
+// ============================================================
+// Contract Checks
+// ============================================================
+// Checks written for assertions, assumptions, preconditions and
+// postconditions, depending on the check mode selected in the compiler.
+// WY_CHECK_TRAP halts immediately on failure. WY_CHECK instead reports the
+// failure to wy_check_failed(), which must be provided by the application,
+// along with the name of the module and a code identifying the check
+// within it. Codes are only unique within a module, and each generated
+// source file defines WY_CHECK_MODULE as the name of its module.
+// wy_check_failed() must not return (e.g. it resets the device), and is
+// declared noreturn: generated code does not release storage or return a
+// value after a failed check, since control cannot continue past one.
+#if defined(__GNUC__)
+#define WY_TRAP() __builtin_trap()
+#define WY_UNLIKELY(c) __builtin_expect(!!(c), 0)
+#define WY_NORETURN __attribute__((noreturn))
+#else
+#include <stdlib.h>
+#define WY_TRAP() abort()
+#define WY_UNLIKELY(c) (c)
+#define WY_NORETURN _Noreturn
+#endif
+
+extern WY_NORETURN void wy_check_failed(const char *module, uint16_t code);
+
+#define WY_CHECK(c, module, code) do { if (WY_UNLIKELY(!(c))) { wy_check_failed((module), (code)); } } while (0)
+#define WY_CHECK_TRAP(c) do { if (WY_UNLIKELY(!(c))) { WY_TRAP(); } } while (0)
 
 // ============================================================
 // Array Operations
 // ============================================================
+// Defining WY_ARRAY_ALIGN aligns the elements of every array to the
+// given number of bytes, which assists vectorisation. This changes the
+// layout of arrays and, hence, must be the same for every translation unit
+// (e.g. given with -D for the whole build). Generated code defines it as
+// required before including this header, and fails to compile if
+// WY_ARRAY_ALIGNMENT (the alignment actually in effect, or zero) differs.
+// Allocations by wy_alloc() must then be aligned to at least this.
+#if defined(WY_ARRAY_ALIGN)
+#define WY_ARRAY_ALIGNMENT WY_ARRAY_ALIGN
+#define arr_t(T) struct {size_t len; T data[] __attribute__((aligned(WY_ARRAY_ALIGN)));}
+#else
+#define WY_ARRAY_ALIGNMENT 0
 #define arr_t(T) struct {size_t len; T data[];}
+#endif
+
+// Array parameters are passed by pointer to const, and those which are
+// modified are copied into a local on entry to preserve value semantics.
+// The copy is released with wy_free() on every exit from the function.
+// Likewise, an array assigned from another variable is copied.
+#define arr_copy(T,a) ((T *) wy_copy((a), sizeof(T) + (a)->len * sizeof((a)->data[0])))
+
+// ============================================================
+// Memory Allocation
+// ============================================================
+// Allocator used for storage which cannot be placed on the stack. This
+// must be provided by the target (e.g. as a simple arena allocator).
+// Generated code releases all storage it allocates with wy_free() on exit
+// from the scope owning it, so no storage is leaked. An arena allocator may
+// instead implement
+// wy_free() as a no-op, provided the application resets the arena. In
+// either case, wy_free(NULL) must have no effect.
+extern void *wy_alloc(size_t size);
+extern void wy_free(void *p);
+
+static inline void *wy_copy(const void *p, size_t size) {
+	void *q = wy_alloc(size);
+	memcpy(q, p, size);
+	return q;
+}
+
+// ============================================================
+// Array Values
+// ============================================================
+// Local arrays are held by pointer, and are allocated by a generator
+// (arr_new), an initialiser (arr_of) or a copy (arr_copy). Their storage is
+// owned by the scope declaring them and is released with wy_free() on
+// every exit from that scope, except when the array is returned. A
+// function returning an array transfers ownership of it to the caller.
+// The final argument points to the fill value for arr_new, and to n
+// elements for arr_of. It is variadic, since it is typically a compound
+// literal containing commas.
+#define arr_width(T) sizeof(((T *) 0)->data[0])
+#define arr_new(T,n,...) ((T *) arr_fill_(arr_alloc_(sizeof(T), arr_width(T), (n)), offsetof(T, data), arr_width(T), (__VA_ARGS__)))
+#define arr_of(T,n,...) ((T *) arr_init_(arr_alloc_(sizeof(T), arr_width(T), (n)), offsetof(T, data), arr_width(T), (__VA_ARGS__)))
+
+static inline void *arr_alloc_(size_t size, size_t width, size_t n) {
+	void *a = wy_alloc(size + n * width);
+	*(size_t *) a = n;
+	return a;
+}
+
+static inline void *arr_fill_(void *a, size_t offset, size_t width, const void *v) {
+	uint8_t *data = (uint8_t *) a + offset;
+	for(size_t i=0;i!=*(size_t *) a;++i) {
+		memcpy(data + (i * width), v, width);
+	}
+	return a;
+}
+
+static inline void *arr_init_(void *a, size_t offset, size_t width, const void *v) {
+	// NOTE: v is NULL for an empty array
+	if(v != NULL) {
+		memcpy((uint8_t *) a + offset, v, *(size_t *) a * width);
+	}
+	return a;
+}
+
+// ============================================================
+// Structure of Arrays Operations
+// ============================================================
+// Arrays of records may be stored with one array per field, as in
+// struct {size_t len; T1 *f1; T2 *f2;}. The storage for each field is owned
+// by the scope declaring the array, and is released with soa_free() on
+// every exit from that scope. The fill value is evaluated exactly once.
+#define soa_alloc(T,n) ((T *) wy_alloc((n) * sizeof(T)))
+#define soa_free(p) wy_free(p)
+#define soa_fill(T,p,n,v) do { T _soa_v = (v); for(size_t _i=0;_i!=(n);++_i) { (p)[_i] = _soa_v; } } while(0)
+
+// ============================================================
+// Bit Array Operations
+// ============================================================
+// Packed representation for bool[], storing one element per bit
+// rather than one per byte.
+typedef uint32_t bitword_t;
+
+#define BITWORD_BITS 32
+#define BITWORDS(n) (((n) + BITWORD_BITS - 1) / BITWORD_BITS)
+
+typedef struct {size_t len; bitword_t data[];} bitarr_t;
+
+#define bitarr_len(a) ((a).len)
+#define bitarr_get(a,i) ((bool) (((a).data[(i) / BITWORD_BITS] >> ((i) % BITWORD_BITS)) & 1u))
+#define bitarr_set(a,i,v) bitwords_set((a).data, (i), (v))
+#define bitarr_copy(a) ((bitarr_t *) wy_copy((a), sizeof(bitarr_t) + BITWORDS((a)->len) * sizeof(bitword_t)))
+#define bitarr_all(a) bitwords_all((a).data, (a).len)
+#define bitarr_any(a) bitwords_any((a).data, (a).len)
+
+static inline void bitwords_set(bitword_t *data, size_t i, bool v) {
+	bitword_t mask = ((bitword_t) 1) << (i % BITWORD_BITS);
+	if(v) {
+		data[i / BITWORD_BITS] |= mask;
+	} else {
+		data[i / BITWORD_BITS] &= ~mask;
+	}
+}
+
+static inline void bitwords_fill(bitword_t *data, size_t n, bool v) {
+	bitword_t w = v ? ~((bitword_t) 0) : 0;
+	for(size_t i=0;i!=BITWORDS(n);++i) {
+		data[i] = w;
+	}
+}
+
+// Mask selecting the valid bits of the last word for an array of n bits.
+static inline bitword_t bitwords_tail(size_t n) {
+	size_t r = n % BITWORD_BITS;
+	return r == 0 ? ~((bitword_t) 0) : ((((bitword_t) 1) << r) - 1);
+}
+
+// Allocate a packed array of n elements, each initialised to v. Since
+// bitarr_t has no storage of its own, local packed arrays are always held
+// by pointer.
+static inline bitarr_t *bitarr_new(size_t n, bool v) {
+	bitarr_t *a = (bitarr_t *) wy_alloc(sizeof(bitarr_t) + BITWORDS(n) * sizeof(bitword_t));
+	a->len = n;
+	bitwords_fill(a->data, n, v);
+	return a;
+}
+
+// Allocate a packed array holding the n elements given.
+static inline bitarr_t *bitarr_of(size_t n, const bool *v) {
+	bitarr_t *a = bitarr_new(n, false);
+	for(size_t i=0;i!=n;++i) {
+		bitwords_set(a->data, i, v[i]);
+	}
+	return a;
+}
+
+static inline bool bitwords_all(const bitword_t *data, size_t n) {
+	size_t full = n / BITWORD_BITS;
+	for(size_t i=0;i!=full;++i) {
+		if(data[i] != ~((bitword_t) 0)) {
+			return false;
+		}
+	}
+	return (n % BITWORD_BITS) == 0 || (data[full] & bitwords_tail(n)) == bitwords_tail(n);
+}
+
+static inline bool bitwords_any(const bitword_t *data, size_t n) {
+	size_t full = n / BITWORD_BITS;
+	for(size_t i=0;i!=full;++i) {
+		if(data[i] != 0) {
+			return true;
+		}
+	}
+	return (n % BITWORD_BITS) != 0 && (data[full] & bitwords_tail(n)) != 0;
+}
 
 #endif
@@ -0,0 +1,111 @@
+#ifndef WHILEY_PROF_HOST_H
+#define WHILEY_PROF_HOST_H
+
+// ============================================================
+// Host Profiling Backend
+// ============================================================
+// Implements the instrumentation macros from whiley.h using
+// clock_gettime(), accumulating into a fixed-size table of counters
+// indexed by function (or loop) identifier. Updates are lock-free, so
+// this can be used from multiple threads. Enable by compiling with
+// -DWY_PROFILE_HOST.
+//
+// The table is shared by every translation unit, and is defined in
+// exactly one of them (e.g. that containing main()) by defining
+// WY_PROF_IMPLEMENTATION before including whiley.h. On startup, each
+// generated module registers the names of its functions and loops, and
+// is allocated the next range of entries in the table. The identifiers
+// written by the compiler are relative to the start of this range and,
+// hence, every function and loop in the program has its own entry. The
+// whole profile is then written by wy_prof_dump().
+
+#include <stdio.h>
+#include <stdatomic.h>
+#include <time.h>
+
+#define WY_PROFILE 1
+
+#ifndef WY_PROF_MAX
+#define WY_PROF_MAX 1024
+#endif
+
+typedef struct {
+	atomic_uint_least64_t calls;
+	atomic_uint_least64_t nanos;
+} wy_prof_counter_t;
+
+extern wy_prof_counter_t wy_prof_table[WY_PROF_MAX];
+
+// Register the names of a module's functions and loops, returning the
+// identifier of the first.
+extern size_t wy_prof_register(const char *const names[], size_t n);
+
+// Write the counters of every registered function and loop.
+extern void wy_prof_dump(FILE *out);
+
+// The first identifier of the module in this translation unit.
+static size_t wy_prof_base __attribute__((unused));
+
+static inline uint64_t wy_prof_now(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ((uint64_t) ts.tv_sec * 1000000000u) + (uint64_t) ts.tv_nsec;
+}
+
+static inline void wy_prof_record(size_t id, uint64_t start) {
+	uint64_t elapsed = wy_prof_now() - start;
+	if(id < WY_PROF_MAX) {
+		atomic_fetch_add_explicit(&wy_prof_table[id].calls, 1, memory_order_relaxed);
+		atomic_fetch_add_explicit(&wy_prof_table[id].nanos, elapsed, memory_order_relaxed);
+	}
+}
+
+#ifdef WY_PROF_IMPLEMENTATION
+wy_prof_counter_t wy_prof_table[WY_PROF_MAX];
+static const char *wy_prof_names[WY_PROF_MAX];
+static size_t wy_prof_count;
+
+// NOTE: modules are registered by constructors, which run one at a time
+// before main().
+size_t wy_prof_register(const char *const names[], size_t n) {
+	size_t base = wy_prof_count;
+	for(size_t i=0;i!=n;++i) {
+		if(base + i < WY_PROF_MAX) {
+			wy_prof_names[base + i] = names[i];
+		}
+	}
+	wy_prof_count += n;
+	return base;
+}
+
+// Write the table of counters, mapping each identifier back to its
+// Whiley name using the names registered by each module.
+void wy_prof_dump(FILE *out) {
+	fprintf(out, "%-32s %12s %16s\n", "name", "calls", "nanos");
+	for(size_t i=0;i!=wy_prof_count && i!=WY_PROF_MAX;++i) {
+		uint64_t calls = atomic_load_explicit(&wy_prof_table[i].calls, memory_order_relaxed);
+		uint64_t nanos = atomic_load_explicit(&wy_prof_table[i].nanos, memory_order_relaxed);
+		if(calls != 0) {
+			fprintf(out, "%-32s %12llu %16llu\n", wy_prof_names[i], (unsigned long long) calls, (unsigned long long) nanos);
+		}
+	}
+}
+#endif
+
+// The enter macros declare the variable holding the start time. Hence, the
+// compiler writes WY_FUNC_ENTER at the start of each function body, and
+// encloses each loop (from WY_LOOP_ENTER to WY_LOOP_EXIT) in its own block.
+// Any return within a loop is preceded by WY_LOOP_EXIT for every enclosing
+// loop.
+#define WY_FUNC_ENTER(id) uint64_t _wy_prof_start = wy_prof_now()
+#define WY_FUNC_EXIT(id) wy_prof_record(wy_prof_base + (id), _wy_prof_start)
+#define WY_LOOP_ENTER(id) uint64_t _wy_prof_loop##id = wy_prof_now()
+#define WY_LOOP_EXIT(id) wy_prof_record(wy_prof_base + (id), _wy_prof_loop##id)
+
+// Written once by the compiler in each module, after the table of names.
+#define WY_PROF_MODULE(names, n) \
+	__attribute__((constructor)) static void wy_prof_register_module(void) { \
+		wy_prof_base = wy_prof_register((names), (n)); \
+	}
+
+#endif
@@ -0,0 +1,290 @@
+package wyec;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import wyil.lang.WyilFile;
+
+/**
+ * <p>
+ * A long-running compiler process which accepts compile requests, thus
+ * avoiding the cost of JVM startup and class loading for every module. This
+ * also means the compiler itself remains JIT-compiled between requests, and
+ * previously decoded modules can be reused.
+ * </p>
+ *
+ * <p>
+ * The server either reads requests from <code>stdin</code> (writing responses
+ * to <code>stdout</code>), or listens on a port bound to the loopback
+ * interface. A request is a single line of tab-separated fields, where the
+ * first field is the client's working directory and the remainder are the
+ * command-line arguments. Within each field, backslashes, tabs and newlines
+ * are escaped (see {@link WyECClient#escape(String)}). A response has the
+ * form:
+ * </p>
+ *
+ * <pre>
+ * status stdout-length stderr-length
+ * stdout-bytes stderr-bytes
+ * </pre>
+ *
+ * <p>
+ * When listening on a port, each connection carries exactly one request.
+ * Since any local user can connect to the loopback interface, the request is
+ * preceded by an additional field holding a secret token. This is generated
+ * afresh by the server and written to a file readable only by the user
+ * running it (see {@link WyECClient#getTokenFile(int)}). Requests without the
+ * correct token are rejected.
+ * </p>
+ *
+ * @see WyECClient
+ * @author David J. Pearce
+ *
+ */
+public class CompileServer {
+	/**
+	 * Default port on which the server listens.
+	 */
+	public static final int DEFAULT_PORT = 7427;
+
+	private final ModuleCache cache;
+
+	public CompileServer(int cacheSize) {
+		this.cache = new ModuleCache(cacheSize);
+	}
+
+	public static void main(String[] args) {
+		int port = -1;
+		int cacheSize = 32;
+		for (int i = 0; i != args.length; ++i) {
+			if (args[i].equals("--listen") && (i + 1) < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--cache") && (i + 1) < args.length) {
+				cacheSize = Integer.parseInt(args[++i]);
+			}
+		}
+		CompileServer server = new CompileServer(cacheSize);
+		try {
+			if (port < 0) {
+				server.serve(System.in, System.out);
+			} else {
+				server.listen(port);
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Serve requests from a given input stream until it is closed.
+	 *
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	public void serve(InputStream input, OutputStream output) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!line.isEmpty()) {
+				respond(line, output);
+			}
+		}
+	}
+
+	/**
+	 * Listen for connections on a given port of the loopback interface,
+	 * handling each connection as a single request. Only requests carrying
+	 * the token written to the token file are accepted.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public void listen(int port) throws IOException {
+		ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		final byte[] token = writeToken(WyECClient.getTokenFile(port)).getBytes("UTF-8");
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			while (true) {
+				final Socket client = socket.accept();
+				executor.submit(new Runnable() {
+					public void run() {
+						try {
+							BufferedReader reader = new BufferedReader(
+									new InputStreamReader(client.getInputStream(), "UTF-8"));
+							String line = reader.readLine();
+							if (line == null) {
+								return;
+							}
+							int split = line.indexOf('\t');
+							String given = split < 0 ? line : line.substring(0, split);
+							if (MessageDigest.isEqual(token, given.getBytes("UTF-8"))) {
+								respond(line.substring(split + 1), client.getOutputStream());
+							} else {
+								reject(client.getOutputStream());
+							}
+						} catch (IOException e) {
+							System.err.println(e.getMessage());
+						} finally {
+							try {
+								client.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			socket.close();
+		}
+	}
+
+	/**
+	 * Generate a fresh token, and write it to a given file which is readable
+	 * only by the current user. The file is removed when the server exits.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static String writeToken(File file) throws IOException {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b & 0xFF));
+		}
+		file.getParentFile().mkdirs();
+		Files.deleteIfExists(file.toPath());
+		try {
+			Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system, so restrict access as far as possible
+			Files.createFile(file.toPath());
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(file.toPath(), token.toString().getBytes("UTF-8"));
+		file.deleteOnExit();
+		return token.toString();
+	}
+
+	/**
+	 * Write the response to a request which did not carry the correct token.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	private static void reject(OutputStream output) throws IOException {
+		byte[] message = "unauthorised request\n".getBytes("UTF-8");
+		output.write(("2 0 " + message.length + "\n").getBytes("UTF-8"));
+		output.write(message);
+		output.flush();
+	}
+
+	/**
+	 * Process a single request, writing the response to a given stream.
+	 *
+	 * @param request
+	 * @param output
+	 * @throws IOException
+	 */
+	private void respond(String request, OutputStream output) throws IOException {
+		String[] fields = request.split("\t", -1);
+		for (int i = 0; i != fields.length; ++i) {
+			fields[i] = WyECClient.unescape(fields[i]);
+		}
+		File dir = new File(fields[0]);
+		String[] args = Arrays.copyOfRange(fields, 1, fields.length);
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		int status;
+		try {
+			status = WyEC.compile(dir, args, new PrintStream(stdout, true, "UTF-8"),
+					new PrintStream(stderr, true, "UTF-8"), cache);
+		} catch (Throwable e) {
+			// Internal failures (including errors such as stack overflow)
+			// must not bring down the server, and the client must still
+			// receive a well-formed response.
+			new PrintStream(stderr, true, "UTF-8").println("internal failure: " + e);
+			status = 2;
+		}
+		synchronized (output) {
+			String header = status + " " + stdout.size() + " " + stderr.size() + "\n";
+			output.write(header.getBytes("UTF-8"));
+			stdout.writeTo(output);
+			stderr.writeTo(output);
+			output.flush();
+		}
+	}
+
+	/**
+	 * A least-recently-used cache of decoded modules. A cached module is
+	 * only reused if the underlying file has not changed since it was
+	 * decoded, as determined by its size and modification time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class ModuleCache {
+		private final LinkedHashMap<File, Entry> entries;
+
+		public ModuleCache(final int capacity) {
+			this.entries = new LinkedHashMap<File, Entry>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<File, Entry> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		/**
+		 * Get the decoded module for a given file, decoding it if it is not
+		 * cached or has changed.
+		 *
+		 * @param dir
+		 * @param file
+		 * @return
+		 * @throws IOException
+		 */
+		public WyilFile get(File dir, String file) throws IOException {
+			File f = new File(dir, file).getCanonicalFile();
+			long modified = f.lastModified();
+			long length = f.length();
+			synchronized (entries) {
+				Entry e = entries.get(f);
+				if (e != null && e.modified == modified && e.length == length) {
+					return e.module;
+				}
+			}
+			WyilFile module = WyEC.read(dir, file);
+			synchronized (entries) {
+				entries.put(f, new Entry(modified, length, module));
+			}
+			return module;
+		}
+
+		private static class Entry {
+			private final long modified;
+			private final long length;
+			private final WyilFile module;
+
+			public Entry(long modified, long length, WyilFile module) {
+				this.modified = modified;
+				this.length = length;
+				this.module = module;
+			}
+		}
+	}
+}
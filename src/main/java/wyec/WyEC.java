@@ -1,9 +1,26 @@
 package wyec;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
 
 import wyc.lang.WhileyFile;
 import wyec.io.EmbeddedCFilePrinter;
+import wyec.io.SourceMap;
+import wyec.util.CallGraph;
+import wyec.util.CompilerMetrics;
+import wyec.util.CostTable;
+import wyec.util.RangeSummaries;
+import wyec.util.WorstCaseExecutionTime;
 import wyfs.lang.Content;
 import wyfs.lang.Content.Type;
 import wyfs.lang.Path;
@@ -13,6 +30,7 @@ import wyfs.util.Trie;
 import wyfs.util.VirtualRoot;
 import wyil.io.WyilFileReader;
 import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.FunctionOrMethod;
 
 public class WyEC {
 	/**
@@ -38,15 +56,352 @@ public class WyEC {
 	}
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--server")) {
+			CompileServer.main(Arrays.copyOfRange(args, 1, args.length));
+		} else {
+			System.exit(compile(new File("."), args, System.out, System.err, null));
+		}
+	}
+
+	/**
+	 * Compile a WyIL file into C, as directed by a given set of command-line
+	 * arguments.
+	 *
+	 * @param dir
+	 *            Directory against which relative file names are resolved.
+	 * @param args
+	 *            Command-line arguments.
+	 * @param stdout
+	 *            Stream to which the generated C is written.
+	 * @param stderr
+	 *            Stream to which diagnostics are written.
+	 * @param cache
+	 *            Cache of previously decoded modules, or null if modules
+	 *            should always be decoded afresh.
+	 * @return Exit status, where zero indicates success.
+	 */
+	public static int compile(File dir, String[] args, PrintStream stdout, PrintStream stderr,
+			CompileServer.ModuleCache cache) {
+		CompilerMetrics metrics = null;
+		String metricsFile = null;
+		String file = null;
+		List<String> entries = null;
+		String outputDir = null;
+		String sourceMapFile = null;
+		String wcetTarget = null;
+		int unrollThreshold = -1;
+		boolean partialEvaluation = true;
+		long evaluationSteps = -1;
+		long evaluationMemory = -1;
+		String rangeCache = null;
+		int jobs = Runtime.getRuntime().availableProcessors();
+		String wcetCosts = null;
+		EmbeddedCFilePrinter.CheckMode checkMode = EmbeddedCFilePrinter.CheckMode.STRIP;
+		boolean packedBooleanArrays = false;
+		boolean structureOfArrays = false;
+		int arrayAlignment = 0;
+		String instrument = null;
+		// Process command-line options
+		for (int i = 0; i != args.length; ++i) {
+			if (args[i].equals("--metrics")) {
+				metrics = new CompilerMetrics();
+			} else if (args[i].equals("--metrics-json") && (i + 1) < args.length) {
+				metrics = new CompilerMetrics();
+				metricsFile = args[++i];
+			} else if (args[i].equals("-o") && (i + 1) < args.length) {
+				outputDir = args[++i];
+			} else if (args[i].equals("--source-map") && (i + 1) < args.length) {
+				sourceMapFile = args[++i];
+			} else if (args[i].equals("--unroll") && (i + 1) < args.length) {
+				unrollThreshold = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--no-eval")) {
+				partialEvaluation = false;
+			} else if (args[i].equals("--eval-limits") && (i + 2) < args.length) {
+				evaluationSteps = Long.parseLong(args[++i]);
+				evaluationMemory = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--range-cache") && (i + 1) < args.length) {
+				rangeCache = args[++i];
+			} else if (args[i].equals("--jobs") && (i + 1) < args.length) {
+				jobs = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--wcet") && (i + 1) < args.length) {
+				wcetTarget = args[++i];
+			} else if (args[i].equals("--wcet-costs") && (i + 1) < args.length) {
+				wcetCosts = args[++i];
+			} else if (args[i].equals("--checks") && (i + 1) < args.length) {
+				checkMode = EmbeddedCFilePrinter.CheckMode.valueOf(args[++i].toUpperCase());
+			} else if (args[i].equals("--packed-bools")) {
+				packedBooleanArrays = true;
+			} else if (args[i].equals("--soa")) {
+				structureOfArrays = true;
+			} else if (args[i].equals("--align") && (i + 1) < args.length) {
+				arrayAlignment = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--instrument") && (i + 1) < args.length) {
+				instrument = args[++i];
+			} else if (args[i].equals("--entry") && (i + 1) < args.length) {
+				if (entries == null) {
+					entries = new ArrayList<String>();
+				}
+				entries.add(args[++i]);
+			} else {
+				file = args[i];
+			}
+		}
+		if (file == null) {
+			stdout.println("usage: wyec [--server] [--metrics] [--metrics-json <file>] [--source-map <file>] [--checks strip|trap|handler] [--packed-bools] [--soa] [--align <bytes>] [--instrument functions|loops|all] [--unroll <n>] [--no-eval] [--eval-limits <steps> <memory>] [--range-cache <dir>] [--jobs <n>] [--wcet <target>] [--wcet-costs <file>] [--entry <name>]* [-o <dir>] <file.wyil>");
+			return 1;
+		} else if (instrument != null && !instrument.matches("functions|loops|all")) {
+			stderr.println("unknown instrumentation: " + instrument);
+			return 1;
+		} else if (arrayAlignment < 0 || Integer.bitCount(arrayAlignment) > 1) {
+			stderr.println("alignment must be a power of two: " + arrayAlignment);
+			return 1;
+		}
 		try {
-			Content.Registry registry = new Registry();
-			DirectoryRoot root = new DirectoryRoot(".", registry);
-			Path.Entry<WyilFile> srcFile = root.create(Trie.ROOT.append(args[0]), WyilFile.ContentType);
-			WyilFileReader r = new WyilFileReader(srcFile);
-			WyilFile wyilFile = r.read();
-			new EmbeddedCFilePrinter(System.out).apply(wyilFile);
+			CompilerMetrics.Timer timer = metrics == null ? null
+					: metrics.start(file, null, CompilerMetrics.DECODE);
+			WyilFile wyilFile = cache != null ? cache.get(dir, file) : read(dir, file);
+			if (timer != null) {
+				timer.stop(0);
+			}
+			String unknown = findUnknownEntry(wyilFile, entries);
+			if (unknown != null) {
+				stderr.println("unknown entry point: " + unknown);
+				return 1;
+			}
+			// Summarise the ranges returned by each function
+			timer = metrics == null ? null : metrics.start(file, null, CompilerMetrics.ANALYSIS);
+			File cacheDir = null;
+			if (rangeCache != null) {
+				cacheDir = new File(rangeCache);
+				cacheDir = cacheDir.isAbsolute() ? cacheDir : new File(dir, rangeCache);
+			}
+			RangeSummaries summaries = new RangeSummaries(wyilFile, cacheDir);
+			if (entries != null) {
+				// Only those functions which are emitted need summaries
+				summaries.restrict(new CallGraph(wyilFile).reachable(getEntryPoints(wyilFile, entries)));
+			}
+			summaries.apply(cacheDir == null ? null : fingerprint(dir, file), jobs);
+			if (timer != null) {
+				timer.stop(0);
+			}
+			SourceMap sourceMap = sourceMapFile == null ? null : new SourceMap();
+			StringWriter header = new StringWriter();
+			EmbeddedCFilePrinter printer = outputDir != null ? new EmbeddedCFilePrinter(header)
+					: new EmbeddedCFilePrinter(stdout);
+			printer.setMetrics(metrics);
+			printer.setCheckMode(checkMode);
+			printer.setSourceMap(sourceMap);
+			printer.setRangeSummaries(summaries);
+			if (unrollThreshold >= 0) {
+				printer.setUnrollThreshold(unrollThreshold);
+			}
+			printer.setPartialEvaluation(partialEvaluation);
+			printer.setPackedBooleanArrays(packedBooleanArrays);
+			printer.setStructureOfArrays(structureOfArrays);
+			printer.setArrayAlignment(arrayAlignment);
+			printer.setInstrumentation(isInstrumented(instrument, "functions"), isInstrumented(instrument, "loops"));
+			if (evaluationSteps >= 0) {
+				printer.setEvaluationLimits(evaluationSteps, evaluationMemory);
+			}
+			printer.setEntryPoints(entries);
+			if (outputDir != null) {
+				// Write separate header and source files. These are written
+				// by the same printer, such that the prototypes in the header
+				// agree with the definitions in the source file.
+				File dest = new File(outputDir);
+				dest = dest.isAbsolute() ? dest : new File(dir, outputDir);
+				dest.mkdirs();
+				String name = EmbeddedCFilePrinter.getFileName(wyilFile.getEntry().id());
+				printer.applyHeader(wyilFile);
+				StringWriter source = new StringWriter();
+				printer.setWriter(source);
+				printer.setHeader(name + ".h");
+				printer.apply(wyilFile);
+				writeIfChanged(new File(dest, name + ".h"), header.toString());
+				writeIfChanged(new File(dest, name + ".c"), source.toString());
+			} else {
+				printer.apply(wyilFile);
+			}
+			// Report execution time bounds (if applicable)
+			if (wcetTarget != null || wcetCosts != null) {
+				writeExecutionTimes(dir, wyilFile, entries, wcetTarget, wcetCosts, stderr);
+			}
+			// Write source map (if applicable)
+			if (sourceMap != null) {
+				File f = new File(sourceMapFile);
+				PrintStream out = new PrintStream(new FileOutputStream(f.isAbsolute() ? f : new File(dir, sourceMapFile)));
+				sourceMap.write(out);
+				out.close();
+			}
+			// Report metrics (if applicable)
+			if (metricsFile != null) {
+				File f = new File(metricsFile);
+				PrintStream out = new PrintStream(new FileOutputStream(f.isAbsolute() ? f : new File(dir, metricsFile)));
+				metrics.writeJSON(out);
+				out.close();
+			} else if (metrics != null) {
+				metrics.writeSummary(stderr);
+			}
+			return 0;
 		} catch(IOException e) {
-			System.out.println(e.getMessage());
+			stdout.println(e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * Check whether a given kind of code is instrumented, according to the
+	 * argument of <code>--instrument</code>.
+	 *
+	 * @param instrument
+	 *            Argument given, or null if none was.
+	 * @param kind
+	 *            Either <code>"functions"</code> or <code>"loops"</code>.
+	 * @return
+	 */
+	private static boolean isInstrumented(String instrument, String kind) {
+		return instrument != null && (instrument.equals(kind) || instrument.equals("all"));
+	}
+
+	/**
+	 * Find an entry point which does not name any function or method in a
+	 * given module.
+	 *
+	 * @param module
+	 * @param entries
+	 *            Names of the entry points, or null if none were given.
+	 * @return The first such name, or null if there is none.
+	 */
+	private static String findUnknownEntry(WyilFile module, List<String> entries) {
+		if (entries == null) {
+			return null;
+		}
+		for (String entry : entries) {
+			boolean found = false;
+			for (FunctionOrMethod fm : module.functionOrMethods()) {
+				found |= fm.name().equals(entry);
+			}
+			if (!found) {
+				return entry;
+			}
 		}
+		return null;
+	}
+
+	/**
+	 * Report an upper bound on the execution time of each function in a
+	 * given module and, where given, of each entry point.
+	 *
+	 * @param dir
+	 * @param module
+	 * @param entries
+	 *            Names of the entry points, or null if none were given.
+	 * @param target
+	 *            Name of a built-in target, or null for the generic target.
+	 * @param costFile
+	 *            File of costs which override those of the target, or null.
+	 * @param out
+	 * @throws IOException
+	 */
+	private static void writeExecutionTimes(File dir, WyilFile module, List<String> entries, String target,
+			String costFile, PrintStream out) throws IOException {
+		CostTable costs;
+		try {
+			costs = CostTable.forTarget(target == null ? "generic" : target);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (costFile != null) {
+			File f = new File(costFile);
+			FileInputStream in = new FileInputStream(f.isAbsolute() ? f : new File(dir, costFile));
+			try {
+				costs.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		CallGraph graph = new CallGraph(module);
+		List<FunctionOrMethod> roots = getEntryPoints(module, entries);
+		Collection<FunctionOrMethod> functions = entries == null ? module.functionOrMethods() : graph.reachable(roots);
+		new WorstCaseExecutionTime(graph, costs).writeReport(out, functions, roots);
+	}
+
+	/**
+	 * Determine the functions and methods of a given module which are entry
+	 * points.
+	 *
+	 * @param module
+	 * @param entries
+	 *            Names of the entry points, or null if none were given.
+	 * @return
+	 */
+	private static List<FunctionOrMethod> getEntryPoints(WyilFile module, List<String> entries) {
+		List<FunctionOrMethod> roots = new ArrayList<FunctionOrMethod>();
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			if (entries != null && entries.contains(fm.name())) {
+				roots.add(fm);
+			}
+		}
+		return roots;
+	}
+
+	/**
+	 * Determine a fingerprint of the contents of a given WyIL file, or null
+	 * if it cannot be found.
+	 *
+	 * @param dir
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static String fingerprint(File dir, String file) throws IOException {
+		File f = new File(dir, file);
+		if (!f.exists()) {
+			f = new File(dir, file + ".wyil");
+		}
+		if (!f.exists()) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(f.toPath()));
+		return Long.toHexString(crc.getValue()) + " " + f.length();
+	}
+
+	/**
+	 * Write a file with the given contents, unless it already has exactly
+	 * those contents. This preserves the modification time of unchanged
+	 * files and, hence, avoids unnecessary rebuilds of dependent C files.
+	 *
+	 * @param file
+	 * @param contents
+	 * @throws IOException
+	 */
+	private static void writeIfChanged(File file, String contents) throws IOException {
+		byte[] bytes = contents.getBytes("UTF-8");
+		if (file.exists() && Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) {
+			return;
+		}
+		Files.write(file.toPath(), bytes);
+	}
+
+	/**
+	 * Read and decode a given WyIL file. The reader decodes every
+	 * declaration, including the bodies of functions which are never
+	 * emitted, since it provides no means of decoding them on demand.
+	 * However, only those reachable from the entry points (if given) are
+	 * analysed and emitted.
+	 *
+	 * @param dir
+	 *            Directory against which the file name is resolved.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static WyilFile read(File dir, String file) throws IOException {
+		Content.Registry registry = new Registry();
+		DirectoryRoot root = new DirectoryRoot(dir.getPath(), registry);
+		Path.Entry<WyilFile> srcFile = root.create(Trie.ROOT.append(file), WyilFile.ContentType);
+		WyilFileReader r = new WyilFileReader(srcFile);
+		return r.read();
 	}
 }
@@ -0,0 +1,156 @@
+package wyec;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+/**
+ * <p>
+ * A thin client for the {@link CompileServer}, which can be used as a drop-in
+ * replacement for {@link WyEC} on the command line. This forwards its
+ * arguments and working directory to a server listening on the loopback
+ * interface, and reproduces the server's output and exit status. The port is
+ * given by the <code>WYEC_PORT</code> environment variable, or
+ * {@link CompileServer#DEFAULT_PORT} otherwise. Each request carries the
+ * token which the server wrote to the user's token file for that port.
+ * </p>
+ *
+ * <p>
+ * This class deliberately depends on nothing beyond the Java standard
+ * library, so that starting it is cheap. If no server is running (or its
+ * token cannot be read), the compilation is performed in-process instead.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class WyECClient {
+
+	public static void main(String[] args) throws IOException {
+		String env = System.getenv("WYEC_PORT");
+		int port = env != null ? Integer.parseInt(env) : CompileServer.DEFAULT_PORT;
+		Socket socket;
+		String token;
+		try {
+			token = new String(Files.readAllBytes(getTokenFile(port).toPath()), "UTF-8").trim();
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		} catch (IOException e) {
+			// No server running, so fall back to compiling in-process
+			WyEC.main(args);
+			return;
+		}
+		try {
+			StringBuilder request = new StringBuilder(token);
+			request.append('\t');
+			request.append(escape(new File(".").getCanonicalPath()));
+			for (String arg : args) {
+				request.append('\t');
+				request.append(escape(arg));
+			}
+			request.append('\n');
+			OutputStream output = socket.getOutputStream();
+			output.write(request.toString().getBytes("UTF-8"));
+			output.flush();
+			// Read the response
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			String[] header = readLine(input).split(" ");
+			int status = Integer.parseInt(header[0]);
+			copy(input, System.out, Integer.parseInt(header[1]));
+			copy(input, System.err, Integer.parseInt(header[2]));
+			System.out.flush();
+			System.err.flush();
+			System.exit(status);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Get the file holding the token of a server listening on a given port.
+	 * This is in the user's home directory, and is readable only by them.
+	 *
+	 * @param port
+	 * @return
+	 */
+	public static File getTokenFile(int port) {
+		return new File(new File(System.getProperty("user.home"), ".wyec"), "server-" + port + ".token");
+	}
+
+	/**
+	 * Escape a field of a request, such that it contains no tabs or
+	 * newlines. Backslashes, tabs, carriage returns and newlines are written
+	 * as <code>\\</code>, <code>\t</code>, <code>\r</code> and
+	 * <code>\n</code> respectively.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public static String escape(String field) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != field.length(); ++i) {
+			char c = field.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reverse {@link #escape(String)}.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public static String unescape(String field) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < field.length(); ++i) {
+			char c = field.charAt(i);
+			if (c == '\\' && (i + 1) < field.length()) {
+				c = field.charAt(++i);
+				switch (c) {
+				case 't':
+					c = '\t';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				case 'n':
+					c = '\n';
+					break;
+				}
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static String readLine(InputStream input) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = input.read()) != -1 && c != '\n') {
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private static void copy(DataInputStream input, OutputStream output, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		output.write(bytes);
+	}
+}
@@ -0,0 +1,223 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.io;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+import wybs.lang.NameID;
+import wyfs.util.Trie;
+import wyil.lang.Type;
+
+/**
+ * <p>
+ * Interns the Whiley types encountered during a compilation, assigning each a
+ * C name and caching its rendering. Primitive types are rendered directly
+ * (e.g. <code>int32_t</code>), whilst compound types (i.e. arrays and records)
+ * are given a <code>typedef</code> which is written exactly once. For example,
+ * <code>i32[]</code> becomes <code>arr_int32_t</code>.
+ * </p>
+ *
+ * <p>
+ * Names for compound types are derived from their structure and, hence, are
+ * stable across compilations and modules. The same typedef may therefore
+ * appear in the headers of several modules, so each is written under its own
+ * guard named after it. This relies on distinct structures always having
+ * distinct names (see {@link #getRecordName(List, List)}). Lookups are first
+ * made by identity, falling back to structural equality only for types not
+ * seen before.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CTypeTable {
+	private final boolean packedBooleanArrays;
+
+	/**
+	 * Cache of rendered types, keyed by identity.
+	 */
+	private final IdentityHashMap<Type, String> identities = new IdentityHashMap<Type, String>();
+
+	/**
+	 * Interned types, keyed by structural equality.
+	 */
+	private final HashMap<Type, String> interned = new HashMap<Type, String>();
+
+	/**
+	 * The typedefs required for the types interned so far, in an order such
+	 * that every typedef follows those it depends upon.
+	 */
+	private final List<String[]> typedefs = new ArrayList<String[]>();
+
+	/**
+	 * The names of array typedefs recorded so far.
+	 */
+	private final HashSet<String> arrays = new HashSet<String>();
+
+	/**
+	 * The number of typedefs which have already been written.
+	 */
+	private int written;
+
+	public CTypeTable(boolean packedBooleanArrays) {
+		this.packedBooleanArrays = packedBooleanArrays;
+	}
+
+	/**
+	 * Get the C name of a given type, interning it if necessary. If the type
+	 * cannot be represented in C, null is returned.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public String get(Type type) {
+		String name = identities.get(type);
+		if (name == null) {
+			name = interned.get(type);
+			if (name == null) {
+				name = intern(type);
+				if (name == null) {
+					return null;
+				}
+				interned.put(type, name);
+			}
+			identities.put(type, name);
+		}
+		return name;
+	}
+
+	/**
+	 * Get the C name of an array with a given element type, interning it if
+	 * necessary. This is used for arrays whose element type differs from that
+	 * declared (e.g. because it has been narrowed). If the element type
+	 * cannot be represented in C, null is returned.
+	 *
+	 * @param elementT
+	 * @return
+	 */
+	public String getArray(Type elementT) {
+		String element = get(elementT);
+		if (element == null) {
+			return null;
+		}
+		String name = "arr_" + element;
+		if (arrays.add(name)) {
+			typedefs.add(new String[] { name, "arr_t(" + element + ")" });
+		}
+		return name;
+	}
+
+	/**
+	 * Check whether a given type is primitive (i.e. it is not stored in
+	 * memory other than the variable holding it).
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static boolean isPrimitive(Type type) {
+		return primitives.containsKey(type);
+	}
+
+	/**
+	 * Write all typedefs for types which have been interned since the last
+	 * call to this method.
+	 *
+	 * @param out
+	 */
+	public void writeTypedefs(PrintWriter out) {
+		for (; written < typedefs.size(); ++written) {
+			String[] typedef = typedefs.get(written);
+			String guard = "WYEC_TYPE_" + typedef[0];
+			out.println("#ifndef " + guard);
+			out.println("#define " + guard);
+			out.println("typedef " + typedef[1] + " " + typedef[0] + ";");
+			out.println("#endif");
+		}
+	}
+
+	/**
+	 * Determine the C name for a type not previously encountered, and record
+	 * any typedef required for it.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private String intern(Type type) {
+		if (type instanceof Type.Array) {
+			Type elementT = ((Type.Array) type).element();
+			if (packedBooleanArrays && elementT.equals(Type.T_BOOL)) {
+				return "bitarr_t";
+			}
+			return getArray(elementT);
+		} else if (type instanceof Type.Record) {
+			Type.Record recT = (Type.Record) type;
+			StringBuilder body = new StringBuilder("struct {");
+			List<String> fields = new ArrayList<String>();
+			List<String> fieldTypes = new ArrayList<String>();
+			for (String field : recT.getFieldNames()) {
+				String fieldT = get(recT.getField(field));
+				if (fieldT == null) {
+					return null;
+				}
+				body.append(" " + fieldT + " " + field + ";");
+				fields.add(field);
+				fieldTypes.add(fieldT);
+			}
+			body.append(" }");
+			String name = getRecordName(fields, fieldTypes);
+			typedefs.add(new String[] { name, body.toString() });
+			return name;
+		} else {
+			return primitives.get(type);
+		}
+	}
+
+	/**
+	 * Determine the name of a record typedef from its fields. Each field type
+	 * and name is prefixed by its length, such that (for example)
+	 * <code>{i32 x, bool y}</code> is named <code>rec_7int32_t1x4bool1y</code>.
+	 * Since the lengths delimit each component, distinct records always
+	 * receive distinct names. In contrast, a hash of the structure would
+	 * permit two records to share a name (and, hence, a guard) and one of
+	 * their typedefs would be silently omitted.
+	 *
+	 * @param fields
+	 * @param fieldTypes
+	 * @return
+	 */
+	private static String getRecordName(List<String> fields, List<String> fieldTypes) {
+		StringBuilder name = new StringBuilder("rec_");
+		for (int i = 0; i != fields.size(); ++i) {
+			String fieldT = fieldTypes.get(i);
+			String field = fields.get(i);
+			name.append(fieldT.length()).append(fieldT);
+			name.append(field.length()).append(field);
+		}
+		return name.toString();
+	}
+
+	private static Type intType(String name) {
+		return Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"), name));
+	}
+
+	private static HashMap<Type, String> primitives = new HashMap<Type, String>() {
+		{
+			// Integer types
+			put(intType("i8"), "int8_t");
+			put(intType("i16"), "int16_t");
+			put(intType("i32"), "int32_t");
+			put(intType("i64"), "int64_t");
+			put(intType("u8"), "uint8_t");
+			put(intType("u16"), "uint16_t");
+			put(intType("u32"), "uint32_t");
+			put(intType("u64"), "uint64_t");
+			//
+			put(Type.T_BOOL, "bool");
+		}
+	};
+}
@@ -0,0 +1,77 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.io;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer which counts the number of characters and lines written through
+ * it. This is used to measure the size of generated code, and to relate it
+ * back to its origin, without a second pass over the output.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CountingWriter extends FilterWriter {
+	private long count;
+	private int lines;
+
+	public CountingWriter(Writer out) {
+		super(out);
+	}
+
+	/**
+	 * Get the number of characters written so far.
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the (one-based) number of the line currently being written.
+	 *
+	 * @return
+	 */
+	public int getLine() {
+		return lines + 1;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		super.write(c);
+		count++;
+		if (c == '\n') {
+			lines++;
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		super.write(cbuf, off, len);
+		count += len;
+		for (int i = off; i != off + len; ++i) {
+			if (cbuf[i] == '\n') {
+				lines++;
+			}
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		super.write(str, off, len);
+		count += len;
+		for (int i = off; i != off + len; ++i) {
+			if (str.charAt(i) == '\n') {
+				lines++;
+			}
+		}
+	}
+}
@@ -7,11 +7,11 @@
 package wyec.io;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.util.*;
 
 import wybs.lang.Build;
-import wybs.lang.NameID;
-import wyfs.util.Trie;
+import wyfs.lang.Path;
 import wyil.lang.*;
 import wyil.lang.Constant;
 import wyil.lang.Bytecode.AliasDeclaration;
@@ -21,6 +21,20 @@ import wyil.lang.Bytecode.VariableDeclaration;
 import wyil.lang.SyntaxTree.Location;
 import wyil.lang.Type;
 import wyil.lang.WyilFile.*;
+import wyec.lang.IntegerRange;
+import wyec.util.AliasAnalysis;
+import wyec.util.ArrayNarrowing;
+import wyec.util.CallGraph;
+import wyec.util.CommonSubexpressionAnalysis;
+import wyec.util.CompilerMetrics;
+import wyec.util.ConstantEvaluator;
+import wyec.util.IntegerRangeAnalysis;
+import wyec.util.LoopFusion;
+import wyec.util.LoopInvariantAnalysis;
+import wyec.util.LoopUnrolling;
+import wyec.util.RangeSummaries;
+import wyec.util.StrengthReduction;
+import wyec.util.StructureOfArraysAnalysis;
 
 /**
  * Writes WYIL bytecodes in a textual from to a given file.
@@ -34,18 +48,241 @@ import wyil.lang.WyilFile.*;
  */
 public final class EmbeddedCFilePrinter {
 	private PrintWriter out;
+	private CountingWriter counter;
 	private boolean verbose = false;
+	private CompilerMetrics metrics;
+	private Set<String> entryPoints = null;
+	private String header = null;
+	private boolean restrict = true;
+	private int arrayAlignment = 0;
+	private SourceMap sourceMap;
+
+	/**
+	 * The array parameters of the function or method currently being
+	 * written. These are passed by pointer and, hence, must be dereferenced
+	 * when accessed.
+	 */
+	private Set<Location<VariableDeclaration>> pointerParameters = Collections.emptySet();
+
+	/**
+	 * The local arrays of the function or method currently being written.
+	 * Since array types have no storage of their own, these are held by
+	 * pointer and, hence, must be dereferenced when accessed.
+	 */
+	private Set<Location<VariableDeclaration>> arrayVariables = Collections.emptySet();
+
+	/**
+	 * The functions and methods of the module being written which may
+	 * allocate storage with <code>wy_alloc()</code>, either directly or via
+	 * another function or method they invoke.
+	 */
+	private Set<FunctionOrMethod> allocating = Collections.emptySet();
+
+	/**
+	 * The functions and methods of the module being written which may
+	 * perform a contract check, either directly or via another function or
+	 * method they invoke. This is empty when checks are stripped.
+	 */
+	private Set<FunctionOrMethod> checking = Collections.emptySet();
+
+	/**
+	 * The call graph of the module being written.
+	 */
+	private CallGraph graph;
+
+	/**
+	 * The functions and methods of the module being written, which are those
+	 * reachable from the entry points (if given). This is closed under
+	 * callees within the module, so analyses of the module need only
+	 * consider these.
+	 */
+	private Collection<FunctionOrMethod> functions = Collections.emptyList();
+
+	/**
+	 * Types encountered in the current compilation.
+	 */
+	private CTypeTable types;
+	private boolean instrumentFunctions = false;
+	private boolean instrumentLoops = false;
+
+	/**
+	 * Names for each instrumentation identifier allocated so far, where the
+	 * identifier is the index into this list.
+	 */
+	private List<String> profileNames = new ArrayList<String>();
+
+	/**
+	 * Instrumentation identifiers of the loops enclosing the statement
+	 * currently being written, innermost last. Each of these must be exited
+	 * on return.
+	 */
+	private List<Integer> activeLoops = new ArrayList<Integer>();
+
+	/**
+	 * The function or method currently being written.
+	 */
+	private FunctionOrMethod currentMethod;
+
+	/**
+	 * Instrumentation identifier of the function or method currently being
+	 * written.
+	 */
+	private int currentProfileId;
+	private boolean packedBooleanArrays = false;
+	private boolean structureOfArrays = false;
+
+	/**
+	 * Determines the variables of the module being written which use the
+	 * structure-of-arrays layout, resolving its named record types.
+	 */
+	private StructureOfArraysAnalysis soaAnalysis;
+
+	/**
+	 * The set of variables in the function or method currently being written
+	 * which use the structure-of-arrays layout.
+	 */
+	private Set<Location<VariableDeclaration>> soaVariables = Collections.emptySet();
+
+	/**
+	 * The statements releasing storage on exit from each block enclosing the
+	 * statement currently being written, innermost last. The outermost entry
+	 * is for the function or method itself. Storage is allocated for copies
+	 * of modified array parameters, packed boolean arrays and variables using
+	 * the structure-of-arrays layout, none of which escape the block
+	 * declaring them.
+	 */
+	private List<List<String>> scopes = new ArrayList<List<String>>();
+
+	/**
+	 * The number of blocks enclosing the body of the innermost loop currently
+	 * being written. Leaving an iteration of that loop releases the storage
+	 * of every block above this.
+	 */
+	private int loopScope;
+
+	/**
+	 * The number of blocks enclosing the innermost loop body or switch case
+	 * currently being written, which is the statement left by a
+	 * <code>break</code>.
+	 */
+	private int breakScope;
+	private boolean arrayNarrowing = true;
+
+	/**
+	 * The local arrays of each function or method whose elements are stored
+	 * using a narrower type than declared, along with that type.
+	 */
+	private Map<FunctionOrMethod, Map<Location<VariableDeclaration>, Type>> narrowedArrays = new IdentityHashMap<FunctionOrMethod, Map<Location<VariableDeclaration>, Type>>();
+	private boolean loopInvariantHoisting = true;
+	private boolean commonSubexpressionElimination = true;
+	private boolean strengthReduction = true;
+	private int unrollThreshold = 4;
+	private RangeSummaries summaries;
+	private boolean partialEvaluation = true;
+	private long evaluationSteps = 100000;
+	private long evaluationMemory = 65536;
+
+	/**
+	 * Evaluates invocations with constant arguments in the module currently
+	 * being written, or null if partial evaluation is disabled.
+	 */
+	private ConstantEvaluator evaluator;
+
+	/**
+	 * The loops in the function or method currently being written which are
+	 * to be fully unrolled.
+	 */
+	private Map<Location<?>, LoopUnrolling.Unrolling> unrolled = new IdentityHashMap<Location<?>, LoopUnrolling.Unrolling>();
+	private boolean loopFusion = true;
+
+	/**
+	 * The loops in the function or method currently being written into which
+	 * subsequent loops and quantifiers are fused.
+	 */
+	private Map<Location<?>, LoopFusion.Fusion> fused = new IdentityHashMap<Location<?>, LoopFusion.Fusion>();
+
+	/**
+	 * The arrays in the function or method currently being written which are
+	 * replaced by a scalar holding the current element of a fused loop.
+	 */
+	private Set<Location<VariableDeclaration>> scalarised = Collections
+			.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+
+	/**
+	 * Range analysis for the function or method currently being written.
+	 */
+	private IntegerRangeAnalysis ranges;
+
+	/**
+	 * Maps expressions which have been evaluated into temporary variables
+	 * (e.g. because they were hoisted out of a loop) to the name of that
+	 * temporary.
+	 */
+	private Map<Location<?>,String> substitutions = new IdentityHashMap<Location<?>,String>();
+
+	/**
+	 * Counts the number of temporary variables introduced in the function or
+	 * method currently being written.
+	 */
+	private int temporaries;
+
+	/**
+	 * Determines how contract checks (i.e. assertions, assumptions, pre- and
+	 * postconditions) are written.
+	 */
+	public enum CheckMode {
+		/**
+		 * Checks are omitted entirely, and an explicit <code>fail</code>
+		 * halts via <code>WY_TRAP()</code>.
+		 */
+		STRIP,
+		/**
+		 * A failed check halts immediately via <code>WY_TRAP()</code>.
+		 */
+		TRAP,
+		/**
+		 * A failed check invokes <code>wy_check_failed()</code> with the name
+		 * of the module and a code identifying the check within it.
+		 */
+		HANDLER
+	}
+
+	private CheckMode checkMode = CheckMode.STRIP;
+
+	/**
+	 * Counts the number of check codes allocated so far. These are unique
+	 * within the module being written.
+	 */
+	private int checks;
+
+	/**
+	 * The name of the module being written, which qualifies its check codes.
+	 */
+	private String moduleName;
 
 	public EmbeddedCFilePrinter(Build.Task builder) {
 
 	}
 
-	public EmbeddedCFilePrinter(PrintWriter writer) {
-		this.out = writer;
+	public EmbeddedCFilePrinter(Writer writer) {
+		this.counter = new CountingWriter(writer);
+		this.out = new PrintWriter(counter);
 	}
 
 	public EmbeddedCFilePrinter(OutputStream stream) {
-		this.out = new PrintWriter(new OutputStreamWriter(stream));
+		this(new OutputStreamWriter(stream));
+	}
+
+	/**
+	 * Direct all subsequent output to a given writer. This allows the header
+	 * and source file of a module to be written by the same printer and,
+	 * hence, with the same configuration.
+	 *
+	 * @param writer
+	 */
+	public void setWriter(Writer writer) {
+		this.counter = new CountingWriter(writer);
+		this.out = new PrintWriter(counter);
 	}
 
 	// ======================================================================
@@ -56,57 +293,912 @@ public final class EmbeddedCFilePrinter {
 		this.verbose = flag;
 	}
 
+	/**
+	 * Set how contract checks are written. By default, these are stripped.
+	 * Regardless of the mode, checks which range analysis shows always hold
+	 * are omitted.
+	 *
+	 * @see CheckMode
+	 * @param mode
+	 */
+	public void setCheckMode(CheckMode mode) {
+		this.checkMode = mode;
+	}
+
+	/**
+	 * Enable the bit-packed representation for arrays of booleans. In this
+	 * case, <code>bool[]</code> is written as <code>bitarr_t</code> rather
+	 * than <code>arr_t(bool)</code>, and all operations on such arrays are
+	 * translated into the corresponding <code>bitarr_</code> macros from
+	 * <code>whiley.h</code>.
+	 *
+	 * @param flag
+	 */
+	public void setPackedBooleanArrays(boolean flag) {
+		this.packedBooleanArrays = flag;
+	}
+
+	/**
+	 * Enable the structure-of-arrays layout for arrays of records. In this
+	 * case, local arrays of records which are only accessed field-by-field are
+	 * written as one array per field.
+	 *
+	 * @see StructureOfArraysAnalysis
+	 * @param flag
+	 */
+	public void setStructureOfArrays(boolean flag) {
+		this.structureOfArrays = flag;
+	}
+
+	/**
+	 * Enable narrowing of the element type of local integer arrays. In this
+	 * case, an array declared as (for example) <code>i32[]</code> whose
+	 * elements are all shown to fit in a <code>u8</code> is written as
+	 * <code>arr_t(uint8_t)</code>. This is enabled by default.
+	 *
+	 * @see ArrayNarrowing
+	 * @param flag
+	 */
+	public void setArrayNarrowing(boolean flag) {
+		this.arrayNarrowing = flag;
+	}
+
+	/**
+	 * Enable hoisting of loop invariant expressions, such as array lengths,
+	 * out of loops. This is enabled by default.
+	 *
+	 * @see LoopInvariantAnalysis
+	 * @param flag
+	 */
+	public void setLoopInvariantHoisting(boolean flag) {
+		this.loopInvariantHoisting = flag;
+	}
+
+	/**
+	 * Enable elimination of common subexpressions, such as repeated
+	 * invocations of the same function with the same arguments. This is
+	 * enabled by default.
+	 *
+	 * @see CommonSubexpressionAnalysis
+	 * @param flag
+	 */
+	public void setCommonSubexpressionElimination(boolean flag) {
+		this.commonSubexpressionElimination = flag;
+	}
+
+	/**
+	 * Enable strength reduction of multiplication, division and remainder.
+	 * This replaces these operations with shifts, masks or multiplications
+	 * where range analysis shows this is safe. This is enabled by default.
+	 *
+	 * @see StrengthReduction
+	 * @param flag
+	 */
+	public void setStrengthReduction(boolean flag) {
+		this.strengthReduction = flag;
+	}
+
+	/**
+	 * Set the maximum number of iterations of a loop or quantifier which is
+	 * fully unrolled. Only loops and quantifiers whose number of iterations
+	 * is a known constant are unrolled, and zero disables unrolling. Larger
+	 * values trade code size for speed. By default, this is four.
+	 *
+	 * @see LoopUnrolling
+	 * @param threshold
+	 */
+	public void setUnrollThreshold(int threshold) {
+		this.unrollThreshold = threshold;
+	}
+
+	/**
+	 * Enable fusion of adjacent loops (and quantifiers) over the same
+	 * iteration space into a single loop. Arrays used only within the fused
+	 * loop are then replaced by scalars. This is enabled by default.
+	 *
+	 * @see LoopFusion
+	 * @param flag
+	 */
+	public void setLoopFusion(boolean flag) {
+		this.loopFusion = flag;
+	}
+
+	/**
+	 * Use summaries of the functions and methods in the module being written
+	 * to determine the ranges of invocations. Otherwise, these are determined
+	 * solely from the declared return types.
+	 *
+	 * @see RangeSummaries
+	 * @param summaries
+	 */
+	public void setRangeSummaries(RangeSummaries summaries) {
+		this.summaries = summaries;
+	}
+
+	/**
+	 * Enable partial evaluation of invocations. In this case, invocations of
+	 * functions whose arguments are all constants are evaluated at compile
+	 * time and replaced by their result. This is enabled by default.
+	 *
+	 * @see ConstantEvaluator
+	 * @param flag
+	 */
+	public void setPartialEvaluation(boolean flag) {
+		this.partialEvaluation = flag;
+	}
+
+	/**
+	 * Set the limits on evaluating a single invocation at compile time. An
+	 * invocation which exceeds either limit is left as is.
+	 *
+	 * @param steps
+	 *            Maximum number of statements and expressions evaluated.
+	 * @param memory
+	 *            Maximum number of array elements and record fields
+	 *            allocated.
+	 */
+	public void setEvaluationLimits(long steps, long memory) {
+		this.evaluationSteps = steps;
+		this.evaluationMemory = memory;
+	}
+
+	/**
+	 * Record the time spent analysing and emitting each module and function
+	 * into a given set of metrics.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(CompilerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Enable instrumentation of the generated code. In this case, each
+	 * function (and, optionally, each loop) is wrapped with enter and exit
+	 * macros from <code>whiley.h</code>. These expand to nothing unless a
+	 * profiling backend is provided, such as that in
+	 * <code>whiley_prof_host.h</code>.
+	 *
+	 * @param functions
+	 *            Instrument the entry and exit of every function and method.
+	 * @param loops
+	 *            Instrument the entry and exit of every loop.
+	 */
+	public void setInstrumentation(boolean functions, boolean loops) {
+		this.instrumentFunctions = functions;
+		this.instrumentLoops = loops;
+	}
+
+	/**
+	 * Restrict the functions and methods written to those reachable from a
+	 * given set of entry points (identified by name). Functions which are
+	 * not reachable are neither analysed nor written. By default, all
+	 * functions and methods are written.
+	 *
+	 * @param names
+	 *            Names of the entry points, or null to write everything.
+	 */
+	public void setEntryPoints(Collection<String> names) {
+		this.entryPoints = names == null ? null : new HashSet<String>(names);
+	}
+
+	/**
+	 * Write the source file against a separately generated header (see
+	 * {@link #applyHeader(WyilFile)}). In this case, the source file includes
+	 * the header, rather than declaring its own prototypes.
+	 *
+	 * @param name
+	 *            Name of the header file (e.g. <code>"module.h"</code>), or
+	 *            null if prototypes should be written inline.
+	 */
+	public void setHeader(String name) {
+		this.header = name;
+	}
+
+	/**
+	 * Enable <code>restrict</code> qualifiers on array parameters, where
+	 * this is sound. This is enabled by default.
+	 *
+	 * @see AliasAnalysis
+	 * @param flag
+	 */
+	public void setRestrict(boolean flag) {
+		this.restrict = flag;
+	}
+
+	/**
+	 * Set the alignment (in bytes) of array elements, or zero for the
+	 * natural alignment. This is passed to <code>whiley.h</code> via
+	 * <code>WY_ARRAY_ALIGN</code> in the header of each module (or the
+	 * source file, if there is no header), and must be the same for all
+	 * modules linked together. Each module checks this when compiled.
+	 *
+	 * @param bytes
+	 */
+	public void setArrayAlignment(int bytes) {
+		this.arrayAlignment = bytes;
+	}
+
+	/**
+	 * Record the origin of each line of generated code into a given source
+	 * map.
+	 *
+	 * @see SourceMap
+	 * @param map
+	 */
+	public void setSourceMap(SourceMap map) {
+		this.sourceMap = map;
+	}
+
 	// ======================================================================
 	// Apply Method
 	// ======================================================================
 
 	public void apply(WyilFile module) throws IOException {
-		writeIncludes();
+		String name = module.getEntry().id().toString();
+		CompilerMetrics.Timer timer = startTimer(name, null, CompilerMetrics.EMISSION);
+		long start = counter.getCount();
+		checks = 0;
+		moduleName = name;
+		profileNames.clear();
+		initialise(module);
+		soaAnalysis = new StructureOfArraysAnalysis(module);
+		evaluator = partialEvaluation
+				? new ConstantEvaluator(graph, evaluationSteps, evaluationMemory) : null;
+		if (sourceMap != null) {
+			sourceMap.module(name);
+		}
+		if (header != null) {
+			out.println("#include \"" + header + "\"");
+			// Narrowed arrays are local to this module and, hence, their
+			// typedefs are not in its header.
+			writeNarrowedTypedefs(module);
+		} else {
+			writeIncludes(module);
+			out.println();
+			writeTypedefs(module, true);
+			out.println();
+			writePrototypes(module);
+		}
 		out.println();
+		writeCheckModule();
 
-		for(FunctionOrMethod md : module.functionOrMethods()) {
-			write(md);
+		for(FunctionOrMethod md : functions) {
+			write(name, md);
 			out.println();
 		}
+		if (instrumentFunctions || instrumentLoops) {
+			writeProfileNames();
+		}
 		out.flush();
+		stopTimer(timer, start);
 	}
 
-	private void writeIncludes() {
+	/**
+	 * Write the header for a given module. This contains prototypes for all
+	 * functions and methods in the module, such that they can be invoked from
+	 * other modules (and from the module itself, regardless of the order of
+	 * declaration). The header also includes the headers of any modules
+	 * invoked from this one.
+	 *
+	 * @param module
+	 * @throws IOException
+	 */
+	public void applyHeader(WyilFile module) throws IOException {
+		String guard = "WYEC_" + toIdentifier(module.getEntry().id().toString()).toUpperCase() + "_H";
+		initialise(module);
+		out.println("#ifndef " + guard);
+		out.println("#define " + guard);
+		out.println();
+		writeIncludes(module);
+		out.println();
+		// NOTE: narrowed arrays never appear in prototypes
+		writeTypedefs(module, false);
+		out.println();
+		writePrototypes(module);
+		out.println();
+		out.println("#endif");
+		out.flush();
+	}
+
+	/**
+	 * Construct the call graph of a given module, which is then shared by
+	 * every analysis of it, and determine the functions and methods to be
+	 * written along with those which allocate or perform checks.
+	 *
+	 * @param module
+	 */
+	private void initialise(WyilFile module) {
+		graph = new CallGraph(module);
+		functions = getReachableFunctionOrMethods(module);
+		allocating = getAllocatingFunctions();
+		checking = getCheckingFunctions();
+	}
+
+	/**
+	 * Determine the functions and methods to be written for a given module.
+	 * If no entry points are given, this is all of them. Otherwise, it is
+	 * those reachable from the entry points, each of which must name a
+	 * function or method in the module.
+	 *
+	 * @param module
+	 * @return
+	 */
+	private Collection<FunctionOrMethod> getReachableFunctionOrMethods(WyilFile module) {
+		if (entryPoints == null) {
+			return module.functionOrMethods();
+		}
+		List<FunctionOrMethod> roots = new ArrayList<FunctionOrMethod>();
+		Set<String> unknown = new TreeSet<String>(entryPoints);
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			if (entryPoints.contains(fm.name())) {
+				roots.add(fm);
+				unknown.remove(fm.name());
+			}
+		}
+		if (!unknown.isEmpty()) {
+			throw new IllegalArgumentException("unknown entry point: " + unknown.iterator().next());
+		}
+		return graph.reachable(roots);
+	}
+
+	/**
+	 * Define <code>WY_CHECK_MODULE</code> as the name of the module being
+	 * written, which is passed to <code>wy_check_failed()</code> along with
+	 * the code of the failed check. Since codes are allocated per module,
+	 * this is required to identify a check across translation units. This is
+	 * only needed when failures are reported to a handler.
+	 */
+	private void writeCheckModule() {
+		if (checkMode == CheckMode.HANDLER) {
+			out.println("#define WY_CHECK_MODULE \"" + moduleName + "\"");
+			out.println();
+		}
+	}
+
+	/**
+	 * Write the includes for a given module. This includes the headers of all
+	 * other modules containing functions or methods invoked from this one,
+	 * which are assumed to be generated into the same directory (see
+	 * {@link #getFileName(Path.ID)}).
+	 *
+	 * @param module
+	 */
+	private void writeIncludes(WyilFile module) {
+		if (arrayAlignment > 0) {
+			out.println("#ifndef WY_ARRAY_ALIGN");
+			out.println("#define WY_ARRAY_ALIGN " + arrayAlignment);
+			out.println("#endif");
+		}
 		out.println("#include <whiley.h>");
+		// The layout of arrays depends on their alignment, which is fixed
+		// when whiley.h is first included in a translation unit (perhaps
+		// before this header)
+		out.println("#if WY_ARRAY_ALIGNMENT != " + arrayAlignment);
+		out.println("#error \"" + module.getEntry().id() + " requires WY_ARRAY_ALIGN to be "
+				+ (arrayAlignment > 0 ? arrayAlignment : "undefined") + "\"");
+		out.println("#endif");
+		Path.ID id = module.getEntry().id();
+		TreeSet<String> dependencies = new TreeSet<String>();
+		for (FunctionOrMethod fm : functions) {
+			for (Location<?> loc : fm.getTree().getLocations()) {
+				if (loc.getOpcode() == Bytecode.OPCODE_invoke) {
+					Path.ID target = ((Bytecode.Invoke) loc.getBytecode()).name().module();
+					if (!target.equals(id)) {
+						dependencies.add(getFileName(target));
+					}
+				}
+			}
+		}
+		for (String dependency : dependencies) {
+			out.println("#include \"" + dependency + ".h\"");
+		}
+	}
+
+	/**
+	 * Write prototypes for all functions and methods in a given module.
+	 *
+	 * @param module
+	 */
+	private void writePrototypes(WyilFile module) {
+		for (FunctionOrMethod fm : functions) {
+			writeSignature(fm);
+			out.println(";");
+		}
+	}
+
+	/**
+	 * Determine the base name of the files generated for a given module. This
+	 * is formed from the full module identifier, rather than just its last
+	 * component, so that modules with the same name in different packages
+	 * (e.g. <code>a/util</code> and <code>b/util</code>) do not collide. For
+	 * example, the header for <code>a/util</code> is
+	 * <code>a.util.h</code>. Since module names cannot contain periods, this
+	 * is unambiguous.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public static String getFileName(Path.ID id) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != id.size(); ++i) {
+			if (i != 0) {
+				sb.append('.');
+			}
+			sb.append(id.get(i));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Convert an arbitrary name into a valid C identifier.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static String toIdentifier(String name) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != name.length(); ++i) {
+			char c = name.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return sb.toString();
+	}
 
+	/**
+	 * Write the table mapping instrumentation identifiers back to the names
+	 * of functions and loops, and register it with the profiling backend.
+	 * Identifiers are numbered from zero in each module, and the backend
+	 * offsets them such that they are unique across the program. This is
+	 * only included when a profiling backend is used.
+	 */
+	private void writeProfileNames() {
+		out.println("#ifdef WY_PROFILE");
+		out.println("static const char *const wy_prof_module_names[] = {");
+		for (int i = 0; i != profileNames.size(); ++i) {
+			out.println("    \"" + profileNames.get(i) + "\",");
+		}
+		out.println("};");
+		out.println();
+		out.println("WY_PROF_MODULE(wy_prof_module_names, " + profileNames.size() + ")");
+		out.println("#endif");
 	}
 
-	private void write(FunctionOrMethod method) {
+	private void write(String module, FunctionOrMethod method) {
+		CompilerMetrics.Timer timer = startTimer(module, method.name(), CompilerMetrics.ANALYSIS);
+		substitutions.clear();
+		unrolled.clear();
+		fused.clear();
+		scalarised.clear();
+		scopes.clear();
+		loopScope = 0;
+		breakScope = 0;
+		activeLoops.clear();
+		temporaries = 0;
+		currentMethod = method;
+		ranges = summaries != null ? summaries.analysisFor(method) : new IntegerRangeAnalysis();
+		if (structureOfArrays) {
+			soaVariables = soaAnalysis.apply(method);
+		}
+		pointerParameters = getArrayParameters(method);
+		arrayVariables = getArrayVariables(method);
+		arrayVariables.removeAll(soaVariables);
+		Set<Location<VariableDeclaration>> modifiedParameters = new AliasAnalysis().getModifiedParameters(method);
+		stopTimer(timer, counter.getCount());
 		//
+		timer = startTimer(module, method.name(), CompilerMetrics.EMISSION);
+		long start = counter.getCount();
 		if(verbose) {
 			writeLocationsAsComments(method.getTree());
 		}
 		//
 		Type.FunctionOrMethod ft = method.type();
+		int entry = sourceMap == null ? -1 : sourceMap.enter(counter.getLine(), method.name());
 
-		writeReturns(ft.returns());
-		out.print(" ");
-		out.print(method.name());
-		writeParameters(method);
+		writeSignature(method);
 		//
 		if (method.getBody() != null) {
 			out.println(" {");
+			if (instrumentFunctions) {
+				currentProfileId = allocateProfileId(method.name());
+				tabIndent(1);
+				out.println("WY_FUNC_ENTER(" + currentProfileId + ");");
+			}
+			scopes.add(new ArrayList<String>());
+			writeParameterCopies(modifiedParameters);
+			writeOriginalParameters(method, modifiedParameters);
+			writeChecks(1, "requires", method.getPrecondition());
 			writeBlock(0, method.getBody());
+			Location<Bytecode.Block> body = method.getBody();
+			int n = body.numberOfOperands();
+			if (hasReleases(0) && (n == 0 || !isTerminal(body.getOperand(n - 1)))) {
+				tabIndent(1);
+				writeReleases(0);
+				out.println();
+			}
+			scopes.clear();
+			if (instrumentFunctions && ft.returns().length == 0) {
+				tabIndent(1);
+				out.println("WY_FUNC_EXIT(" + currentProfileId + ");");
+			}
 			out.println("}");
+		} else {
+			out.println(";");
+		}
+		if (sourceMap != null) {
+			sourceMap.exit(entry, counter.getLine() - 1);
+		}
+		stopTimer(timer, start);
+	}
+
+	/**
+	 * Copy any array parameters which are modified into locals, such that
+	 * modifications are not visible to the caller. The parameter itself is
+	 * renamed (see {@link #getParameterName(Location, Set)}), and the copy is
+	 * released on exit from the function or method.
+	 *
+	 * @param modified
+	 */
+	private void writeParameterCopies(Set<Location<VariableDeclaration>> modified) {
+		for (Location<VariableDeclaration> param : pointerParameters) {
+			if (modified.contains(param)) {
+				String name = param.getBytecode().getName();
+				String input = getParameterName(param, modified);
+				tabIndent(1);
+				writeType(param.getType());
+				if (isPackedBoolArray(param.getType())) {
+					out.println(" *" + name + " = bitarr_copy(" + input + ");");
+				} else {
+					out.print(" *" + name + " = arr_copy(");
+					writeType(param.getType());
+					out.println(", " + input + ");");
+				}
+				scopes.get(0).add("wy_free(" + name + ")");
+			}
+		}
+	}
+
+	/**
+	 * Ensure postconditions can access the original values of any modified
+	 * parameters, since postconditions refer to these rather than to their
+	 * values on return. Array parameters are copied on entry and, hence, the
+	 * original remains accessible through the parameter itself. Other
+	 * parameters are saved on entry. This is unnecessary when postconditions
+	 * are not checked.
+	 *
+	 * @param method
+	 * @param modified
+	 */
+	private void writeOriginalParameters(FunctionOrMethod method, Set<Location<VariableDeclaration>> modified) {
+		if (checkMode == CheckMode.STRIP || method.getPostcondition().length == 0) {
+			return;
+		}
+		Map<Location<VariableDeclaration>, String> originals = new IdentityHashMap<Location<VariableDeclaration>, String>();
+		for (Location<VariableDeclaration> param : modified) {
+			String name = param.getBytecode().getName();
+			if (param.getType() instanceof Type.Array) {
+				originals.put(param, "(*" + getParameterName(param, modified) + ")");
+			} else {
+				tabIndent(1);
+				writeType(param.getType());
+				out.println(" _old_" + name + " = " + name + ";");
+				originals.put(param, "_old_" + name);
+			}
+		}
+		for (Location<?> condition : method.getPostcondition()) {
+			substituteOriginalParameters(condition, originals);
+		}
+	}
+
+	/**
+	 * Substitute the accesses of modified parameters within a given
+	 * postcondition with their original values.
+	 *
+	 * @param expr
+	 * @param originals
+	 */
+	private void substituteOriginalParameters(Location<?> expr, Map<Location<VariableDeclaration>, String> originals) {
+		if (isVariable(expr)) {
+			String original = originals.get(getVariableDeclaration(expr.getOperand(0)));
+			if (original != null) {
+				substitutions.put(expr, original);
+			}
+			return;
+		}
+		for (Location<?> operand : expr.getOperands()) {
+			substituteOriginalParameters(operand, originals);
+		}
+		for (int i = 0; i != expr.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : expr.getOperandGroup(i)) {
+				substituteOriginalParameters(operand, originals);
+			}
+		}
+	}
+
+	/**
+	 * Determine the name of a given parameter in the signature of its
+	 * function or method. Modified array parameters are copied into a local
+	 * with the declared name and, hence, the parameter itself is renamed.
+	 *
+	 * @param param
+	 * @param modified
+	 * @return
+	 */
+	private static String getParameterName(Location<VariableDeclaration> param,
+			Set<Location<VariableDeclaration>> modified) {
+		String name = param.getBytecode().getName();
+		if (param.getType() instanceof Type.Array && modified.contains(param)) {
+			return "_in_" + name;
+		}
+		return name;
+	}
+
+	/**
+	 * Determine the parameters of a given function or method which have
+	 * array type and, hence, are passed by pointer.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<Location<VariableDeclaration>> getArrayParameters(FunctionOrMethod fm) {
+		Set<Location<VariableDeclaration>> params = Collections
+				.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+		Type[] types = fm.type().params();
+		for (int i = 0; i != types.length; ++i) {
+			if (types[i] instanceof Type.Array) {
+				params.add((Location<VariableDeclaration>) fm.getTree().getLocation(i));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Determine the local variables of a given function or method which are
+	 * arrays and, hence, are held by pointer. This includes the variable
+	 * naming the return value.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<Location<VariableDeclaration>> getArrayVariables(FunctionOrMethod fm) {
+		Set<Location<VariableDeclaration>> vars = Collections
+				.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+		List<Location<?>> locations = fm.getTree().getLocations();
+		for (int i = fm.type().params().length; i < locations.size(); ++i) {
+			Location<?> loc = locations.get(i);
+			if ((loc.getOpcode() == Bytecode.OPCODE_vardecl || loc.getOpcode() == Bytecode.OPCODE_vardeclinit)
+					&& loc.getType() instanceof Type.Array) {
+				vars.add((Location<VariableDeclaration>) loc);
+			}
+		}
+		return vars;
+	}
+
+	/**
+	 * Check whether a given function or method allocates the storage of an
+	 * array value directly. That is, it declares a local array or contains an
+	 * array generator or initialiser.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	private static boolean hasArrayValues(FunctionOrMethod fm) {
+		for (Location<?> loc : fm.getTree().getLocations()) {
+			if (loc.getOpcode() == Bytecode.OPCODE_array || loc.getOpcode() == Bytecode.OPCODE_arraygen) {
+				return true;
+			}
+		}
+		return !getArrayVariables(fm).isEmpty();
+	}
+
+	/**
+	 * Determine the functions and methods being written which may allocate
+	 * storage with <code>wy_alloc()</code>. A function allocates directly
+	 * when it copies a modified array parameter, declares a local array
+	 * (including the variable naming an array it returns), or constructs an
+	 * array value. It also allocates when it invokes one which does, where
+	 * any function or method in another module is conservatively assumed
+	 * to.
+	 *
+	 * @return
+	 */
+	private Set<FunctionOrMethod> getAllocatingFunctions() {
+		Set<FunctionOrMethod> direct = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		AliasAnalysis aliasing = new AliasAnalysis();
+		for (FunctionOrMethod fm : functions) {
+			Set<Location<VariableDeclaration>> copied = getArrayParameters(fm);
+			copied.retainAll(aliasing.getModifiedParameters(fm));
+			if (!copied.isEmpty() || hasArrayValues(fm)) {
+				direct.add(fm);
+			}
+		}
+		return getTransitiveCallers(direct);
+	}
+
+	/**
+	 * Determine the functions and methods being written which may perform a
+	 * contract check. Unless checks are stripped, a function checks
+	 * directly when it has a pre- or postcondition, or contains an
+	 * assertion, assumption or <code>fail</code>. It also checks when it
+	 * invokes one which does, where any function or method in another module
+	 * is conservatively assumed to.
+	 *
+	 * @return
+	 */
+	private Set<FunctionOrMethod> getCheckingFunctions() {
+		Set<FunctionOrMethod> direct = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		if (checkMode == CheckMode.STRIP) {
+			return direct;
+		}
+		for (FunctionOrMethod fm : functions) {
+			boolean checks = fm.getPrecondition().length > 0 || fm.getPostcondition().length > 0;
+			for (Location<?> loc : fm.getTree().getLocations()) {
+				switch (loc.getOpcode()) {
+				case Bytecode.OPCODE_assert:
+				case Bytecode.OPCODE_assume:
+				case Bytecode.OPCODE_fail:
+					checks = true;
+				}
+			}
+			if (checks) {
+				direct.add(fm);
+			}
+		}
+		return getTransitiveCallers(direct);
+	}
+
+	/**
+	 * Determine the functions and methods being written which are in a given
+	 * set, or which invoke (directly or indirectly) one which is. Any
+	 * function or method in another module is conservatively assumed to be
+	 * in the set.
+	 *
+	 * @param direct
+	 * @return
+	 */
+	private Set<FunctionOrMethod> getTransitiveCallers(Set<FunctionOrMethod> direct) {
+		Set<FunctionOrMethod> result = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		Set<FunctionOrMethod> written = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		written.addAll(functions);
+		// NOTE: components are ordered such that callees are visited first.
+		// Since the functions written are closed under callees, a component
+		// is either written in its entirety or not at all.
+		for (List<FunctionOrMethod> component : graph.getStronglyConnectedComponents()) {
+			if (!written.contains(component.get(0))) {
+				continue;
+			}
+			boolean member = false;
+			for (FunctionOrMethod fm : component) {
+				member |= direct.contains(fm);
+				for (Location<?> loc : fm.getTree().getLocations()) {
+					if (loc.getOpcode() == Bytecode.OPCODE_invoke) {
+						FunctionOrMethod target = graph.resolve((Bytecode.Invoke) loc.getBytecode());
+						member |= target == null || result.contains(target);
+					}
+				}
+			}
+			if (member) {
+				result.addAll(component);
+			}
+		}
+		return result;
+	}
+
+	private void writeSignature(FunctionOrMethod method) {
+		Type.FunctionOrMethod ft = method.type();
+		writeAttributes(method);
+		writeReturns(ft.returns());
+		out.print(" ");
+		out.print(method.name());
+		writeParameters(method);
+	}
+
+	/**
+	 * Allocate a fresh instrumentation identifier with a given name. Since
+	 * the profile covers every module in the program, the name is qualified
+	 * with that of the module.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private int allocateProfileId(String name) {
+		profileNames.add(moduleName + "::" + name);
+		return profileNames.size() - 1;
+	}
+
+	private CompilerMetrics.Timer startTimer(String module, String function, String phase) {
+		return metrics == null ? null : metrics.start(module, function, phase);
+	}
+
+	/**
+	 * Stop a timer (if metrics are enabled), recording the number of bytes
+	 * emitted since a given starting point.
+	 *
+	 * @param timer
+	 * @param start
+	 */
+	private void stopTimer(CompilerMetrics.Timer timer, long start) {
+		if (timer != null) {
+			timer.stop(counter.getCount() - start);
 		}
 	}
 
 	private void writeLocationsAsComments(SyntaxTree tree) {
 		List<Location<?>> locations = tree.getLocations();
+		StringBuilder sb = new StringBuilder();
 		for(int i=0;i!=locations.size();++i) {
 			Location<?> loc = locations.get(i);
-			String id = String.format("%1$" + 3 + "s", "#" + i);
-			String type = String.format("%1$-" + 8 + "s", Arrays.toString(loc.getTypes()));
-			out.println("// " + id + " " + type + " " + loc.getBytecode());
+			sb.setLength(0);
+			sb.append("// ");
+			pad(sb, "#" + i, 3, false);
+			sb.append(' ');
+			pad(sb, Arrays.toString(loc.getTypes()), 8, true);
+			sb.append(' ').append(loc.getBytecode());
+			out.println(sb);
 		}
 	}
 
+	/**
+	 * Append a given string padded with spaces to a minimum width, either on
+	 * the right (i.e. left-justified) or on the left.
+	 *
+	 * @param sb
+	 * @param str
+	 * @param width
+	 * @param left
+	 */
+	private static void pad(StringBuilder sb, String str, int width, boolean left) {
+		if (left) {
+			sb.append(str);
+		}
+		for (int i = str.length(); i < width; ++i) {
+			sb.append(' ');
+		}
+		if (!left) {
+			sb.append(str);
+		}
+	}
+
+	/**
+	 * Write the attributes for a given function or method. Since functions
+	 * are pure, they are marked as such so the C compiler can optimise
+	 * across calls to them. Functions which accept only scalar parameters
+	 * cannot read any memory other than their arguments and, hence, are
+	 * additionally marked as const. This is not the case for those which
+	 * allocate, since <code>wy_alloc()</code> reads and updates the state of
+	 * the allocator. Functions which may perform a contract check are not
+	 * marked at all, since the C compiler could otherwise remove a call
+	 * whose result is unused and, with it, the check. Likewise, functions
+	 * returning an array are not marked, since each call yields fresh
+	 * storage which the caller releases, and merging two calls would release
+	 * it twice.
+	 *
+	 * @param fm
+	 */
+	private void writeAttributes(FunctionOrMethod fm) {
+		Type.FunctionOrMethod ft = fm.type();
+		if (ft instanceof Type.Function && !checking.contains(fm) && !returnsArray(ft)) {
+			boolean scalar = !allocating.contains(fm);
+			for (Type param : ft.params()) {
+				scalar &= CTypeTable.isPrimitive(param);
+			}
+			out.print(scalar ? "WY_CONST " : "WY_PURE ");
+		}
+	}
 
+	private static boolean returnsArray(Type.FunctionOrMethod ft) {
+		Type[] returns = ft.returns();
+		return returns.length == 1 && returns[0] instanceof Type.Array;
+	}
+
+	/**
+	 * Write the return type of a function or method. An array is returned
+	 * by pointer, and its storage is then owned by the caller.
+	 *
+	 * @param returns
+	 */
 	private void writeReturns(Type[] returns) {
 		if(returns.length > 1) {
 			throw new RuntimeException("Missing support for multiple returns");
@@ -114,34 +1206,226 @@ public final class EmbeddedCFilePrinter {
 			out.print("void");
 		} else {
 			writeType(returns[0]);
+			if (returns[0] instanceof Type.Array) {
+				out.print(" *");
+			}
 		}
 	}
+	/**
+	 * Write the parameters of a given function or method. Array parameters
+	 * are passed by pointer to <code>const</code>, since those which are
+	 * modified are copied on entry (see
+	 * {@link #writeParameterCopies(Set)}). Such pointers are also qualified
+	 * with <code>restrict</code>, where this is sound.
+	 *
+	 * @param fm
+	 */
 	private void writeParameters(WyilFile.FunctionOrMethod fm) {
 		Type.FunctionOrMethod ft = fm.type();
 		SyntaxTree tree = fm.getTree();
 		Type[] parameters = ft.params();
+		AliasAnalysis aliasing = new AliasAnalysis();
+		Set<Location<VariableDeclaration>> modified = aliasing.getModifiedParameters(fm);
+		boolean restricted = restrict && aliasing.isRestrictSafe(fm);
 		out.print("(");
 		for (int i = 0; i != parameters.length; ++i) {
 			if (i != 0) {
 				out.print(", ");
 			}
-			writeType(parameters[i]);
-			out.print(" ");
 			Location<VariableDeclaration> d = (Location<VariableDeclaration>) tree.getLocation(i);
-			out.print(d.getBytecode().getName());
+			if (parameters[i] instanceof Type.Array) {
+				out.print("const ");
+				writeType(parameters[i]);
+				out.print(restricted ? " *restrict " : " *");
+			} else {
+				writeType(parameters[i]);
+				out.print(" ");
+			}
+			out.print(getParameterName(d, modified));
 		}
 		out.print(")");
 	}
 
 	private void writeBlock(int indent, Location<Bytecode.Block> block) {
+		writeBlock(indent, block, null);
+	}
+
+	/**
+	 * Write the statements of a given block, except for a given statement
+	 * which is omitted (e.g. the step of an unrolled loop).
+	 *
+	 * @param indent
+	 * @param block
+	 * @param omitted
+	 *            Statement to omit, or null.
+	 */
+	private void writeBlock(int indent, Location<Bytecode.Block> block, Location<?> omitted) {
+		Map<Location<?>, List<List<Location<?>>>> common = Collections.emptyMap();
+		if (commonSubexpressionElimination) {
+			common = new CommonSubexpressionAnalysis(checkMode != CheckMode.STRIP).apply(block);
+		}
+		LoopUnrolling unrolling = new LoopUnrolling(ranges, unrollThreshold);
+		for (int i = 0; i != block.numberOfOperands(); ++i) {
+			Location<?> stmt = block.getOperand(i);
+			if (unrollThreshold > 0 && stmt.getOpcode() == Bytecode.OPCODE_while) {
+				LoopUnrolling.Unrolling u = unrolling.apply(block, i);
+				if (u != null) {
+					unrolled.put(stmt, u);
+				}
+			}
+		}
+		// NOTE: fusion must be determined before any statement is written,
+		// since it affects the declarations of scalarised arrays.
+		Set<Location<?>> absorbed = applyLoopFusion(block);
+		scopes.add(new ArrayList<String>());
+		Location<?> last = null;
 		for (int i = 0; i != block.numberOfOperands(); ++i) {
-			writeStatement(indent, block.getOperand(i));
+			Location<?> stmt = block.getOperand(i);
+			if (stmt == omitted || absorbed.contains(stmt)) {
+				continue;
+			}
+			List<List<Location<?>>> groups = common.get(stmt);
+			if (groups != null) {
+				writeCommonSubexpressions(indent, groups);
+			}
+			writeStatement(indent, stmt);
+			last = stmt;
+		}
+		// Release storage when control falls off the end of the block
+		int depth = scopes.size() - 1;
+		if (hasReleases(depth) && (last == null || !isTerminal(last))) {
+			tabIndent(indent + 1);
+			writeReleases(depth);
+			out.println();
+		}
+		scopes.remove(depth);
+	}
+
+	/**
+	 * Check whether control never proceeds past a given statement.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private static boolean isTerminal(Location<?> stmt) {
+		switch (stmt.getOpcode()) {
+		case Bytecode.OPCODE_break:
+		case Bytecode.OPCODE_continue:
+		case Bytecode.OPCODE_return:
+		case Bytecode.OPCODE_fail:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether any storage must be released on leaving the enclosing
+	 * blocks from a given depth upwards.
+	 *
+	 * @param depth
+	 * @return
+	 */
+	private boolean hasReleases(int depth) {
+		for (int i = depth; i < scopes.size(); ++i) {
+			if (!scopes.get(i).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Release the storage of the enclosing blocks from a given depth upwards,
+	 * in the reverse order of allocation. This is written on a single line,
+	 * immediately before the statement leaving those blocks.
+	 *
+	 * @param depth
+	 */
+	private void writeReleases(int depth) {
+		writeReleases(depth, null);
+	}
+
+	/**
+	 * Release the storage of the enclosing blocks from a given depth upwards,
+	 * except for that of an array being returned.
+	 *
+	 * @param depth
+	 * @param retained
+	 *            Release which is omitted, or null.
+	 */
+	private void writeReleases(int depth, String retained) {
+		for (int i = scopes.size() - 1; i >= depth; --i) {
+			List<String> scope = scopes.get(i);
+			for (int j = scope.size() - 1; j >= 0; --j) {
+				if (!scope.get(j).equals(retained)) {
+					out.print(scope.get(j) + "; ");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine the loops in a given block which are fused, excluding those
+	 * being unrolled. Accesses of the variables of fused loops and quantifiers
+	 * are replaced by the variable of the first loop, and element accesses of
+	 * scalarised arrays by the scalar.
+	 *
+	 * @param block
+	 * @return The statements absorbed into a fused loop, which are not
+	 *         written in their original position.
+	 */
+	private Set<Location<?>> applyLoopFusion(Location<Bytecode.Block> block) {
+		Set<Location<?>> absorbed = Collections.newSetFromMap(new IdentityHashMap<Location<?>, Boolean>());
+		if (!loopFusion) {
+			return absorbed;
+		}
+		LoopFusion fusion = checkMode == CheckMode.STRIP ? new LoopFusion(ranges)
+				: new LoopFusion(ranges, graph, checking);
+		for (LoopFusion.Fusion f : fusion.apply(block, unrolled.keySet())) {
+			fused.put(f.getLoop(), f);
+			absorbed.addAll(f.getLoops());
+			absorbed.addAll(f.getInitialisers());
+			String name = f.getVariable().getBytecode().getName();
+			for (Location<?> access : f.getAccesses()) {
+				substitutions.put(access, name);
+			}
+			for (Map.Entry<Location<VariableDeclaration>, List<Location<?>>> e : f.getScalarised().entrySet()) {
+				scalarised.add(e.getKey());
+				for (Location<?> access : e.getValue()) {
+					substitutions.put(access, e.getKey().getBytecode().getName());
+				}
+			}
+		}
+		return absorbed;
+	}
+
+	/**
+	 * Evaluate each group of equivalent expressions into a temporary variable.
+	 * Every occurrence in the group is then written as that temporary.
+	 *
+	 * @param indent
+	 * @param groups
+	 */
+	private void writeCommonSubexpressions(int indent, List<List<Location<?>>> groups) {
+		for (List<Location<?>> group : groups) {
+			Location<?> expr = group.get(0);
+			if (substitutions.containsKey(expr) || !isSupportedType(expr) || (expr.getOpcode() == Bytecode.OPCODE_arrayindex
+					&& isStructureOfArraysAccess(expr.getOperand(0)))) {
+				continue;
+			}
+			tabIndent(indent + 1);
+			String var = writeTemporary(expr, "_cse");
+			for (Location<?> occurrence : group) {
+				substitutions.put(occurrence, var);
+			}
 		}
 	}
 
 	@SuppressWarnings("unchecked")
 	private void writeStatement(int indent, Location<?> c) {
+		int entry = sourceMap == null ? -1 : sourceMap.enter(counter.getLine(), c);
 		tabIndent(indent+1);
+		writeArgumentTemporaries(indent, c);
 		switch(c.getOpcode()) {
 		case Bytecode.OPCODE_aliasdecl:
 			writeAliasDeclaration(indent, (Location<Bytecode.AliasDeclaration>) c);
@@ -202,6 +1486,140 @@ public final class EmbeddedCFilePrinter {
 		default:
 			throw new IllegalArgumentException("unknown bytecode encountered");
 		}
+		if (sourceMap != null) {
+			sourceMap.exit(entry, counter.getLine() - 1);
+		}
+	}
+
+	/**
+	 * Evaluate any array values within a given statement into temporaries,
+	 * where they are not already stored (e.g. the result of an invocation,
+	 * or an array generator passed as an argument). This is necessary since
+	 * arrays are accessed and passed by pointer, and C cannot take the
+	 * address of such a value. Each temporary is released on exit from the
+	 * enclosing block. A value assigned to a local array or returned is not
+	 * considered, since its storage passes directly to the variable or the
+	 * caller (see writeNewArray). Values whose evaluation is conditional
+	 * (e.g. within the right-hand side of a <code>&&</code>) are not
+	 * considered, nor are those of statements whose expressions are
+	 * evaluated repeatedly (e.g. loop conditions).
+	 *
+	 * @param indent
+	 * @param stmt
+	 */
+	private void writeArgumentTemporaries(int indent, Location<?> stmt) {
+		// NOTE: the statement is traversed as an expression, which is
+		// equivalent since none of these statements contain blocks.
+		// Hence, the statement itself is never a value (e.g. an invocation
+		// statement releases its result, see writeInvoke).
+		Set<Location<?>> owned = Collections.newSetFromMap(new IdentityHashMap<Location<?>, Boolean>());
+		owned.add(stmt);
+		switch (stmt.getOpcode()) {
+		case Bytecode.OPCODE_assign: {
+			Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+			Location<?>[] rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+			if (lhs.length == 1 && rhs.length == 1 && isOwnedArray(lhs[0])) {
+				owned.add(rhs[0]);
+			}
+			break;
+		}
+		case Bytecode.OPCODE_return:
+		case Bytecode.OPCODE_vardeclinit:
+			if (stmt.numberOfOperands() == 1 && stmt.getOperand(0).getType() instanceof Type.Array) {
+				owned.add(stmt.getOperand(0));
+			}
+			break;
+		case Bytecode.OPCODE_debug:
+		case Bytecode.OPCODE_invoke:
+		case Bytecode.OPCODE_indirectinvoke:
+			break;
+		default:
+			return;
+		}
+		List<Location<?>> arguments = new ArrayList<Location<?>>();
+		List<Type> types = new ArrayList<Type>();
+		getArrayArguments(stmt, null, owned, arguments, types);
+		for (int i = 0; i != arguments.size(); ++i) {
+			Location<?> argument = arguments.get(i);
+			Type type = types.get(i);
+			Type elementT = ((Type.Array) type).element();
+			String var = "_arg" + (temporaries++);
+			out.print(getArrayType(type, elementT) + " *" + var + " = ");
+			writeNewArray(type, elementT, argument);
+			out.println(";");
+			scopes.get(scopes.size() - 1).add("wy_free(" + var + ")");
+			substitutions.put(argument, "(*" + var + ")");
+			tabIndent(indent + 1);
+		}
+	}
+
+	/**
+	 * Determine the array values within a given expression which are not
+	 * stored and are always evaluated, such that any value follows those it
+	 * contains. The type of each is that expected by its context, such as
+	 * the parameter type for an argument.
+	 *
+	 * @param expr
+	 * @param expected
+	 *            Type expected by the context of the expression, or null.
+	 * @param owned
+	 *            Expressions whose storage passes elsewhere.
+	 * @param arguments
+	 * @param types
+	 */
+	private void getArrayArguments(Location<?> expr, Type expected, Set<Location<?>> owned,
+			List<Location<?>> arguments, List<Type> types) {
+		if (substitutions.containsKey(expr)) {
+			return;
+		}
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_all:
+		case Bytecode.OPCODE_some:
+		case Bytecode.OPCODE_lambda:
+			return;
+		case Bytecode.OPCODE_logicaland:
+		case Bytecode.OPCODE_logicalor:
+			getArrayArguments(expr.getOperand(0), null, owned, arguments, types);
+			return;
+		}
+		Location<?>[] operands = expr.getOperands();
+		Type[] parameters = new Type[0];
+		if (expr.getOpcode() == Bytecode.OPCODE_invoke) {
+			parameters = ((Bytecode.Invoke) expr.getBytecode()).type().params();
+		}
+		for (int i = 0; i != operands.length; ++i) {
+			getArrayArguments(operands[i], i < parameters.length ? parameters[i] : null, owned, arguments, types);
+		}
+		for (int i = 0; i != expr.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : expr.getOperandGroup(i)) {
+				getArrayArguments(operand, null, owned, arguments, types);
+			}
+		}
+		if (expr.getType() instanceof Type.Array && !owned.contains(expr) && !isStored(expr)) {
+			arguments.add(expr);
+			types.add(expected instanceof Type.Array ? expected : expr.getType());
+		}
+	}
+
+	/**
+	 * Check whether a given expression denotes storage whose address can be
+	 * taken, such as a variable or an element or field thereof.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean isStored(Location<?> expr) {
+		if (substitutions.containsKey(expr)) {
+			return true;
+		}
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+			return true;
+		case Bytecode.OPCODE_arrayindex:
+		case Bytecode.OPCODE_fieldload:
+			return isStored(expr.getOperand(0));
+		}
+		return false;
 	}
 
 	private void writeAliasDeclaration(int indent, Location<AliasDeclaration> loc) {
@@ -213,24 +1631,117 @@ public final class EmbeddedCFilePrinter {
 		out.println(";");
 	}
 	private void writeAssert(int indent, Location<Bytecode.Assert> c) {
-		out.print("assert ");
-		writeExpression(c.getOperand(0));
-		out.println(";");
+		writeCheck("assert", c.getOperand(0));
 	}
 
 	private void writeAssume(int indent, Location<Bytecode.Assume> c) {
-		out.print("assume ");
-		writeExpression(c.getOperand(0));
-		out.println(";");
+		writeCheck("assume", c.getOperand(0));
+	}
+
+	/**
+	 * Write a check for each of a given set of conditions (e.g. the
+	 * preconditions of a function), one per line.
+	 *
+	 * @param indent
+	 * @param kind
+	 * @param conditions
+	 */
+	private void writeChecks(int indent, String kind, Location<?>[] conditions) {
+		if (checkMode == CheckMode.STRIP) {
+			return;
+		}
+		for (Location<?> condition : conditions) {
+			tabIndent(indent);
+			writeCheck(kind, condition);
+		}
+	}
+
+	/**
+	 * Write a check that a given condition holds, according to the check
+	 * mode. Checks which are stripped, or which range analysis shows always
+	 * hold, are written as comments.
+	 *
+	 * @param kind
+	 *            The kind of check (e.g. <code>"assert"</code>).
+	 * @param condition
+	 */
+	private void writeCheck(String kind, Location<?> condition) {
+		if (checkMode == CheckMode.STRIP) {
+			out.println("// " + kind);
+		} else if (ranges.isAlwaysTrue(condition)) {
+			out.println("// " + kind + " (proven)");
+		} else if (checkMode == CheckMode.TRAP) {
+			out.print("WY_CHECK_TRAP(");
+			writeExpression(condition);
+			out.println(");");
+		} else {
+			int code = allocateCheckCode();
+			out.print("WY_CHECK(");
+			writeExpression(condition);
+			out.print(", WY_CHECK_MODULE, " + code + ");");
+			if (verbose) {
+				out.print(" // " + currentMethod.name() + ": " + kind);
+			}
+			out.println();
+		}
+	}
+
+	/**
+	 * Allocate a fresh code identifying a check. Codes are passed to
+	 * <code>wy_check_failed()</code> as a <code>uint16_t</code>. These are
+	 * unique only within a module and, hence, are accompanied by the name of
+	 * the module (see {@link #writeCheckModule()}).
+	 *
+	 * @return
+	 */
+	private int allocateCheckCode() {
+		if (checks > 0xFFFF) {
+			throw new RuntimeException("Too many checks in module");
+		}
+		return checks++;
 	}
 
 	private void writeAssign(int indent, Location<Bytecode.Assign> stmt) {
 		Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
 		Location<?>[] rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+		if (lhs.length == 1 && rhs.length == 1 && isOwnedArray(lhs[0])) {
+			// Local arrays (including copies of parameters) are held by
+			// pointer, so the pointer is reassigned after releasing the old
+			// storage. The new value is computed first, since it may read
+			// the old one.
+			Location<VariableDeclaration> decl = getVariableDeclaration(lhs[0].getOperand(0));
+			String name = decl.getBytecode().getName();
+			String var = "_arr" + (temporaries++);
+			Type elementT = getNarrowedArrays(currentMethod).get(decl);
+			if (elementT == null) {
+				elementT = ((Type.Array) lhs[0].getType()).element();
+			}
+			out.print(getArrayType(lhs[0].getType(), elementT) + " *" + var + " = ");
+			writeNewArray(lhs[0].getType(), elementT, rhs[0]);
+			out.println("; wy_free(" + name + "); " + name + " = " + var + ";");
+			return;
+		} else if (lhs.length == 1 && rhs.length == 1 && lhs[0].getOpcode() == Bytecode.OPCODE_arrayindex
+				&& isPackedBoolArray(lhs[0].getOperand(0).getType()) && !substitutions.containsKey(lhs[0])) {
+			// Element update of a packed boolean array
+			out.print("bitarr_set(");
+			writeExpression(lhs[0].getOperand(0));
+			out.print(", ");
+			writeExpression(lhs[0].getOperand(1));
+			out.print(", ");
+			writeExpression(rhs[0]);
+			out.println(");");
+			return;
+		}
 		if(lhs.length > 0) {
 			for(int i=0;i!=lhs.length;++i) {
 				if(i!=0) { out.print(", "); }
-				writeExpression(lhs[i]);
+				if (lhs[i].getOpcode() == Bytecode.OPCODE_arrayindex && !substitutions.containsKey(lhs[i])
+						&& getNarrowedElementType(lhs[i].getOperand(0)) != null) {
+					// NOTE: the assigned value is known to fit
+					writeArrayElement(lhs[i]);
+				} else {
+					writeExpression(lhs[i]);
+				}
 			}
 			out.print(" = ");
 		}
@@ -238,11 +1749,46 @@ public final class EmbeddedCFilePrinter {
 		out.println(";");
 	}
 
+	/**
+	 * Check whether a given expression is a variable holding an array whose
+	 * storage is owned by the function or method being written. That is, a
+	 * local array or the copy of a modified array parameter, each of which is
+	 * released on exit from the block declaring it.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean isOwnedArray(Location<?> expr) {
+		if (!isVariable(expr) || !(expr.getType() instanceof Type.Array) || substitutions.containsKey(expr)) {
+			return false;
+		}
+		Location<VariableDeclaration> decl = getVariableDeclaration(expr.getOperand(0));
+		return arrayVariables.contains(decl) || isReleased("wy_free(" + decl.getBytecode().getName() + ")");
+	}
+
+	/**
+	 * Check whether a given release is written on exit from any enclosing
+	 * block.
+	 *
+	 * @param release
+	 * @return
+	 */
+	private boolean isReleased(String release) {
+		for (List<String> scope : scopes) {
+			if (scope.contains(release)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void writeBreak(int indent, Location<Bytecode.Break> b) {
+		writeReleases(breakScope);
 		out.println("break;");
 	}
 
 	private void writeContinue(int indent, Location<Bytecode.Continue> b) {
+		writeReleases(loopScope);
 		out.println("continue;");
 	}
 
@@ -251,28 +1797,30 @@ public final class EmbeddedCFilePrinter {
 	}
 
 	private void writeDoWhile(int indent, Location<Bytecode.DoWhile> b) {
-		Location<?>[] loopInvariant = b.getOperandGroup(0);
-		Location<?>[] modifiedOperands = b.getOperandGroup(1);
-		out.println("do:");
-		//
-		writeBlock(indent+1,b.getBlock(0));
+		writeHoistedExpressions(indent, b);
+		int id = writeLoopEnter(indent);
+		out.println("do {");
+		writeLoopBody(indent, b.getBlock(0));
 		tabIndent(indent+1);
-		out.print("while ");
+		out.print("} while(");
 		writeExpression(b.getOperand(0));
-		out.print(" modifies ");
-		writeExpressions(modifiedOperands);
-		for(Location<?> invariant : loopInvariant) {
-			out.println();
-			tabIndent(indent+1);
-			out.print("where ");
-			writeExpression(invariant);
-		}
-		// FIXME: add invariants
-		out.println();
+		out.println(");");
+		writeLoopExit(indent, id);
 	}
 
 	private void writeFail(int indent, Location<Bytecode.Fail> c) {
-
+		switch (checkMode) {
+		case STRIP:
+			// NOTE: unlike a check, a fail cannot simply be omitted since
+			// control would then proceed past it.
+			out.println("WY_TRAP();");
+			break;
+		case TRAP:
+			out.println("WY_TRAP();");
+			break;
+		default:
+			out.println("wy_check_failed(WY_CHECK_MODULE, " + allocateCheckCode() + ");");
+		}
 	}
 
 	private void writeIf(int indent, Location<Bytecode.If> b) {
@@ -304,77 +1852,398 @@ public final class EmbeddedCFilePrinter {
 		out.println(")");
 	}
 	private void writeInvoke(int indent, Location<Bytecode.Invoke> stmt) {
-		out.print(stmt.getBytecode().name() + "(");
-		Location<?>[] operands = stmt.getOperands();
-		for(int i=0;i!=operands.length;++i) {
-			if(i!=0) {
-				out.print(", ");
+		if (returnsArray(stmt.getBytecode().type())) {
+			// The result is owned by the caller and, being unused, is
+			// released immediately
+			out.print("wy_free(");
+			writeInvoke(stmt);
+			out.println(");");
+			return;
+		}
+		writeInvoke(stmt);
+		out.println(";");
+	}
+
+	private void writeNamedBlock(int indent, Location<Bytecode.NamedBlock> b) {
+		out.print(b.getBytecode().getName());
+		out.println(":");
+		writeBlock(indent+1,b.getBlock(0));
+	}
+
+	private void writeWhile(int indent, Location<Bytecode.While> b) {
+		LoopUnrolling.Unrolling u = unrolled.get(b);
+		LoopFusion.Fusion f = fused.get(b);
+		if (u != null) {
+			writeUnrolledLoop(indent, b, u);
+			return;
+		} else if (f != null) {
+			writeFusedLoop(indent, b, f);
+			return;
+		}
+		writeHoistedExpressions(indent, b);
+		int id = writeLoopEnter(indent);
+		out.print("while(");
+		writeExpression(b.getOperand(0));
+		out.println(") {");
+		writeLoopBody(indent, b.getBlock(0));
+		tabIndent(indent+1);out.println("}");
+		writeLoopExit(indent, id);
+	}
+
+	/**
+	 * Write the body of a while or do-while loop, which is the statement left
+	 * by any <code>break</code> or <code>continue</code> within it.
+	 *
+	 * @param indent
+	 * @param body
+	 */
+	private void writeLoopBody(int indent, Location<Bytecode.Block> body) {
+		int enclosingLoop = loopScope;
+		int enclosingBreak = breakScope;
+		loopScope = breakScope = scopes.size();
+		writeBlock(indent + 1, body);
+		loopScope = enclosingLoop;
+		breakScope = enclosingBreak;
+	}
+
+	/**
+	 * Write a loop as a sequence of copies of its body, one per iteration,
+	 * where the loop variable is replaced by its value in each. Each copy is
+	 * enclosed in braces, since it may declare variables. The loop variable
+	 * is then assigned its final value, as it may be used after the loop.
+	 *
+	 * @param indent
+	 * @param b
+	 * @param u
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeUnrolledLoop(int indent, Location<Bytecode.While> b, LoopUnrolling.Unrolling u) {
+		for (BigInteger value : u.getValues()) {
+			Map<Location<?>, String> saved = substitute(u, value);
+			out.println("{");
+			writeBlock(indent + 1, (Location<Bytecode.Block>) b.getBlock(0), u.getStep());
+			tabIndent(indent + 1);
+			out.println("}");
+			tabIndent(indent + 1);
+			restore(saved);
+		}
+		out.println(u.getVariable().getBytecode().getName() + " = " + u.getExitValue() + ";");
+	}
+
+	/**
+	 * Write a loop into which subsequent loops and quantifiers are fused. The
+	 * variables of subsequent loops are initialised beforehand, and assigned
+	 * the final value of the first loop's variable afterwards. Each body is
+	 * enclosed in braces, since they may declare variables of the same name.
+	 * Each quantifier is accumulated into a temporary variable, which is
+	 * subsequently written in its place.
+	 *
+	 * @param indent
+	 * @param b
+	 * @param f
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeFusedLoop(int indent, Location<Bytecode.While> b, LoopFusion.Fusion f) {
+		for (Location<?> init : f.getInitialisers()) {
+			if (init.getOpcode() == Bytecode.OPCODE_assign) {
+				writeAssign(indent, (Location<Bytecode.Assign>) init);
+			} else {
+				writeVariableDeclaration(indent, (Location<VariableDeclaration>) init);
+			}
+			tabIndent(indent + 1);
+		}
+		for (Location<?> q : f.getScans()) {
+			String var = "_fuse" + (temporaries++);
+			substitutions.put(q, var);
+			out.println("bool " + var + " = " + (q.getOpcode() == Bytecode.OPCODE_all) + ";");
+			tabIndent(indent + 1);
+		}
+		writeHoistedExpressions(indent, b);
+		int id = writeLoopEnter(indent);
+		out.print("while(");
+		writeExpression(b.getOperand(0));
+		out.println(") {");
+		writeFusedBody(indent, (Location<Bytecode.Block>) b.getBlock(0), f.getStep());
+		for (int i = 0; i != f.getLoops().size(); ++i) {
+			Location<?> loop = f.getLoops().get(i);
+			writeFusedBody(indent, (Location<Bytecode.Block>) loop.getBlock(0), f.getSteps().get(i));
+		}
+		for (Location<?> q : f.getScans()) {
+			String var = substitutions.get(q);
+			tabIndent(indent + 2);
+			out.print(var + " = " + var + (q.getOpcode() == Bytecode.OPCODE_all ? " && " : " || "));
+			writeBracketedExpression(q.getOperand(SyntaxTree.CONDITION));
+			out.println(";");
+		}
+		writeStatement(indent + 1, f.getStep());
+		tabIndent(indent + 1);
+		out.println("}");
+		writeLoopExit(indent, id);
+		for (Location<VariableDeclaration> var : f.getVariables()) {
+			tabIndent(indent + 1);
+			out.println(var.getBytecode().getName() + " = " + f.getVariable().getBytecode().getName() + ";");
+		}
+	}
+
+	private void writeFusedBody(int indent, Location<Bytecode.Block> body, Location<?> step) {
+		tabIndent(indent + 2);
+		out.println("{");
+		writeBlock(indent + 2, body, step);
+		tabIndent(indent + 2);
+		out.println("}");
+	}
+
+	/**
+	 * Replace every access of an unrolled variable with a given value. Any
+	 * temporaries introduced whilst writing a copy of the body are local to
+	 * that copy and, hence, the substitutions in force beforehand are
+	 * returned so they can be restored afterwards.
+	 *
+	 * @param u
+	 * @param value
+	 * @return
+	 */
+	private Map<Location<?>, String> substitute(LoopUnrolling.Unrolling u, BigInteger value) {
+		Map<Location<?>, String> saved = new IdentityHashMap<Location<?>, String>(substitutions);
+		String constant = value.signum() < 0 ? "(" + value + ")" : value.toString();
+		for (Location<?> access : u.getAccesses()) {
+			substitutions.put(access, constant);
+		}
+		return saved;
+	}
+
+	private void restore(Map<Location<?>, String> saved) {
+		substitutions.clear();
+		substitutions.putAll(saved);
+	}
+
+	/**
+	 * Write the instrumentation for entering a loop (if enabled). Loops are
+	 * named after their enclosing function or method. Since
+	 * <code>WY_LOOP_ENTER</code> may declare a variable, the loop is enclosed
+	 * in a block which is closed by {@link #writeLoopExit(int, int)}.
+	 *
+	 * @param indent
+	 * @return The instrumentation identifier for the loop, or -1 if loops are
+	 *         not instrumented.
+	 */
+	private int writeLoopEnter(int indent) {
+		if (!instrumentLoops) {
+			return -1;
+		}
+		int id = allocateProfileId(currentMethod.name() + ":loop" + profileNames.size());
+		out.println("{ WY_LOOP_ENTER(" + id + ");");
+		tabIndent(indent + 1);
+		activeLoops.add(id);
+		return id;
+	}
+
+	private void writeLoopExit(int indent, int id) {
+		if (id >= 0) {
+			activeLoops.remove(activeLoops.size() - 1);
+			tabIndent(indent + 1);
+			out.println("WY_LOOP_EXIT(" + id + "); }");
+		}
+	}
+
+	/**
+	 * Write the instrumentation for leaving the function or method currently
+	 * being written, along with every loop enclosing the current statement.
+	 * This is written on a single line, immediately before a return.
+	 */
+	private void writeFunctionExit() {
+		for (int i = activeLoops.size() - 1; i >= 0; --i) {
+			out.print("WY_LOOP_EXIT(" + activeLoops.get(i) + "); ");
+		}
+		if (instrumentFunctions) {
+			out.print("WY_FUNC_EXIT(" + currentProfileId + "); ");
+		}
+	}
+
+	/**
+	 * Evaluate the loop invariant expressions of a given loop into temporary
+	 * variables immediately before it. Subsequent occurrences of those
+	 * expressions are then written as the temporary instead.
+	 *
+	 * @param indent
+	 * @param loop
+	 */
+	private void writeHoistedExpressions(int indent, Location<?> loop) {
+		if (!loopInvariantHoisting) {
+			return;
+		}
+		for (Location<?> expr : new LoopInvariantAnalysis().apply(loop)) {
+			if (!substitutions.containsKey(expr) && isSupportedType(expr)) {
+				String var = writeTemporary(expr, "_licm");
+				substitutions.put(expr, var);
+				tabIndent(indent + 1);
 			}
-			writeExpression(operands[i]);
 		}
-		out.println(")");
-	}
-
-	private void writeNamedBlock(int indent, Location<Bytecode.NamedBlock> b) {
-		out.print(b.getBytecode().getName());
-		out.println(":");
-		writeBlock(indent+1,b.getBlock(0));
 	}
 
-	private void writeWhile(int indent, Location<Bytecode.While> b) {
-		out.print("while(");
-		writeExpression(b.getOperand(0));
-		out.println(") {");
-		writeBlock(indent+1,b.getBlock(0));
-		tabIndent(indent+1);out.println("}");
+	/**
+	 * Write a declaration of a fresh temporary variable, initialised with a
+	 * given expression.
+	 *
+	 * @param expr
+	 * @param prefix
+	 *            Prefix used for the name of the temporary.
+	 * @return The name of the temporary.
+	 */
+	private String writeTemporary(Location<?> expr, String prefix) {
+		String var = prefix + (temporaries++);
+		if (expr.getOpcode() == Bytecode.OPCODE_arraylength) {
+			out.print("size_t");
+		} else {
+			writeType(expr.getType());
+		}
+		out.print(" " + var + " = ");
+		writeExpression(expr);
+		out.println(";");
+		return var;
 	}
 
+	@SuppressWarnings("unchecked")
 	private void writeReturn(int indent, Location<Bytecode.Return> b) {
 		Location<?>[] operands = b.getOperands();
+		Location<?>[] postconditions = currentMethod.getPostcondition();
+		boolean checked = checkMode != CheckMode.STRIP && postconditions.length > 0;
+		boolean releasing = hasReleases(0);
+		// A local array being returned is not released, since its storage
+		// passes to the caller
+		String retained = null;
+		if (operands.length == 1 && isOwnedArray(operands[0])) {
+			retained = "wy_free(" + getVariableDeclaration(operands[0].getOperand(0)).getBytecode().getName() + ")";
+		}
+		if (instrumentFunctions || !activeLoops.isEmpty() || checked || releasing) {
+			// The return value must be computed before exiting, since it may
+			// involve further calls or read storage which is released.
+			// Postconditions refer to the return value by the name of its
+			// declaration.
+			if (operands.length > 0) {
+				String name = "_ret";
+				if (checked) {
+					Location<?> decl = currentMethod.getTree().getLocation(currentMethod.type().params().length);
+					name = ((Location<VariableDeclaration>) decl).getBytecode().getName();
+				}
+				out.print("{ ");
+				writeReturns(currentMethod.type().returns());
+				out.print(" " + name + " = ");
+				writeReturnValue(operands, retained);
+				out.println(";");
+				writeChecks(indent + 2, "ensures", checked ? postconditions : new Location<?>[0]);
+				tabIndent(indent + 2);
+				writeFunctionExit();
+				writeReleases(0, retained);
+				out.println("return " + name + "; }");
+			} else {
+				if (checked) {
+					out.println("{");
+					writeChecks(indent + 2, "ensures", postconditions);
+					tabIndent(indent + 2);
+				}
+				writeFunctionExit();
+				writeReleases(0);
+				out.println(checked ? "return; }" : "return;");
+			}
+			return;
+		}
 		out.print("return");
 		if(operands.length > 0) {
 			out.print(" ");
-			writeExpressions(operands);
+			writeReturnValue(operands, retained);
 		}
 		out.println(";");
 	}
 
+	/**
+	 * Write the value returned by a return statement. An array is returned
+	 * as a pointer to storage which passes to the caller. This is either the
+	 * storage of a local array (which is then retained, rather than
+	 * released), or is freshly allocated.
+	 *
+	 * @param operands
+	 * @param retained
+	 *            Release of the local array being returned, or null.
+	 */
+	private void writeReturnValue(Location<?>[] operands, String retained) {
+		Type[] returns = currentMethod.type().returns();
+		Type type = returns.length == 1 ? returns[0] : null;
+		if (retained != null) {
+			out.print(getVariableDeclaration(operands[0].getOperand(0)).getBytecode().getName());
+		} else if (type instanceof Type.Array) {
+			writeNewArray(type, ((Type.Array) type).element(), operands[0]);
+		} else {
+			writeExpressions(operands);
+		}
+	}
+
 	private void writeSkip(int indent, Location<Bytecode.Skip> b) {
 		out.println("// skip");
 	}
 
+	/**
+	 * Write a switch statement. Since cases in Whiley do not fall through,
+	 * each is enclosed in a block (which may declare variables) followed by a
+	 * <code>break</code>. Only integer and boolean cases can be written as C
+	 * case labels.
+	 *
+	 * @param indent
+	 * @param b
+	 */
 	private void writeSwitch(int indent, Location<Bytecode.Switch> b) {
-		out.print("switch ");
+		out.print("switch(");
 		writeExpression(b.getOperand(0));
-		out.println(":");
+		out.println(") {");
+		int enclosingBreak = breakScope;
+		breakScope = scopes.size();
 		for (int i = 0; i != b.numberOfBlocks(); ++i) {
 			// FIXME: ugly
 			Bytecode.Case cAse = b.getBytecode().cases()[i];
 			Constant[] values = cAse.values();
 			tabIndent(indent + 2);
 			if (values.length == 0) {
-				out.println("default:");
-			} else {
-				out.print("case ");
-				for (int j = 0; j != values.length; ++j) {
-					if (j != 0) {
-						out.print(", ");
-					}
-					out.print(values[j]);
+				out.print("default:");
+			}
+			for (int j = 0; j != values.length; ++j) {
+				if (!(values[j] instanceof Constant.Integer) && !(values[j] instanceof Constant.Bool)) {
+					throw new IllegalArgumentException("Switch case not supported: " + values[j]);
 				}
-				out.println(":");
+				out.print((j != 0 ? " case " : "case ") + values[j] + ":");
 			}
+			out.println(" {");
 			writeBlock(indent + 2, b.getBlock(i));
+			tabIndent(indent + 2);
+			out.println("} break;");
 		}
+		breakScope = enclosingBreak;
+		tabIndent(indent + 1);
+		out.println("}");
 	}
 
 	private void writeVariableAccess(Location<VariableAccess> loc) {
 		Location<VariableDeclaration> vd = getVariableDeclaration(loc.getOperand(0));
-		out.print(vd.getBytecode().getName());
+		if (pointerParameters.contains(vd) || arrayVariables.contains(vd)) {
+			out.print("(*" + vd.getBytecode().getName() + ")");
+		} else {
+			out.print(vd.getBytecode().getName());
+		}
 	}
 
 	private void writeVariableDeclaration(int indent, Location<VariableDeclaration> loc) {
 		Location<?>[] operands = loc.getOperands();
+		if (scalarised.contains(loc)) {
+			// Only the current element is ever used
+			writeType(((Type.Array) loc.getType()).element());
+			out.println(" " + loc.getBytecode().getName() + ";");
+			return;
+		} else if (soaVariables.contains(loc)) {
+			writeStructureOfArraysDeclaration(indent, loc);
+			return;
+		} else if (arrayVariables.contains(loc)) {
+			writeArrayVariableDeclaration(loc);
+			return;
+		}
 		writeType(loc.getType());
 		out.print(" ");
 		out.print(loc.getBytecode().getName());
@@ -385,6 +2254,171 @@ public final class EmbeddedCFilePrinter {
 		out.println(";");
 	}
 
+	/**
+	 * Write the declaration of a local array. This is held by pointer to
+	 * storage which is either allocated by the array value it is initialised
+	 * with, returned by the function it is initialised from, or is a copy of
+	 * the array it is initialised with. An uninitialised declaration holds
+	 * <code>NULL</code>, such that it can be released regardless. In either
+	 * case, the storage is released on exit from the enclosing block.
+	 *
+	 * @param loc
+	 */
+	private void writeArrayVariableDeclaration(Location<VariableDeclaration> loc) {
+		String name = loc.getBytecode().getName();
+		Type elementT = getNarrowedArrays(currentMethod).get(loc);
+		if (elementT == null) {
+			elementT = ((Type.Array) loc.getType()).element();
+		}
+		out.print(getArrayType(loc.getType(), elementT) + " *" + name + " = ");
+		if (loc.numberOfOperands() == 0) {
+			out.print("NULL");
+		} else {
+			writeNewArray(loc.getType(), elementT, loc.getOperand(0));
+		}
+		out.println(";");
+		scopes.get(scopes.size() - 1).add("wy_free(" + name + ")");
+	}
+
+	/**
+	 * Determine the C type of an array with a given type, whose elements are
+	 * stored with a given (possibly narrowed) element type.
+	 *
+	 * @param type
+	 * @param elementT
+	 * @return
+	 */
+	private String getArrayType(Type type, Type elementT) {
+		return isPackedBoolArray(type) ? "bitarr_t" : getTypeTable().getArray(elementT);
+	}
+
+	/**
+	 * Write a pointer to freshly allocated storage holding the value of a
+	 * given array, which is owned by the code receiving it. This is
+	 * allocated directly by an array generator or initialiser, is that
+	 * returned by an invocation and, otherwise, is a copy.
+	 *
+	 * @param type
+	 *            Declared type of the array.
+	 * @param elementT
+	 *            Type with which the elements are stored.
+	 * @param array
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeNewArray(Type type, Type elementT, Location<?> array) {
+		String arrayT = getArrayType(type, elementT);
+		boolean packed = isPackedBoolArray(type);
+		if (!substitutions.containsKey(array)) {
+			switch (array.getOpcode()) {
+			case Bytecode.OPCODE_arraygen:
+				if (packed) {
+					writeBitArrayGenerator(array);
+				} else {
+					out.print("arr_new(" + arrayT + ", ");
+					writeExpression(array.getOperand(1));
+					out.print(", &(" + getTypeTable().get(elementT) + "){");
+					writeExpression(array.getOperand(0));
+					out.print("})");
+				}
+				return;
+			case Bytecode.OPCODE_array: {
+				int n = array.numberOfOperands();
+				out.print(packed ? "bitarr_of(" + n + ", " : "arr_of(" + arrayT + ", " + n + ", ");
+				if (n == 0) {
+					out.print("NULL");
+				} else {
+					out.print("(" + (packed ? "bool" : getTypeTable().get(elementT)) + "[]){");
+					writeExpressions(array.getOperands());
+					out.print("}");
+				}
+				out.print(")");
+				return;
+			}
+			case Bytecode.OPCODE_invoke:
+				writeInvoke((Location<Bytecode.Invoke>) array);
+				return;
+			}
+		}
+		// Otherwise, the array is stored elsewhere (e.g. in a variable or a
+		// temporary) and, hence, must be copied
+		if (!isStored(array)) {
+			throw new IllegalArgumentException("array value cannot be copied: " + array);
+		}
+		out.print(packed ? "bitarr_copy(&" : "arr_copy(" + arrayT + ", &");
+		writeBracketedExpression(array);
+		out.print(")");
+	}
+
+	/**
+	 * Write the declaration of an array of records which uses the
+	 * structure-of-arrays layout. Such a declaration is always initialised
+	 * with either an array generator of a record constructor, which is
+	 * expanded into an allocation and fill for each field, or an array
+	 * initialiser of record constructors, which is expanded into an
+	 * allocation for each field followed by an assignment for each element.
+	 *
+	 * @param indent
+	 * @param loc
+	 */
+	private void writeStructureOfArraysDeclaration(int indent, Location<VariableDeclaration> loc) {
+		Type.Record elementT = soaAnalysis.getRecordElement(loc.getType());
+		String[] fields = elementT.getFieldNames();
+		String name = loc.getBytecode().getName();
+		Location<?> init = loc.getOperand(0);
+		// Write the structure declaration
+		out.print("struct {size_t len;");
+		for (String field : fields) {
+			out.print(" ");
+			writeType(elementT.getField(field));
+			out.print(" *" + field + ";");
+		}
+		out.println("} " + name + ";");
+		tabIndent(indent + 1);
+		out.print(name + ".len = ");
+		if (init.getOpcode() == Bytecode.OPCODE_arraygen) {
+			writeExpression(init.getOperand(1));
+		} else {
+			out.print(init.numberOfOperands());
+		}
+		out.println(";");
+		// Allocate and fill each field, where the storage is owned by the
+		// enclosing block
+		for (int i = 0; i != fields.length; ++i) {
+			String field = name + "." + fields[i];
+			tabIndent(indent + 1);
+			out.print(field + " = soa_alloc(");
+			writeType(elementT.getField(fields[i]));
+			out.println(", " + name + ".len);");
+			if (init.getOpcode() == Bytecode.OPCODE_arraygen) {
+				tabIndent(indent + 1);
+				out.print("soa_fill(");
+				writeType(elementT.getField(fields[i]));
+				out.print(", " + field + ", " + name + ".len, ");
+				writeExpression(init.getOperand(0).getOperand(i));
+				out.println(");");
+			} else {
+				for (int j = 0; j != init.numberOfOperands(); ++j) {
+					tabIndent(indent + 1);
+					out.print(field + "[" + j + "] = ");
+					writeExpression(init.getOperand(j).getOperand(i));
+					out.println(";");
+				}
+			}
+			scopes.get(scopes.size() - 1).add("soa_free(" + field + ")");
+		}
+	}
+
+	/**
+	 * Check whether a given expression is an access to a variable which uses
+	 * the structure-of-arrays layout.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean isStructureOfArraysAccess(Location<?> expr) {
+		return isVariable(expr) && soaVariables.contains(getVariableDeclaration(expr.getOperand(0)));
+	}
+
 	/**
 	 * Write a bracketed operand if necessary. Any operand whose human-readable
 	 * representation can contain whitespace must have brackets around it.
@@ -415,6 +2449,11 @@ public final class EmbeddedCFilePrinter {
 
 	@SuppressWarnings("unchecked")
 	private void writeExpression(Location<?> expr) {
+		String var = substitutions.get(expr);
+		if (var != null) {
+			out.print(var);
+			return;
+		}
 		switch (expr.getOpcode()) {
 		case Bytecode.OPCODE_arraylength:
 			writeArrayLength((Location<Bytecode.Operator>) expr);
@@ -423,11 +2462,10 @@ public final class EmbeddedCFilePrinter {
 			writeArrayIndex((Location<Bytecode.Operator>) expr);
 			break;
 		case Bytecode.OPCODE_array:
-			writeArrayInitialiser((Location<Bytecode.Operator>) expr);
-			break;
 		case Bytecode.OPCODE_arraygen:
-			writeArrayGenerator((Location<Bytecode.Operator>) expr);
-			break;
+			// Array values are always allocated into a variable or temporary
+			// (see writeNewArray and writeArgumentTemporaries)
+			throw new IllegalArgumentException("array value must be stored: " + expr);
 		case Bytecode.OPCODE_convert:
 			writeConvert((Location<Bytecode.Convert>) expr);
 			break;
@@ -493,37 +2531,107 @@ public final class EmbeddedCFilePrinter {
 
 
 	private void writeArrayLength(Location<Bytecode.Operator> expr) {
-		out.print("|");
+		if(isPackedBoolArray(expr.getOperand(0).getType())) {
+			out.print("bitarr_len(");
+			writeExpression(expr.getOperand(0));
+			out.print(")");
+			return;
+		}
 		writeExpression(expr.getOperand(0));
-		out.print("|");
+		out.print(".len");
 	}
 
 	private void writeArrayIndex(Location<Bytecode.Operator> expr) {
+		if(isPackedBoolArray(expr.getOperand(0).getType())) {
+			out.print("bitarr_get(");
+			writeExpression(expr.getOperand(0));
+			out.print(", ");
+			writeExpression(expr.getOperand(1));
+			out.print(")");
+			return;
+		}
+		Type elementT = getNarrowedElementType(expr.getOperand(0));
+		if (elementT != null) {
+			// Always convert back to the declared type. Integer promotion
+			// alone is not equivalent, since the result of arithmetic on the
+			// element (e.g. on overflow, or when compared with an unsigned
+			// value) depends on its type.
+			out.print("((");
+			writeType(expr.getType());
+			out.print(") ");
+			writeArrayElement(expr);
+			out.print(")");
+		} else {
+			writeArrayElement(expr);
+		}
+	}
+
+	/**
+	 * Write an element of an array as it is stored, without converting it
+	 * back to the declared element type. This is used for element updates.
+	 *
+	 * @param expr
+	 */
+	private void writeArrayElement(Location<?> expr) {
 		writeExpression(expr.getOperand(0));
-		out.print("[");
+		out.print(".data[");
 		writeExpression(expr.getOperand(1));
 		out.print("]");
 	}
 
-	private void writeArrayInitialiser(Location<Bytecode.Operator> expr) {
-		Location<?>[] operands = expr.getOperands();
-		out.print("[");
-		for(int i=0;i!=operands.length;++i) {
-			if(i != 0) {
-				out.print(", ");
+	/**
+	 * Determine the narrowed element type of the array accessed by a given
+	 * expression, or null if it is not an access to a narrowed array.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private Type getNarrowedElementType(Location<?> expr) {
+		if (!isVariable(expr)) {
+			return null;
+		}
+		return getNarrowedArrays(currentMethod).get(getVariableDeclaration(expr.getOperand(0)));
+	}
+
+	/**
+	 * Determine the local arrays of a given function or method which are
+	 * narrowed. This is computed once per function or method, since it is
+	 * required both for the typedefs and the body.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	private Map<Location<VariableDeclaration>, Type> getNarrowedArrays(FunctionOrMethod fm) {
+		Map<Location<VariableDeclaration>, Type> r = narrowedArrays.get(fm);
+		if (r == null) {
+			if (arrayNarrowing) {
+				IntegerRangeAnalysis analysis = summaries != null ? summaries.analysisFor(fm)
+						: new IntegerRangeAnalysis();
+				r = new ArrayNarrowing(analysis).apply(fm);
+			} else {
+				r = Collections.emptyMap();
 			}
-			writeExpression(operands[i]);
+			narrowedArrays.put(fm, r);
 		}
-		out.print("]");
+		return r;
 	}
 
-	private void writeArrayGenerator(Location<Bytecode.Operator> expr) {
-		out.print("[");
-		writeExpression(expr.getOperand(0));
-		out.print(" ; ");
-		writeExpression(expr.getOperand(1));
-		out.print("]");
+	/**
+	 * Write an array generator for a packed boolean array. Since
+	 * <code>bitarr_t</code> has no storage of its own, this allocates the
+	 * words required and yields a pointer to the new array.
+	 *
+	 * @param generator
+	 *            The array generator being assigned.
+	 */
+	private void writeBitArrayGenerator(Location<?> generator) {
+		out.print("bitarr_new(");
+		writeExpression(generator.getOperand(1));
+		out.print(", ");
+		writeExpression(generator.getOperand(0));
+		out.print(")");
 	}
+
 	private void writeConvert(Location<Bytecode.Convert> expr) {
 		out.print("(" + expr.getType() + ") ");
 		writeExpression(expr.getOperand(0));
@@ -532,6 +2640,15 @@ public final class EmbeddedCFilePrinter {
 		out.print(expr.getBytecode().constant());
 	}
 	private void writeFieldLoad(Location<Bytecode.FieldLoad> expr) {
+		Location<?> source = expr.getOperand(0);
+		if (source.getOpcode() == Bytecode.OPCODE_arrayindex && isStructureOfArraysAccess(source.getOperand(0))) {
+			// xs[i].f => xs.f[i]
+			writeExpression(source.getOperand(0));
+			out.print("." + expr.getBytecode().fieldName() + "[");
+			writeExpression(source.getOperand(1));
+			out.print("]");
+			return;
+		}
 		writeBracketedExpression(expr.getOperand(0));
 		out.print("." + expr.getBytecode().fieldName());
 	}
@@ -548,17 +2665,64 @@ public final class EmbeddedCFilePrinter {
 		out.print(")");
 	}
 	private void writeInvoke(Location<Bytecode.Invoke> expr) {
-		out.print(expr.getBytecode().name() + "(");
+		if (writeEvaluatedInvoke(expr)) {
+			return;
+		}
+		out.print(expr.getBytecode().name().name() + "(");
 		Location<?>[] operands = expr.getOperands();
+		Type[] parameters = expr.getBytecode().type().params();
 		for(int i=0;i!=operands.length;++i) {
 			if(i!=0) {
 				out.print(", ");
 			}
-			writeExpression(operands[i]);
+			if (parameters[i] instanceof Type.Array) {
+				// Arrays are passed by pointer, so the argument must be
+				// stored (see writeArgumentTemporaries)
+				if (!isStored(operands[i])) {
+					throw new IllegalArgumentException("array argument cannot be passed by pointer: " + operands[i]);
+				}
+				out.print("&");
+				writeBracketedExpression(operands[i]);
+			} else {
+				writeExpression(operands[i]);
+			}
 		}
 		out.print(")");
 	}
 
+	/**
+	 * Write the result of a given invocation in place of the invocation
+	 * itself, provided it can be evaluated at compile time. Integers which do
+	 * not fit in a <code>long</code> are written as unsigned, since they can
+	 * only arise from <code>u64</code> values.
+	 *
+	 * @param expr
+	 * @return True if the result was written.
+	 */
+	private boolean writeEvaluatedInvoke(Location<Bytecode.Invoke> expr) {
+		Object value = evaluator == null ? null : evaluator.evaluate(expr);
+		if (value instanceof Boolean) {
+			out.print(value);
+		} else if (value instanceof BigInteger) {
+			BigInteger v = (BigInteger) value;
+			if (v.bitLength() > 64 || (v.signum() < 0 && v.bitLength() > 63)) {
+				return false;
+			} else if (v.signum() < 0) {
+				out.print("(" + v + ")");
+			} else if (v.bitLength() > 63) {
+				out.print(v + "ULL");
+			} else {
+				out.print(v);
+			}
+		} else {
+			return false;
+		}
+		if (verbose) {
+			out.print(" /* " + expr.getBytecode().name().name() + " */");
+		}
+		return true;
+	}
+
 	@SuppressWarnings("unchecked")
 	private void writeLambda(Location<Bytecode.Lambda> expr) {
 		out.print("&[");
@@ -616,6 +2780,9 @@ public final class EmbeddedCFilePrinter {
 	}
 
 	private void writeInfixLocations(Location<Bytecode.Operator> c) {
+		if (strengthReduction && writeStrengthReduced(c)) {
+			return;
+		}
 		writeBracketedExpression(c.getOperand(0));
 		out.print(" ");
 		out.print(opcode(c.getBytecode().kind()));
@@ -624,8 +2791,96 @@ public final class EmbeddedCFilePrinter {
 
 	}
 
+	/**
+	 * Attempt to write a multiplication, division or remainder using cheaper
+	 * operations, based on the ranges of its operands. Specifically:
+	 * <ul>
+	 * <li>Multiplication, division and remainder by a power of two become
+	 * shifts and masks, provided the other operand is non-negative.</li>
+	 * <li>Division of a bounded, non-negative value by any other constant
+	 * becomes a multiply-high sequence.</li>
+	 * <li>Otherwise, division and remainder of non-negative operands are
+	 * performed as unsigned operations, since these need no fix-ups for
+	 * negative values.</li>
+	 * </ul>
+	 *
+	 * @param c
+	 * @return True if the expression was written, false otherwise.
+	 */
+	private boolean writeStrengthReduced(Location<Bytecode.Operator> c) {
+		Location<?> lhs = c.getOperand(0);
+		Location<?> rhs = c.getOperand(1);
+		IntegerRange lr = ranges.rangeOf(lhs);
+		IntegerRange rr = ranges.rangeOf(rhs);
+		int k = StrengthReduction.log2(rr);
+		switch (c.getOpcode()) {
+		case Bytecode.OPCODE_mul:
+			if (k >= 0 && lr.isNonNegative()) {
+				writeReduced(lhs, " << " + k);
+				return true;
+			} else if (StrengthReduction.log2(lr) >= 0 && rr.isNonNegative()) {
+				writeReduced(rhs, " << " + StrengthReduction.log2(lr));
+				return true;
+			}
+			return false;
+		case Bytecode.OPCODE_div:
+		case Bytecode.OPCODE_rem:
+			if (!lr.isNonNegative() || !rr.isNonNegative()) {
+				return false;
+			}
+			boolean isDiv = c.getOpcode() == Bytecode.OPCODE_div;
+			if (k >= 0) {
+				writeReduced(lhs, isDiv ? " >> " + k : " & " + BigInteger.ONE.shiftLeft(k).subtract(BigInteger.ONE));
+				return true;
+			}
+			// The result is no greater than the dividend. It is converted back
+			// to a signed type only when known to fit, and otherwise keeps the
+			// unsigned type of the operands.
+			String unsignedT = StrengthReduction.unsignedType(lr.union(rr));
+			IntegerRange result = ranges.rangeOf(c).intersection(new IntegerRange(BigInteger.ZERO, lr.upperBound()));
+			String resultT = StrengthReduction.signedType(result);
+			if (resultT == null) {
+				resultT = unsignedT;
+			}
+			if (resultT == null) {
+				return false;
+			}
+			BigInteger[] magic = null;
+			if (isDiv && rr.isConstant() && rr.lowerBound().signum() > 0 && lr.upperBound() != null) {
+				magic = StrengthReduction.magic(rr.lowerBound(), lr.upperBound());
+			}
+			if (magic != null) {
+				// x / d => (x * m) >> s
+				out.print("((" + resultT + ") (((uint64_t) ");
+				writeBracketedExpression(lhs);
+				out.print(" * " + magic[0] + "ULL) >> " + magic[1] + "))");
+				return true;
+			}
+			if (unsignedT != null) {
+				out.print("((" + resultT + ") ((" + unsignedT + ") ");
+				writeBracketedExpression(lhs);
+				out.print(isDiv ? " / " : " % ");
+				out.print("(" + unsignedT + ") ");
+				writeBracketedExpression(rhs);
+				out.print("))");
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeReduced(Location<?> operand, String operation) {
+		out.print("(");
+		writeBracketedExpression(operand);
+		out.print(operation);
+		out.print(")");
+	}
+
 	@SuppressWarnings("unchecked")
 	private void writeQuantifier(Location<Bytecode.Quantifier> c) {
+		if(writeBitArrayQuantifier(c) || writeUnrolledQuantifier(c)) {
+			return;
+		}
 		out.print(quantifierKind(c));
 		out.print(" { ");
 		for (int i = 0; i != c.numberOfOperandGroups(); ++i) {
@@ -645,6 +2900,93 @@ public final class EmbeddedCFilePrinter {
 		out.print(" } ");
 	}
 
+	/**
+	 * Attempt to write a quantifier with a small, constant range as the
+	 * conjunction (or disjunction) of its condition for each value in the
+	 * range (e.g. <code>all { i in 0..2 | xs[i] > 0 }</code> is written as
+	 * <code>(xs.data[0] > 0 && xs.data[1] > 0)</code>).
+	 *
+	 * @param c
+	 * @return True if the quantifier was written, false otherwise.
+	 */
+	private boolean writeUnrolledQuantifier(Location<Bytecode.Quantifier> c) {
+		if (unrollThreshold <= 0) {
+			return false;
+		}
+		LoopUnrolling.Unrolling u = new LoopUnrolling(ranges, unrollThreshold).applyQuantifier(c);
+		if (u == null) {
+			return false;
+		}
+		boolean all = c.getOpcode() == Bytecode.OPCODE_all;
+		if (u.getValues().isEmpty()) {
+			out.print(all ? "true" : "false");
+			return true;
+		}
+		out.print("(");
+		boolean first = true;
+		for (BigInteger value : u.getValues()) {
+			if (!first) {
+				out.print(all ? " && " : " || ");
+			}
+			first = false;
+			Map<Location<?>, String> saved = substitute(u, value);
+			writeBracketedExpression(c.getOperand(SyntaxTree.CONDITION));
+			restore(saved);
+		}
+		out.print(")");
+		return true;
+	}
+
+	/**
+	 * Attempt to write a quantifier which simply scans a packed boolean array
+	 * (e.g. <code>all { i in 0..|xs| | xs[i] }</code>) as a word-at-a-time
+	 * operation. This applies only when the quantifier ranges over the entire
+	 * array and its condition is either the element itself, or its negation.
+	 *
+	 * @param c
+	 * @return True if the quantifier was written, false otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean writeBitArrayQuantifier(Location<Bytecode.Quantifier> c) {
+		if (!packedBooleanArrays || c.numberOfOperandGroups() != 1) {
+			return false;
+		}
+		Location<?>[] range = c.getOperandGroup(0);
+		Location<?> start = range[SyntaxTree.START];
+		Location<?> end = range[SyntaxTree.END];
+		Location<?> condition = c.getOperand(SyntaxTree.CONDITION);
+		boolean negated = condition.getOpcode() == Bytecode.OPCODE_logicalnot;
+		if (negated) {
+			condition = condition.getOperand(0);
+		}
+		if (!isConstant(start, 0) || end.getOpcode() != Bytecode.OPCODE_arraylength
+				|| condition.getOpcode() != Bytecode.OPCODE_arrayindex) {
+			return false;
+		}
+		Location<?> array = end.getOperand(0);
+		Location<?> source = condition.getOperand(0);
+		Location<?> index = condition.getOperand(1);
+		if (!isPackedBoolArray(array.getType()) || !isVariable(array) || !isVariable(source)
+				|| !isVariable(index)) {
+			return false;
+		}
+		Location<VariableDeclaration> var = (Location<VariableDeclaration>) range[SyntaxTree.VARIABLE];
+		if (getVariableDeclaration(array.getOperand(0)) != getVariableDeclaration(source.getOperand(0))
+				|| getVariableDeclaration(index.getOperand(0)) != var) {
+			return false;
+		}
+		// all { xs[i] } => all(xs), all { !xs[i] } => !any(xs)
+		// some { xs[i] } => any(xs), some { !xs[i] } => !all(xs)
+		boolean all = c.getOpcode() == Bytecode.OPCODE_all;
+		if (negated) {
+			out.print("!");
+		}
+		out.print(all != negated ? "bitarr_all(" : "bitarr_any(");
+		writeExpression(array);
+		out.print(")");
+		return true;
+	}
+
 	private String quantifierKind(Location<Bytecode.Quantifier> c) {
 		switch(c.getOpcode()) {
 		case Bytecode.OPCODE_some:
@@ -685,43 +3027,109 @@ public final class EmbeddedCFilePrinter {
 	}
 
 	public void writeType(Type type) {
-		if (type instanceof Type.Array) {
-			Type.Array arrT = (Type.Array) type;
-			out.print("arr_t(");
-			writeType(arrT.element());
-			out.print(")");
+		String cType = getTypeTable().get(type);
+		if (cType != null) {
+			out.print(cType);
 		} else {
-			String cType = typeMap.get(type);
-			if (cType != null) {
-				out.print(cType);
-			} else {
-				throw new IllegalArgumentException("Type not supported: " + type);
-			}
-		}
-	}
-
-	private static Type TYPE_I8 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"i8"));
-	private static Type TYPE_I16 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"i16"));
-	private static Type TYPE_I32 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"i32"));
-	private static Type TYPE_I64 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"i64"));
-	private static Type TYPE_U8 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"u8"));
-	private static Type TYPE_U16 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"u16"));
-	private static Type TYPE_U32 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"u32"));
-	private static Type TYPE_U64 = Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"),"u64"));
-
-	private static HashMap<Type,String> typeMap = new HashMap<Type,String>(){{
-		// Integer types
-		put(TYPE_I8,"int8_t");
-		put(TYPE_I16,"int16_t");
-		put(TYPE_I32,"int32_t");
-		put(TYPE_I64,"int64_t");
-		put(TYPE_U8,"uint8_t");
-		put(TYPE_U16,"uint16_t");
-		put(TYPE_U32,"uint32_t");
-		put(TYPE_U64,"uint64_t");
-		//
-		put(Type.T_BOOL,"bool");
-	}};
+			throw new IllegalArgumentException("Type not supported: " + type);
+		}
+	}
+
+	/**
+	 * Get the type table for the current compilation, creating it if
+	 * necessary.
+	 *
+	 * @return
+	 */
+	private CTypeTable getTypeTable() {
+		if (types == null) {
+			types = new CTypeTable(packedBooleanArrays);
+		}
+		return types;
+	}
+
+	/**
+	 * Intern all types used in the functions and methods of a given module,
+	 * and write the typedefs for them. This must precede any use of the
+	 * types.
+	 *
+	 * @param module
+	 * @param narrowed
+	 *            Indicates whether the types of narrowed arrays are included.
+	 *            These are local to the module and, hence, are omitted from
+	 *            its header.
+	 */
+	private void writeTypedefs(WyilFile module, boolean narrowed) {
+		CTypeTable table = getTypeTable();
+		for (FunctionOrMethod fm : functions) {
+			for (Location<?> loc : fm.getTree().getLocations()) {
+				for (Type type : loc.getTypes()) {
+					table.get(type);
+				}
+			}
+			for (Type type : fm.type().params()) {
+				table.get(type);
+			}
+			for (Type type : fm.type().returns()) {
+				table.get(type);
+			}
+			if (narrowed) {
+				for (Type type : getNarrowedArrays(fm).values()) {
+					table.getArray(type);
+				}
+			}
+		}
+		table.writeTypedefs(out);
+	}
+
+	/**
+	 * Intern the types of all narrowed arrays in the functions and methods of
+	 * a given module, and write the typedefs for them. This is only needed
+	 * when the remaining typedefs are provided by a header.
+	 *
+	 * @param module
+	 */
+	private void writeNarrowedTypedefs(WyilFile module) {
+		CTypeTable table = getTypeTable();
+		for (FunctionOrMethod fm : functions) {
+			for (Type type : getNarrowedArrays(fm).values()) {
+				table.getArray(type);
+			}
+		}
+		table.writeTypedefs(out);
+	}
+
+	/**
+	 * Check whether the type of a given expression can be written as a C
+	 * type. This is used to determine whether a temporary variable can be
+	 * introduced for the expression. Arrays are excluded, since they are
+	 * held by pointer and a temporary would share (or leak) their storage.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean isSupportedType(Location<?> expr) {
+		if (expr.getOpcode() == Bytecode.OPCODE_arraylength) {
+			return true;
+		}
+		return !(expr.getType() instanceof Type.Array) && isSupportedType(expr.getType());
+	}
+
+	private boolean isSupportedType(Type type) {
+		return getTypeTable().get(type) != null;
+	}
+
+	/**
+	 * Check whether a given type is an array of booleans which should be
+	 * written using the packed representation.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private boolean isPackedBoolArray(Type type) {
+		return packedBooleanArrays && type instanceof Type.Array
+				&& ((Type.Array) type).element().equals(Type.T_BOOL);
+	}
 
 	private static String opcode(Bytecode.OperatorKind k) {
 		switch(k) {
@@ -786,6 +3194,28 @@ public final class EmbeddedCFilePrinter {
 		}
 	}
 
+	private static boolean isVariable(Location<?> loc) {
+		return loc.getOpcode() == Bytecode.OPCODE_varaccess;
+	}
+
+	/**
+	 * Check whether a given location is an integer constant with a given
+	 * value.
+	 *
+	 * @param loc
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean isConstant(Location<?> loc, long value) {
+		if (loc.getOpcode() == Bytecode.OPCODE_const) {
+			Constant c = ((Location<Bytecode.Const>) loc).getBytecode().constant();
+			return c instanceof Constant.Integer
+					&& ((Constant.Integer) c).value().equals(BigInteger.valueOf(value));
+		}
+		return false;
+	}
+
 	@SuppressWarnings("unchecked")
 	private Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
 		switch (loc.getOpcode()) {
@@ -0,0 +1,146 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.io;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import wybs.lang.Attribute;
+import wyil.lang.SyntaxTree.Location;
+
+/**
+ * <p>
+ * Maps ranges of lines in generated C back to the WyIL locations (and, where
+ * available, the Whiley source positions) they were generated from. This is
+ * built incrementally as code is written, and allows profiler or debugger
+ * output from the target to be attributed back to Whiley code without
+ * adding anything to the generated C.
+ * </p>
+ *
+ * <p>
+ * The map is written in a line-delimited form, where each line is one of:
+ * </p>
+ *
+ * <pre>
+ * m &lt;module&gt;
+ * f &lt;first&gt; &lt;last&gt; &lt;function&gt;
+ * l &lt;first&gt; &lt;last&gt; &lt;index&gt; &lt;line&gt; &lt;start&gt; &lt;end&gt;
+ * </pre>
+ *
+ * <p>
+ * Here, <code>first</code> and <code>last</code> are (inclusive) line
+ * numbers in the generated C, <code>index</code> is that of the location in
+ * the function's syntax tree, and <code>line</code>, <code>start</code> and
+ * <code>end</code> give the Whiley source position (or <code>-</code> if
+ * unknown). Ranges may be nested, in which case the innermost range which
+ * contains a given line is the most precise.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SourceMap {
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Record the start of a module.
+	 *
+	 * @param name
+	 */
+	public void module(String name) {
+		entries.add(new Entry('m', 0, name, null));
+	}
+
+	/**
+	 * Record the start of a function or method, which begins at a given
+	 * line of the generated C.
+	 *
+	 * @param line
+	 * @param name
+	 * @return Handle identifying the entry, which should be passed to
+	 *         {@link #exit(int, int)}.
+	 */
+	public int enter(int line, String name) {
+		entries.add(new Entry('f', line, name, null));
+		return entries.size() - 1;
+	}
+
+	/**
+	 * Record the start of a location, which begins at a given line of the
+	 * generated C.
+	 *
+	 * @param line
+	 * @param loc
+	 * @return Handle identifying the entry, which should be passed to
+	 *         {@link #exit(int, int)}.
+	 */
+	public int enter(int line, Location<?> loc) {
+		entries.add(new Entry('l', line, null, loc));
+		return entries.size() - 1;
+	}
+
+	/**
+	 * Record the end of a given entry, whose last line in the generated C is
+	 * given.
+	 *
+	 * @param handle
+	 * @param line
+	 */
+	public void exit(int handle, int line) {
+		Entry e = entries.get(handle);
+		// An entry which wrote nothing is covered by its first line
+		e.last = Math.max(e.first, line);
+	}
+
+	/**
+	 * Write this map in line-delimited form.
+	 *
+	 * @param out
+	 */
+	public void write(PrintStream out) {
+		StringBuilder sb = new StringBuilder();
+		for (Entry e : entries) {
+			sb.setLength(0);
+			sb.append(e.kind);
+			if (e.kind == 'm') {
+				sb.append(' ').append(e.name);
+			} else {
+				sb.append(' ').append(e.first).append(' ').append(e.last).append(' ');
+				if (e.kind == 'f') {
+					sb.append(e.name);
+				} else {
+					sb.append(e.index).append(' ');
+					if (e.source != null) {
+						sb.append(e.source.line).append(' ').append(e.source.start).append(' ').append(e.source.end);
+					} else {
+						sb.append("- - -");
+					}
+				}
+			}
+			out.println(sb);
+		}
+	}
+
+	private static final class Entry {
+		private final char kind;
+		private final int first;
+		private int last;
+		private final String name;
+		private final int index;
+		private final Attribute.Source source;
+
+		public Entry(char kind, int first, String name, Location<?> loc) {
+			this.kind = kind;
+			this.first = first;
+			this.last = first;
+			this.name = name;
+			this.index = loc == null ? -1 : loc.getIndex();
+			this.source = loc == null ? null : loc.attribute(Attribute.Source.class);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package wyec.lang;
 
 import java.math.BigInteger;
+import java.util.Objects;
 
 import wycc.util.Pair;
 
@@ -80,6 +81,35 @@ public class IntegerRange implements Range {
 	public BigInteger upperBound() {
 		return upperBound;
 	}
+
+	/**
+	 * Check whether this range is a single (finite) value.
+	 *
+	 * @return
+	 */
+	public boolean isConstant() {
+		return lowerBound != null && upperBound != null && lowerBound.equals(upperBound);
+	}
+
+	/**
+	 * Check whether this range contains no values (e.g. it is
+	 * <code>BOTTOM</code>).
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return lowerBound != null && upperBound != null && lowerBound.compareTo(upperBound) > 0;
+	}
+
+	/**
+	 * Check whether every value in this range is greater than or equal to
+	 * zero.
+	 *
+	 * @return
+	 */
+	public boolean isNonNegative() {
+		return lowerBound != null && lowerBound.signum() >= 0;
+	}
 	
 	// =============================================
 	// Arithmetic Operators
@@ -110,18 +140,68 @@ public class IntegerRange implements Range {
 	}
 	
 	public IntegerRange multiply(IntegerRange other) {
-		return null;
+		if (isFinite() && other.isFinite()) {
+			BigInteger[] products = { lowerBound.multiply(other.lowerBound), lowerBound.multiply(other.upperBound),
+					upperBound.multiply(other.lowerBound), upperBound.multiply(other.upperBound) };
+			return bounds(products);
+		} else if (isNonNegative() && other.isNonNegative()) {
+			// Upper bound is infinite, but lower bound is still known
+			return new IntegerRange(lowerBound.multiply(other.lowerBound), null);
+		} else {
+			return TOP;
+		}
 	}
-	
+
+	/**
+	 * Divide this range by another, where division truncates towards zero
+	 * (as for C). If the divisor may be zero, then the result is unbounded.
+	 *
+	 * @param other
+	 * @return
+	 */
 	public IntegerRange divide(IntegerRange other) {
-		return null;
+		if (other.lowerBound == null || other.upperBound == null
+				|| (other.lowerBound.signum() <= 0 && other.upperBound.signum() >= 0)) {
+			// Divisor may be zero
+			return TOP;
+		} else if (isFinite()) {
+			BigInteger[] quotients = { lowerBound.divide(other.lowerBound), lowerBound.divide(other.upperBound),
+					upperBound.divide(other.lowerBound), upperBound.divide(other.upperBound) };
+			return bounds(quotients);
+		} else if (isNonNegative() && other.lowerBound.signum() > 0) {
+			return new IntegerRange(lowerBound.divide(other.upperBound), null);
+		} else {
+			return TOP;
+		}
+	}
+
+	/**
+	 * Compute the remainder of this range divided by another, where the
+	 * result takes the sign of the dividend (as for C).
+	 *
+	 * @param other
+	 * @return
+	 */
+	public IntegerRange remainder(IntegerRange other) {
+		if (isNonNegative() && other.lowerBound != null && other.lowerBound.signum() > 0
+				&& other.upperBound != null) {
+			return new IntegerRange(BigInteger.ZERO, min(upperBound, true,
+					other.upperBound.subtract(BigInteger.ONE), true));
+		} else {
+			return TOP;
+		}
+	}
+
+	public IntegerRange negate() {
+		return new IntegerRange(upperBound == null ? null : upperBound.negate(),
+				lowerBound == null ? null : lowerBound.negate());
 	}
 	
 	// =============================================
 	// Comparators
 	// =============================================
 
-	public Pair<IntegerRange,IntegerRange> equals(IntegerRange other) {
+	public Pair<IntegerRange,IntegerRange> equalTo(IntegerRange other) {
 		IntegerRange r = this.intersection(other);
 		return new Pair<IntegerRange,IntegerRange>(r,r);
 	}
@@ -183,9 +263,30 @@ public class IntegerRange implements Range {
 	 * @return
 	 */
 	public boolean contains(IntegerRange ir) {
-		int l = lowerBound.compareTo(ir.lowerBound);
-		int r = upperBound.compareTo(ir.upperBound);
-		return l <= 0 && r >= 0;
+		boolean l = lowerBound == null || (ir.lowerBound != null && lowerBound.compareTo(ir.lowerBound) <= 0);
+		boolean r = upperBound == null || (ir.upperBound != null && upperBound.compareTo(ir.upperBound) >= 0);
+		return l && r;
+	}
+
+	/**
+	 * Check whether both bounds of this range are finite.
+	 *
+	 * @return
+	 */
+	public boolean isFinite() {
+		return lowerBound != null && upperBound != null;
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof IntegerRange) {
+			IntegerRange r = (IntegerRange) o;
+			return Objects.equals(lowerBound, r.lowerBound) && Objects.equals(upperBound, r.upperBound);
+		}
+		return false;
+	}
+
+	public int hashCode() {
+		return Objects.hashCode(lowerBound) ^ Objects.hashCode(upperBound);
 	}
 	
 	public String toString() {
@@ -294,6 +395,22 @@ public class IntegerRange implements Range {
 		}
 	}
 	
+	/**
+	 * Construct the smallest range containing a given set of finite values.
+	 *
+	 * @param values
+	 * @return
+	 */
+	private static IntegerRange bounds(BigInteger... values) {
+		BigInteger lb = values[0];
+		BigInteger ub = values[0];
+		for (BigInteger v : values) {
+			lb = lb.min(v);
+			ub = ub.max(v);
+		}
+		return new IntegerRange(lb, ub);
+	}
+
 	private Pair<IntegerRange,IntegerRange> swap(Pair<IntegerRange,IntegerRange> p) {
 		return new Pair<IntegerRange,IntegerRange>(p.second(),p.first());
 	}
@@ -0,0 +1,135 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.util.*;
+
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.WyilFile.FunctionOrMethod;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Determines when array parameters, which are passed by pointer in the
+ * generated C, can be qualified with <code>restrict</code>. Whiley has value
+ * semantics and, hence, distinct array variables never alias. However, this
+ * guarantee is lost in C unless stated explicitly, which prevents the C
+ * compiler from vectorising loops over arrays.
+ * </p>
+ *
+ * <p>
+ * An array parameter which is never modified is passed as a pointer to
+ * <code>const</code>, and this is always safe to qualify with
+ * <code>restrict</code> provided nothing else is written through an alias
+ * during the call. An array parameter which is modified is copied on entry
+ * (to preserve value semantics) and, thus, refers to fresh memory which
+ * cannot alias anything. The only remaining source of aliasing is a write
+ * through a reference, either directly or within a method invoked from the
+ * body. Since functions are pure, this can only arise for methods.
+ * </p>
+ *
+ * <p>
+ * Local array variables are distinct objects in the generated C and, hence,
+ * require no qualification.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class AliasAnalysis {
+
+	/**
+	 * Determine the parameters of a given function or method which are
+	 * (potentially) modified within its body.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public Set<Location<VariableDeclaration>> getModifiedParameters(FunctionOrMethod fm) {
+		Set<Location<VariableDeclaration>> modified = Collections
+				.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+		for (Location<?> loc : fm.getTree().getLocations()) {
+			switch (loc.getOpcode()) {
+			case Bytecode.OPCODE_assign:
+				for (Location<?> lval : loc.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+					Location<VariableDeclaration> decl = LoopInvariantAnalysis.getAssignedVariable(lval);
+					if (decl != null) {
+						modified.add(decl);
+					}
+				}
+				break;
+			case Bytecode.OPCODE_aliasdecl:
+				// Conservatively assume aliased variables are modified
+				Location<VariableDeclaration> decl = getVariableDeclaration(loc);
+				if (decl != null) {
+					modified.add(decl);
+				}
+				break;
+			}
+		}
+		// Retain only the parameters
+		Set<Location<VariableDeclaration>> parameters = Collections
+				.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+		for (int i = 0; i != fm.type().params().length; ++i) {
+			Location<?> param = fm.getTree().getLocation(i);
+			if (modified.contains(param)) {
+				parameters.add(getVariableDeclaration(param));
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Determine whether array parameters of a given function or method can
+	 * be safely qualified with <code>restrict</code>. This is always true for
+	 * functions, and true for methods which neither write through a reference
+	 * nor invoke other methods.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public boolean isRestrictSafe(FunctionOrMethod fm) {
+		if (fm.type() instanceof Type.Function) {
+			return true;
+		}
+		for (Location<?> loc : fm.getTree().getLocations()) {
+			switch (loc.getOpcode()) {
+			case Bytecode.OPCODE_assign:
+				for (Location<?> lval : loc.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+					if (LoopInvariantAnalysis.getAssignedVariable(lval) == null) {
+						// Write through a reference
+						return false;
+					}
+				}
+				break;
+			case Bytecode.OPCODE_invoke:
+				if (((Bytecode.Invoke) loc.getBytecode()).type() instanceof Type.Method) {
+					return false;
+				}
+				break;
+			case Bytecode.OPCODE_indirectinvoke:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		return null;
+	}
+}
@@ -0,0 +1,305 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.util.*;
+
+import wybs.lang.NameID;
+import wyec.lang.IntegerRange;
+import wyfs.util.Trie;
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.WyilFile;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Identifies local arrays of integers whose elements can be stored using a
+ * narrower type than that declared. For example, consider:
+ * </p>
+ *
+ * <pre>
+ * i32[] buf = [0; n]
+ * ...
+ * buf[i] = c
+ * </pre>
+ *
+ * <p>
+ * Here, if <code>c</code> has type <code>u8</code> then every element of
+ * <code>buf</code> fits in a <code>uint8_t</code> and, hence, it can be
+ * stored as <code>arr_t(uint8_t)</code> rather than
+ * <code>arr_t(int32_t)</code>. The values stored into an array are bounded
+ * using range analysis over all of its writes: namely, the array generators
+ * and initialisers assigned to it, and the values assigned to its elements.
+ * </p>
+ *
+ * <p>
+ * A variable is eligible only when it is declared locally and every other use
+ * of it either reads an element (as in <code>buf[i]</code>) or its length (as
+ * in <code>|buf|</code>). Any other use (e.g. passing the array to a function,
+ * returning it or assigning it to another variable) means the array escapes
+ * into code which expects the declared element type and, hence, is not
+ * eligible.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ArrayNarrowing {
+	private final IntegerRangeAnalysis ranges;
+
+	public ArrayNarrowing(IntegerRangeAnalysis ranges) {
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Determine the local array variables within a given function or method
+	 * which can be narrowed, along with the element type for each.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public Map<Location<VariableDeclaration>, Type> apply(WyilFile.FunctionOrMethod fm) {
+		Map<Location<VariableDeclaration>, IntegerRange> values = new IdentityHashMap<Location<VariableDeclaration>, IntegerRange>();
+		Set<Location<VariableDeclaration>> rejected = Collections
+				.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+		if (fm.getBody() != null) {
+			visit(fm.getBody(), null, values, rejected);
+		}
+		Map<Location<VariableDeclaration>, Type> result = new IdentityHashMap<Location<VariableDeclaration>, Type>();
+		for (Map.Entry<Location<VariableDeclaration>, IntegerRange> e : values.entrySet()) {
+			Location<VariableDeclaration> decl = e.getKey();
+			if (!rejected.contains(decl) && e.getValue() != null) {
+				Type elementT = narrow(((Type.Array) decl.getType()).element(), e.getValue());
+				if (elementT != null) {
+					result.put(decl, elementT);
+				}
+			}
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void visit(Location<?> loc, Location<?> parent, Map<Location<VariableDeclaration>, IntegerRange> values,
+			Set<Location<VariableDeclaration>> rejected) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit: {
+			Location<VariableDeclaration> decl = (Location<VariableDeclaration>) loc;
+			if (isIntegerArray(decl.getType())) {
+				values.put(decl, null);
+				if (decl.numberOfOperands() > 0) {
+					store(decl, decl.getOperand(0), values, rejected);
+				}
+			}
+			break;
+		}
+		case Bytecode.OPCODE_assign:
+			visitAssign(loc, values, rejected);
+			return;
+		case Bytecode.OPCODE_varaccess: {
+			Location<VariableDeclaration> decl = getVariableDeclaration(loc.getOperand(0));
+			if (decl != null && values.containsKey(decl) && !isPermittedUse(loc, parent)) {
+				rejected.add(decl);
+			}
+			// NOTE: must not traverse into the variable declaration
+			return;
+		}
+		case Bytecode.OPCODE_aliasdecl: {
+			// Conservatively reject aliased arrays
+			Location<VariableDeclaration> decl = getVariableDeclaration(loc);
+			if (decl != null) {
+				rejected.add(decl);
+			}
+			return;
+		}
+		}
+		visitChildren(loc, values, rejected);
+	}
+
+	private void visitChildren(Location<?> loc, Map<Location<VariableDeclaration>, IntegerRange> values,
+			Set<Location<VariableDeclaration>> rejected) {
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			visit(loc.getOperand(i), loc, values, rejected);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				visit(operand, loc, values, rejected);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			visit(loc.getBlock(i), loc, values, rejected);
+		}
+	}
+
+	/**
+	 * Visit an assignment, recording the values stored into any candidate
+	 * arrays. This covers both assignments to the whole array (e.g.
+	 * <code>xs = [0; n]</code>) and to an element (e.g.
+	 * <code>xs[i] = e</code>).
+	 *
+	 * @param stmt
+	 * @param values
+	 * @param rejected
+	 */
+	private void visitAssign(Location<?> stmt, Map<Location<VariableDeclaration>, IntegerRange> values,
+			Set<Location<VariableDeclaration>> rejected) {
+		Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+		Location<?>[] rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+		for (int i = 0; i != lhs.length; ++i) {
+			Location<?> lval = lhs[i];
+			Location<VariableDeclaration> decl = IntegerRangeAnalysis.getVariable(lval);
+			if (decl != null && values.containsKey(decl)) {
+				// Assignment to the whole array
+				if (lhs.length == rhs.length) {
+					store(decl, rhs[i], values, rejected);
+				} else {
+					rejected.add(decl);
+				}
+				continue;
+			} else if (lval.getOpcode() == Bytecode.OPCODE_arrayindex) {
+				decl = IntegerRangeAnalysis.getVariable(lval.getOperand(0));
+				if (decl != null && values.containsKey(decl)) {
+					// Assignment to an element
+					if (lhs.length == rhs.length) {
+						record(decl, rhs[i], values);
+					} else {
+						rejected.add(decl);
+					}
+					visit(lval.getOperand(1), lval, values, rejected);
+					continue;
+				}
+			}
+			visit(lval, stmt, values, rejected);
+		}
+		for (Location<?> e : rhs) {
+			visit(e, stmt, values, rejected);
+		}
+	}
+
+	/**
+	 * Record the values of an array stored into a given variable. This must
+	 * be an array generator or initialiser, since otherwise the values of its
+	 * elements are unknown.
+	 *
+	 * @param decl
+	 * @param array
+	 * @param values
+	 * @param rejected
+	 */
+	private void store(Location<VariableDeclaration> decl, Location<?> array,
+			Map<Location<VariableDeclaration>, IntegerRange> values, Set<Location<VariableDeclaration>> rejected) {
+		switch (array.getOpcode()) {
+		case Bytecode.OPCODE_arraygen:
+			record(decl, array.getOperand(0), values);
+			break;
+		case Bytecode.OPCODE_array:
+			for (Location<?> element : array.getOperands()) {
+				record(decl, element, values);
+			}
+			break;
+		default:
+			rejected.add(decl);
+		}
+	}
+
+	/**
+	 * Record that a given expression is stored into an element of a given
+	 * array variable.
+	 *
+	 * @param decl
+	 * @param element
+	 * @param values
+	 */
+	private void record(Location<VariableDeclaration> decl, Location<?> element,
+			Map<Location<VariableDeclaration>, IntegerRange> values) {
+		IntegerRange r = ranges.rangeOf(element);
+		IntegerRange current = values.get(decl);
+		values.put(decl, current == null ? r : current.union(r));
+	}
+
+	private static boolean isPermittedUse(Location<?> access, Location<?> parent) {
+		if (parent == null) {
+			return false;
+		}
+		switch (parent.getOpcode()) {
+		case Bytecode.OPCODE_arraylength:
+			return true;
+		case Bytecode.OPCODE_arrayindex:
+			return parent.getOperand(0) == access;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the narrowest element type which holds all of a given range
+	 * of values, provided this is narrower than the declared element type.
+	 * Otherwise, null is returned.
+	 *
+	 * @param declared
+	 * @param range
+	 * @return
+	 */
+	private static Type narrow(Type declared, IntegerRange range) {
+		int width = widths.get(declared);
+		for (Type candidate : candidates) {
+			if (widths.get(candidate) >= width) {
+				return null;
+			} else if (IntegerRangeAnalysis.rangeOf(candidate).contains(range)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a given type is an array of fixed-width integers.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static boolean isIntegerArray(Type type) {
+		return type instanceof Type.Array && widths.containsKey(((Type.Array) type).element());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		return null;
+	}
+
+	private static Type intType(String name) {
+		return Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"), name));
+	}
+
+	/**
+	 * The candidate element types, in order of preference.
+	 */
+	private static final Type[] candidates = { intType("u8"), intType("i8"), intType("u16"), intType("i16"),
+			intType("u32"), intType("i32"), intType("u64"), intType("i64") };
+
+	private static HashMap<Type, Integer> widths = new HashMap<Type, Integer>() {
+		{
+			put(intType("i8"), 8);
+			put(intType("i16"), 16);
+			put(intType("i32"), 32);
+			put(intType("i64"), 64);
+			put(intType("u8"), 8);
+			put(intType("u16"), 16);
+			put(intType("u32"), 32);
+			put(intType("u64"), 64);
+		}
+	};
+}
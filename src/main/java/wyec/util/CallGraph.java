@@ -0,0 +1,185 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.util.*;
+
+import wybs.lang.NameID;
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.FunctionOrMethod;
+
+/**
+ * Represents the direct calls between functions and methods within a single
+ * module. Calls to functions or methods in other modules are not included.
+ * This is used, for example, to determine which functions are reachable from
+ * a given set of entry points, and in which order functions should be
+ * analysed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CallGraph {
+	private final WyilFile module;
+
+	/**
+	 * The functions and methods directly invoked by each function or method.
+	 * Callees are listed in the order they are first invoked.
+	 */
+	private final Map<FunctionOrMethod, List<FunctionOrMethod>> callees = new IdentityHashMap<FunctionOrMethod, List<FunctionOrMethod>>();
+
+	public CallGraph(WyilFile module) {
+		this.module = module;
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			LinkedHashSet<FunctionOrMethod> targets = new LinkedHashSet<FunctionOrMethod>();
+			SyntaxTree tree = fm.getTree();
+			for (Location<?> loc : tree.getLocations()) {
+				if (loc.getOpcode() == Bytecode.OPCODE_invoke) {
+					FunctionOrMethod target = resolve((Bytecode.Invoke) loc.getBytecode());
+					if (target != null) {
+						targets.add(target);
+					}
+				}
+			}
+			callees.put(fm, new ArrayList<FunctionOrMethod>(targets));
+		}
+	}
+
+	public WyilFile getModule() {
+		return module;
+	}
+
+	/**
+	 * Get the functions and methods directly invoked by a given function or
+	 * method in this module.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public List<FunctionOrMethod> getCallees(FunctionOrMethod fm) {
+		List<FunctionOrMethod> r = callees.get(fm);
+		return r == null ? Collections.<FunctionOrMethod>emptyList() : r;
+	}
+
+	/**
+	 * Resolve the target of an invocation to a function or method in this
+	 * module, or return null if the target is in another module.
+	 *
+	 * @param invoke
+	 * @return
+	 */
+	public FunctionOrMethod resolve(Bytecode.Invoke invoke) {
+		NameID name = invoke.name();
+		if (!name.module().equals(module.getEntry().id())) {
+			return null;
+		}
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			if (fm.name().equals(name.name()) && fm.type().equals(invoke.type())) {
+				return fm;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine the strongly connected components of this call graph, using
+	 * Tarjan's algorithm. Each component is either a single function which is
+	 * not recursive, or a set of mutually recursive functions. Components
+	 * are returned in reverse topological order, such that every component
+	 * appears after those containing the functions it invokes.
+	 *
+	 * @return
+	 */
+	public List<List<FunctionOrMethod>> getStronglyConnectedComponents() {
+		Tarjan tarjan = new Tarjan();
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			if (!tarjan.index.containsKey(fm)) {
+				tarjan.visit(fm);
+			}
+		}
+		return tarjan.components;
+	}
+
+	/**
+	 * Check whether a given function or method is recursive, either directly
+	 * or through other functions or methods in this module.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public boolean isRecursive(FunctionOrMethod fm) {
+		for (FunctionOrMethod callee : reachable(getCallees(fm))) {
+			if (callee == fm) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private final class Tarjan {
+		private final Map<FunctionOrMethod, Integer> index = new IdentityHashMap<FunctionOrMethod, Integer>();
+		private final Map<FunctionOrMethod, Integer> lowlink = new IdentityHashMap<FunctionOrMethod, Integer>();
+		private final ArrayDeque<FunctionOrMethod> stack = new ArrayDeque<FunctionOrMethod>();
+		private final Set<FunctionOrMethod> onStack = Collections
+				.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		private final List<List<FunctionOrMethod>> components = new ArrayList<List<FunctionOrMethod>>();
+
+		private void visit(FunctionOrMethod fm) {
+			int i = index.size();
+			index.put(fm, i);
+			lowlink.put(fm, i);
+			stack.push(fm);
+			onStack.add(fm);
+			for (FunctionOrMethod callee : getCallees(fm)) {
+				if (!index.containsKey(callee)) {
+					visit(callee);
+					lowlink.put(fm, Math.min(lowlink.get(fm), lowlink.get(callee)));
+				} else if (onStack.contains(callee)) {
+					lowlink.put(fm, Math.min(lowlink.get(fm), index.get(callee)));
+				}
+			}
+			if (lowlink.get(fm).equals(index.get(fm))) {
+				List<FunctionOrMethod> component = new ArrayList<FunctionOrMethod>();
+				FunctionOrMethod member;
+				do {
+					member = stack.pop();
+					onStack.remove(member);
+					component.add(member);
+				} while (member != fm);
+				components.add(component);
+			}
+		}
+	}
+
+	/**
+	 * Determine all functions and methods which are reachable from a given
+	 * set of entry points, including the entry points themselves. These are
+	 * returned in the order of declaration.
+	 *
+	 * @param roots
+	 * @return
+	 */
+	public List<FunctionOrMethod> reachable(Collection<FunctionOrMethod> roots) {
+		Set<FunctionOrMethod> visited = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		ArrayDeque<FunctionOrMethod> worklist = new ArrayDeque<FunctionOrMethod>(roots);
+		while (!worklist.isEmpty()) {
+			FunctionOrMethod fm = worklist.pop();
+			if (visited.add(fm)) {
+				worklist.addAll(getCallees(fm));
+			}
+		}
+		List<FunctionOrMethod> result = new ArrayList<FunctionOrMethod>();
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			if (visited.contains(fm)) {
+				result.add(fm);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,315 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.util.*;
+
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Identifies common subexpressions within the straight-line sections of a
+ * block, using value numbering. For example, consider the following:
+ * </p>
+ *
+ * <pre>
+ * int y = f(x) + f(x)
+ * int z = xs[i] * xs[i]
+ * </pre>
+ *
+ * <p>
+ * Assuming <code>f</code> is a function, both <code>f(x)</code> and
+ * <code>xs[i]</code> need be evaluated only once. Each variable access is
+ * numbered according to the <i>version</i> of the variable being read, where
+ * every assignment to a variable creates a new version. Thus, two expressions
+ * are only considered equivalent when there is no intervening write to any
+ * variable they read.
+ * </p>
+ *
+ * <p>
+ * Only invocations of (pure) functions, field loads and array index reads are
+ * considered for elimination, since these are the expressions which are
+ * costly to re-evaluate. Furthermore, expressions are only considered when
+ * they are unconditionally evaluated by their enclosing statement. That is,
+ * not in the right-hand side of a short-circuiting operator, or within a
+ * quantifier or lambda. Assertions and assumptions are only considered when
+ * checks are written, since otherwise the expressions within them are never
+ * evaluated.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CommonSubexpressionAnalysis {
+	/**
+	 * Unique identifiers for each variable declaration encountered.
+	 */
+	private final Map<Location<VariableDeclaration>, Integer> identifiers = new IdentityHashMap<Location<VariableDeclaration>, Integer>();
+
+	/**
+	 * Current version of each variable, where a missing entry indicates
+	 * version zero.
+	 */
+	private final Map<Location<VariableDeclaration>, Integer> versions = new IdentityHashMap<Location<VariableDeclaration>, Integer>();
+
+	/**
+	 * Indicates whether assertions and assumptions are evaluated (i.e. checks
+	 * are not stripped).
+	 */
+	private final boolean checks;
+
+	public CommonSubexpressionAnalysis() {
+		this(true);
+	}
+
+	/**
+	 * Construct an analysis which only considers assertions and assumptions
+	 * when checks are evaluated.
+	 *
+	 * @param checks
+	 *            Whether checks are evaluated (i.e. are not stripped).
+	 */
+	public CommonSubexpressionAnalysis(boolean checks) {
+		this.checks = checks;
+	}
+
+	/**
+	 * Determine the common subexpressions within a given block. The result
+	 * maps each statement to the groups of equivalent expressions which
+	 * should be evaluated immediately before it, since that statement
+	 * contains the first occurrence. Groups are ordered such that any group
+	 * occurring within another comes first.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public Map<Location<?>, List<List<Location<?>>>> apply(Location<Bytecode.Block> block) {
+		Map<Location<?>, List<List<Location<?>>>> result = new IdentityHashMap<Location<?>, List<List<Location<?>>>>();
+		Map<String, List<Location<?>>> groups = new HashMap<String, List<Location<?>>>();
+		Map<List<Location<?>>, Location<?>> firsts = new IdentityHashMap<List<Location<?>>, Location<?>>();
+		List<List<Location<?>>> order = new ArrayList<List<Location<?>>>();
+		//
+		for (int i = 0; i != block.numberOfOperands(); ++i) {
+			Location<?> stmt = block.getOperand(i);
+			switch (stmt.getOpcode()) {
+			case Bytecode.OPCODE_assert:
+			case Bytecode.OPCODE_assume:
+				if (!checks) {
+					// Stripped checks are not evaluated, but neither do they
+					// end this section
+					break;
+				}
+				number(stmt, stmt, groups, firsts, order);
+				break;
+			case Bytecode.OPCODE_vardecl:
+			case Bytecode.OPCODE_vardeclinit:
+			case Bytecode.OPCODE_assign:
+			case Bytecode.OPCODE_return:
+			case Bytecode.OPCODE_invoke:
+			case Bytecode.OPCODE_indirectinvoke:
+				number(stmt, stmt, groups, firsts, order);
+				update(stmt);
+				break;
+			case Bytecode.OPCODE_if:
+			case Bytecode.OPCODE_ifelse:
+			case Bytecode.OPCODE_switch:
+				// The condition is evaluated in straight-line code, but the
+				// remainder ends this section.
+				number(stmt.getOperand(0), stmt, groups, firsts, order);
+				finish(groups, firsts, order, result);
+				break;
+			default:
+				finish(groups, firsts, order, result);
+			}
+		}
+		finish(groups, firsts, order, result);
+		return result;
+	}
+
+	/**
+	 * Close the current straight-line section, recording all groups with
+	 * more than one occurrence.
+	 */
+	private void finish(Map<String, List<Location<?>>> groups, Map<List<Location<?>>, Location<?>> firsts,
+			List<List<Location<?>>> order, Map<Location<?>, List<List<Location<?>>>> result) {
+		for (List<Location<?>> group : order) {
+			if (group.size() > 1) {
+				Location<?> stmt = firsts.get(group);
+				List<List<Location<?>>> groupsForStmt = result.get(stmt);
+				if (groupsForStmt == null) {
+					groupsForStmt = new ArrayList<List<Location<?>>>();
+					result.put(stmt, groupsForStmt);
+				}
+				groupsForStmt.add(group);
+			}
+		}
+		groups.clear();
+		firsts.clear();
+		order.clear();
+	}
+
+	/**
+	 * Record all candidate expressions occurring unconditionally within a
+	 * given location. When an expression is found to be a repeat of an
+	 * earlier one, its subexpressions are not recorded since they will not
+	 * be evaluated.
+	 */
+	private void number(Location<?> loc, Location<?> stmt, Map<String, List<Location<?>>> groups,
+			Map<List<Location<?>>, Location<?>> firsts, List<List<Location<?>>> order) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+		case Bytecode.OPCODE_aliasdecl:
+		case Bytecode.OPCODE_all:
+		case Bytecode.OPCODE_some:
+		case Bytecode.OPCODE_lambda:
+			return;
+		case Bytecode.OPCODE_logicaland:
+		case Bytecode.OPCODE_logicalor:
+			// The right-hand side is only conditionally evaluated
+			number(loc.getOperand(0), stmt, groups, firsts, order);
+			return;
+		case Bytecode.OPCODE_assign:
+			// The left-hand sides are written, not read
+			for (Location<?> operand : loc.getOperandGroup(SyntaxTree.RIGHTHANDSIDE)) {
+				number(operand, stmt, groups, firsts, order);
+			}
+			return;
+		case Bytecode.OPCODE_invoke:
+		case Bytecode.OPCODE_fieldload:
+		case Bytecode.OPCODE_arrayindex: {
+			String key = key(loc);
+			if (key != null) {
+				List<Location<?>> group = groups.get(key);
+				if (group != null) {
+					group.add(loc);
+					return;
+				}
+				for (int i = 0; i != loc.numberOfOperands(); ++i) {
+					number(loc.getOperand(i), stmt, groups, firsts, order);
+				}
+				group = new ArrayList<Location<?>>();
+				group.add(loc);
+				groups.put(key, group);
+				firsts.put(group, stmt);
+				order.add(group);
+				return;
+			}
+		}
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			number(loc.getOperand(i), stmt, groups, firsts, order);
+		}
+	}
+
+	/**
+	 * Update the versions of any variables assigned by a given statement.
+	 *
+	 * @param stmt
+	 */
+	private void update(Location<?> stmt) {
+		if (stmt.getOpcode() == Bytecode.OPCODE_assign) {
+			for (Location<?> lval : stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+				Location<VariableDeclaration> decl = LoopInvariantAnalysis.getAssignedVariable(lval);
+				if (decl != null) {
+					versions.put(decl, version(decl) + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the value number (as a string key) of a given expression, or
+	 * null if the expression is not pure.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private String key(Location<?> expr) {
+		String prefix;
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_const:
+			return "#" + ((Location<Bytecode.Const>) expr).getBytecode().constant() + ":" + expr.getType();
+		case Bytecode.OPCODE_varaccess: {
+			Location<VariableDeclaration> decl = getVariableDeclaration(expr.getOperand(0));
+			return decl == null ? null : "$" + identifier(decl) + "@" + version(decl);
+		}
+		case Bytecode.OPCODE_invoke: {
+			Bytecode.Invoke bytecode = ((Location<Bytecode.Invoke>) expr).getBytecode();
+			if (!(bytecode.type() instanceof Type.Function)) {
+				return null;
+			}
+			prefix = bytecode.name() + ":" + bytecode.type();
+			break;
+		}
+		case Bytecode.OPCODE_fieldload:
+			prefix = "." + ((Location<Bytecode.FieldLoad>) expr).getBytecode().fieldName();
+			break;
+		case Bytecode.OPCODE_arrayindex:
+		case Bytecode.OPCODE_arraylength:
+		case Bytecode.OPCODE_add:
+		case Bytecode.OPCODE_sub:
+		case Bytecode.OPCODE_mul:
+		case Bytecode.OPCODE_neg:
+		case Bytecode.OPCODE_bitwiseinvert:
+		case Bytecode.OPCODE_bitwiseand:
+		case Bytecode.OPCODE_bitwiseor:
+		case Bytecode.OPCODE_bitwisexor:
+		case Bytecode.OPCODE_shl:
+		case Bytecode.OPCODE_shr:
+			prefix = "op" + expr.getOpcode();
+			break;
+		case Bytecode.OPCODE_convert:
+			prefix = "(" + expr.getType() + ")";
+			break;
+		default:
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(prefix);
+		sb.append("(");
+		for (int i = 0; i != expr.numberOfOperands(); ++i) {
+			String operand = key(expr.getOperand(i));
+			if (operand == null) {
+				return null;
+			}
+			sb.append(i == 0 ? "" : ",");
+			sb.append(operand);
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+	private int identifier(Location<VariableDeclaration> decl) {
+		Integer id = identifiers.get(decl);
+		if (id == null) {
+			id = identifiers.size();
+			identifiers.put(decl, id);
+		}
+		return id;
+	}
+
+	private int version(Location<VariableDeclaration> decl) {
+		Integer v = versions.get(decl);
+		return v == null ? 0 : v;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		return null;
+	}
+}
@@ -0,0 +1,227 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * <p>
+ * Records the time spent in, memory allocated by and code emitted by each
+ * phase of compilation. Phases are recorded per module and, optionally, per
+ * function. The results can be written either as a structured JSON report
+ * (e.g. for consumption by a continuous integration server) or as a compact
+ * human-readable summary.
+ * </p>
+ *
+ * <p>
+ * Allocated bytes are measured for the current thread, and are only available
+ * on JVMs which support this (e.g. HotSpot). Otherwise, they are reported as
+ * <code>-1</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CompilerMetrics {
+	/**
+	 * Phase name for decoding of WyIL files.
+	 */
+	public static final String DECODE = "decode";
+	/**
+	 * Phase name for analysis of functions and methods.
+	 */
+	public static final String ANALYSIS = "analysis";
+	/**
+	 * Phase name for emission of C code.
+	 */
+	public static final String EMISSION = "emission";
+
+	private final List<Record> records = new ArrayList<Record>();
+
+	/**
+	 * Begin timing a given phase.
+	 *
+	 * @param module
+	 *            Name of the module being compiled.
+	 * @param function
+	 *            Name of the function being compiled, or null if this phase
+	 *            applies to the whole module.
+	 * @param phase
+	 *            Name of the phase.
+	 * @return
+	 */
+	public Timer start(String module, String function, String phase) {
+		return new Timer(module, function, phase);
+	}
+
+	public List<Record> getRecords() {
+		return Collections.unmodifiableList(records);
+	}
+
+	/**
+	 * Represents a phase which is currently being timed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public final class Timer {
+		private final String module;
+		private final String function;
+		private final String phase;
+		private final long startTime;
+		private final long startAllocated;
+
+		private Timer(String module, String function, String phase) {
+			this.module = module;
+			this.function = function;
+			this.phase = phase;
+			this.startAllocated = allocatedBytes();
+			this.startTime = System.nanoTime();
+		}
+
+		/**
+		 * Finish timing this phase.
+		 *
+		 * @param emitted
+		 *            The number of bytes emitted during this phase.
+		 */
+		public void stop(long emitted) {
+			long time = System.nanoTime() - startTime;
+			long endAllocated = allocatedBytes();
+			long allocated = startAllocated < 0 || endAllocated < 0 ? -1 : endAllocated - startAllocated;
+			synchronized (records) {
+				records.add(new Record(module, function, phase, time, allocated, emitted));
+			}
+		}
+	}
+
+	/**
+	 * The measurements for a single phase.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Record {
+		public final String module;
+		public final String function;
+		public final String phase;
+		public final long time;
+		public final long allocated;
+		public final long emitted;
+
+		public Record(String module, String function, String phase, long time, long allocated, long emitted) {
+			this.module = module;
+			this.function = function;
+			this.phase = phase;
+			this.time = time;
+			this.allocated = allocated;
+			this.emitted = emitted;
+		}
+	}
+
+	// ======================================================================
+	// Reporting
+	// ======================================================================
+
+	/**
+	 * Write all records as a JSON report. Times are given in nanoseconds.
+	 *
+	 * @param out
+	 */
+	public void writeJSON(PrintStream out) {
+		out.println("{");
+		out.println("  \"records\": [");
+		for (int i = 0; i != records.size(); ++i) {
+			Record r = records.get(i);
+			out.print("    {\"module\": " + quote(r.module));
+			out.print(", \"function\": " + quote(r.function));
+			out.print(", \"phase\": " + quote(r.phase));
+			out.print(", \"time\": " + r.time);
+			out.print(", \"allocated\": " + r.allocated);
+			out.print(", \"emitted\": " + r.emitted + "}");
+			out.println(i + 1 == records.size() ? "" : ",");
+		}
+		out.println("  ]");
+		out.println("}");
+	}
+
+	/**
+	 * Write a compact summary, giving the totals for each phase of each module
+	 * followed by the most expensive functions.
+	 *
+	 * @param out
+	 */
+	public void writeSummary(PrintStream out) {
+		List<Record> functions = new ArrayList<Record>();
+		for (Record r : records) {
+			if (r.function == null) {
+				out.println(String.format("%-24s %-10s %8.2fms %10s %10s", r.module, r.phase, r.time / 1e6,
+						bytes(r.allocated), bytes(r.emitted)));
+			} else {
+				functions.add(r);
+			}
+		}
+		Collections.sort(functions, new Comparator<Record>() {
+			public int compare(Record r1, Record r2) {
+				return Long.compare(r2.time, r1.time);
+			}
+		});
+		for (int i = 0; i < functions.size() && i < 10; ++i) {
+			Record r = functions.get(i);
+			out.println(String.format("  %-22s %-10s %8.2fms %10s %10s", r.function, r.phase, r.time / 1e6,
+					bytes(r.allocated), bytes(r.emitted)));
+		}
+	}
+
+	private static String bytes(long n) {
+		if (n < 0) {
+			return "-";
+		} else if (n < 1024) {
+			return n + "B";
+		} else if (n < 1024 * 1024) {
+			return (n / 1024) + "KB";
+		} else {
+			return (n / (1024 * 1024)) + "MB";
+		}
+	}
+
+	private static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+	/**
+	 * Determine the number of bytes allocated by the current thread, or -1 if
+	 * this is not supported by the JVM.
+	 *
+	 * @return
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,671 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import wyec.lang.IntegerRange;
+import wyil.lang.Bytecode;
+import wyil.lang.Constant;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.Bytecode.VariableDeclaration;
+import wyil.lang.WyilFile.FunctionOrMethod;
+
+/**
+ * <p>
+ * Evaluates invocations of functions whose arguments are all constant at
+ * compile time, such that they can be replaced by their result. For example,
+ * consider:
+ * </p>
+ *
+ * <pre>
+ * function taps(int n) -> int:
+ *     return (n * 2) + 1
+ * ...
+ * int[] coeffs = [0; taps(8)]
+ * </pre>
+ *
+ * <p>
+ * Here, <code>taps(8)</code> can be replaced with <code>17</code>. Only
+ * functions (which are pure) declared in the same module are evaluated, and
+ * only results which are integers or booleans are returned, since these can
+ * be written directly as C literals. Evaluation is performed by a simple
+ * interpreter over the syntax tree, which supports integers, booleans, arrays
+ * and records. Anything else (e.g. references, lambdas or calls to other
+ * modules) causes evaluation to be abandoned.
+ * </p>
+ *
+ * <p>
+ * Evaluation is bounded by a limit on the number of steps (i.e. statements
+ * and expressions evaluated), and a limit on the memory allocated (i.e. the
+ * total number of array elements and record fields created). Evaluation is
+ * abandoned if either is exceeded, or if evaluation fails (e.g. an assertion
+ * does not hold, or an array is indexed out of bounds).
+ * </p>
+ *
+ * <p>
+ * Since the result replaces the invocation, evaluation must also be
+ * abandoned wherever the generated code would not produce the same result.
+ * Hence, the preconditions and postconditions of every function evaluated
+ * are checked, as are the bounds of fixed-width integer types for
+ * parameters, returns and variables (since the generated code would
+ * otherwise overflow).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ConstantEvaluator {
+	/**
+	 * The maximum depth of nested invocations.
+	 */
+	private static final int MAX_DEPTH = 256;
+
+	private final CallGraph graph;
+	private final long maxSteps;
+	private final long maxMemory;
+
+	/**
+	 * The result of each invocation evaluated so far, where null indicates it
+	 * could not be evaluated.
+	 */
+	private final Map<Location<?>, Object> results = new IdentityHashMap<Location<?>, Object>();
+
+	private long steps;
+	private long memory;
+	private int depth;
+
+	/**
+	 * Construct an evaluator for the functions of a given module.
+	 *
+	 * @param graph
+	 *            Call graph of the module.
+	 * @param maxSteps
+	 *            Maximum number of steps for each evaluation.
+	 * @param maxMemory
+	 *            Maximum number of array elements and record fields
+	 *            allocated for each evaluation.
+	 */
+	public ConstantEvaluator(CallGraph graph, long maxSteps, long maxMemory) {
+		this.graph = graph;
+		this.maxSteps = maxSteps;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Evaluate a given invocation, returning its result as either a
+	 * <code>BigInteger</code> or a <code>Boolean</code>. If the invocation
+	 * cannot be evaluated, this returns null.
+	 *
+	 * @param invoke
+	 * @return
+	 */
+	public Object evaluate(Location<Bytecode.Invoke> invoke) {
+		if (results.containsKey(invoke)) {
+			return results.get(invoke);
+		}
+		Object result = null;
+		steps = 0;
+		memory = 0;
+		depth = 0;
+		try {
+			Object v = evaluate(invoke, new Frame());
+			if (v instanceof BigInteger || v instanceof Boolean) {
+				result = v;
+			}
+		} catch (Abandon e) {
+			// Evaluation not possible
+		} catch (ArithmeticException e) {
+			// e.g. division by zero
+		}
+		results.put(invoke, result);
+		return result;
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	private enum Status {
+		NEXT, BREAK, CONTINUE, RETURN
+	}
+
+	private Status executeBlock(Location<?> block, Frame frame) {
+		for (int i = 0; i != block.numberOfOperands(); ++i) {
+			Status s = execute(block.getOperand(i), frame);
+			if (s != Status.NEXT) {
+				return s;
+			}
+		}
+		return Status.NEXT;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Status execute(Location<?> stmt, Frame frame) {
+		step();
+		switch (stmt.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_aliasdecl:
+		case Bytecode.OPCODE_skip:
+		case Bytecode.OPCODE_debug:
+			return Status.NEXT;
+		case Bytecode.OPCODE_vardeclinit:
+			frame.put(stmt, check(stmt.getType(), copy(evaluate(stmt.getOperand(0), frame))));
+			return Status.NEXT;
+		case Bytecode.OPCODE_assign:
+			executeAssign(stmt, frame);
+			return Status.NEXT;
+		case Bytecode.OPCODE_assert:
+		case Bytecode.OPCODE_assume:
+			if (!asBoolean(evaluate(stmt.getOperand(0), frame))) {
+				throw Abandon.INSTANCE;
+			}
+			return Status.NEXT;
+		case Bytecode.OPCODE_break:
+			return Status.BREAK;
+		case Bytecode.OPCODE_continue:
+			return Status.CONTINUE;
+		case Bytecode.OPCODE_return:
+			if (stmt.numberOfOperands() == 1) {
+				frame.result = evaluate(stmt.getOperand(0), frame);
+			} else if (stmt.numberOfOperands() > 1) {
+				throw Abandon.INSTANCE;
+			}
+			return Status.RETURN;
+		case Bytecode.OPCODE_if:
+		case Bytecode.OPCODE_ifelse:
+			if (asBoolean(evaluate(stmt.getOperand(0), frame))) {
+				return executeBlock(stmt.getBlock(0), frame);
+			} else if (stmt.numberOfBlocks() > 1) {
+				return executeBlock(stmt.getBlock(1), frame);
+			}
+			return Status.NEXT;
+		case Bytecode.OPCODE_namedblock:
+			return executeBlock(stmt.getBlock(0), frame);
+		case Bytecode.OPCODE_while:
+			while (asBoolean(evaluate(stmt.getOperand(0), frame))) {
+				Status s = executeBlock(stmt.getBlock(0), frame);
+				if (s == Status.BREAK) {
+					break;
+				} else if (s == Status.RETURN) {
+					return s;
+				}
+			}
+			return Status.NEXT;
+		case Bytecode.OPCODE_dowhile:
+			do {
+				Status s = executeBlock(stmt.getBlock(0), frame);
+				if (s == Status.BREAK) {
+					break;
+				} else if (s == Status.RETURN) {
+					return s;
+				}
+			} while (asBoolean(evaluate(stmt.getOperand(0), frame)));
+			return Status.NEXT;
+		case Bytecode.OPCODE_switch:
+			return executeSwitch((Location<Bytecode.Switch>) stmt, frame);
+		case Bytecode.OPCODE_invoke:
+			// Invocations of functions as statements have no effect
+			return Status.NEXT;
+		}
+		// e.g. fail, indirect invocations
+		throw Abandon.INSTANCE;
+	}
+
+	private Status executeSwitch(Location<Bytecode.Switch> stmt, Frame frame) {
+		Object value = evaluate(stmt.getOperand(0), frame);
+		Bytecode.Case[] cases = stmt.getBytecode().cases();
+		int match = -1;
+		for (int i = 0; i != cases.length && match < 0; ++i) {
+			Constant[] values = cases[i].values();
+			if (values.length == 0) {
+				match = i;
+			}
+			for (Constant c : values) {
+				if (value.equals(toValue(c))) {
+					match = i;
+				}
+			}
+		}
+		if (match < 0) {
+			return Status.NEXT;
+		}
+		Status s = executeBlock(stmt.getBlock(match), frame);
+		// A break within a switch terminates only the switch
+		return s == Status.BREAK ? Status.NEXT : s;
+	}
+
+	private void executeAssign(Location<?> stmt, Frame frame) {
+		Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+		Location<?>[] rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+		if (lhs.length != rhs.length) {
+			throw Abandon.INSTANCE;
+		}
+		// Evaluate all right-hand sides before assigning any
+		Object[] values = new Object[rhs.length];
+		for (int i = 0; i != rhs.length; ++i) {
+			values[i] = copy(evaluate(rhs[i], frame));
+		}
+		for (int i = 0; i != lhs.length; ++i) {
+			assign(lhs[i], values[i], frame);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void assign(Location<?> lval, Object value, Frame frame) {
+		switch (lval.getOpcode()) {
+		case Bytecode.OPCODE_varaccess: {
+			Location<VariableDeclaration> decl = getVariableDeclaration(lval.getOperand(0));
+			frame.put(decl, check(decl.getType(), value));
+			return;
+		}
+		case Bytecode.OPCODE_arrayindex: {
+			Object[] array = asArray(evaluate(lval.getOperand(0), frame));
+			array[index(array, evaluate(lval.getOperand(1), frame))] = value;
+			return;
+		}
+		case Bytecode.OPCODE_fieldload: {
+			Map<String, Object> record = asRecord(evaluate(lval.getOperand(0), frame));
+			record.put(((Location<Bytecode.FieldLoad>) lval).getBytecode().fieldName(), value);
+			return;
+		}
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	// ======================================================================
+	// Expressions
+	// ======================================================================
+
+	@SuppressWarnings("unchecked")
+	private Object evaluate(Location<?> expr, Frame frame) {
+		step();
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_const:
+			return toValue(((Location<Bytecode.Const>) expr).getBytecode().constant());
+		case Bytecode.OPCODE_varaccess: {
+			Location<?> decl = getVariableDeclaration(expr.getOperand(0));
+			if (!frame.containsKey(decl)) {
+				throw Abandon.INSTANCE;
+			}
+			return frame.get(decl);
+		}
+		case Bytecode.OPCODE_convert:
+			return evaluate(expr.getOperand(0), frame);
+		case Bytecode.OPCODE_add:
+			return asInteger(evaluate(expr.getOperand(0), frame)).add(asInteger(evaluate(expr.getOperand(1), frame)));
+		case Bytecode.OPCODE_sub:
+			return asInteger(evaluate(expr.getOperand(0), frame))
+					.subtract(asInteger(evaluate(expr.getOperand(1), frame)));
+		case Bytecode.OPCODE_mul:
+			return asInteger(evaluate(expr.getOperand(0), frame))
+					.multiply(asInteger(evaluate(expr.getOperand(1), frame)));
+		case Bytecode.OPCODE_div:
+			// NOTE: BigInteger division truncates towards zero, as in C
+			return asInteger(evaluate(expr.getOperand(0), frame))
+					.divide(asInteger(evaluate(expr.getOperand(1), frame)));
+		case Bytecode.OPCODE_rem:
+			return asInteger(evaluate(expr.getOperand(0), frame))
+					.remainder(asInteger(evaluate(expr.getOperand(1), frame)));
+		case Bytecode.OPCODE_neg:
+			return asInteger(evaluate(expr.getOperand(0), frame)).negate();
+		case Bytecode.OPCODE_eq:
+			return equal(evaluate(expr.getOperand(0), frame), evaluate(expr.getOperand(1), frame));
+		case Bytecode.OPCODE_ne:
+			return !equal(evaluate(expr.getOperand(0), frame), evaluate(expr.getOperand(1), frame));
+		case Bytecode.OPCODE_lt:
+			return compare(expr, frame) < 0;
+		case Bytecode.OPCODE_le:
+			return compare(expr, frame) <= 0;
+		case Bytecode.OPCODE_gt:
+			return compare(expr, frame) > 0;
+		case Bytecode.OPCODE_ge:
+			return compare(expr, frame) >= 0;
+		case Bytecode.OPCODE_logicalnot:
+			return !asBoolean(evaluate(expr.getOperand(0), frame));
+		case Bytecode.OPCODE_logicaland:
+			for (Location<?> operand : expr.getOperands()) {
+				if (!asBoolean(evaluate(operand, frame))) {
+					return false;
+				}
+			}
+			return true;
+		case Bytecode.OPCODE_logicalor:
+			for (Location<?> operand : expr.getOperands()) {
+				if (asBoolean(evaluate(operand, frame))) {
+					return true;
+				}
+			}
+			return false;
+		case Bytecode.OPCODE_arraylength:
+			return BigInteger.valueOf(asArray(evaluate(expr.getOperand(0), frame)).length);
+		case Bytecode.OPCODE_arrayindex: {
+			Object[] array = asArray(evaluate(expr.getOperand(0), frame));
+			return array[index(array, evaluate(expr.getOperand(1), frame))];
+		}
+		case Bytecode.OPCODE_arraygen: {
+			Object element = evaluate(expr.getOperand(0), frame);
+			BigInteger n = asInteger(evaluate(expr.getOperand(1), frame));
+			if (n.signum() < 0) {
+				throw Abandon.INSTANCE;
+			}
+			Object[] array = new Object[allocate(n)];
+			for (int i = 0; i != array.length; ++i) {
+				array[i] = copy(element);
+			}
+			return array;
+		}
+		case Bytecode.OPCODE_array: {
+			Object[] array = new Object[allocate(BigInteger.valueOf(expr.numberOfOperands()))];
+			for (int i = 0; i != array.length; ++i) {
+				array[i] = copy(evaluate(expr.getOperand(i), frame));
+			}
+			return array;
+		}
+		case Bytecode.OPCODE_record: {
+			String[] fields = ((Type.EffectiveRecord) expr.getType()).getFieldNames();
+			allocate(BigInteger.valueOf(fields.length));
+			Map<String, Object> record = new HashMap<String, Object>();
+			for (int i = 0; i != fields.length; ++i) {
+				record.put(fields[i], copy(evaluate(expr.getOperand(i), frame)));
+			}
+			return record;
+		}
+		case Bytecode.OPCODE_fieldload:
+			return asRecord(evaluate(expr.getOperand(0), frame))
+					.get(((Location<Bytecode.FieldLoad>) expr).getBytecode().fieldName());
+		case Bytecode.OPCODE_all:
+		case Bytecode.OPCODE_some:
+			return evaluateQuantifier(expr, frame);
+		case Bytecode.OPCODE_invoke:
+			return evaluateInvoke((Location<Bytecode.Invoke>) expr, frame);
+		}
+		// e.g. lambdas, references, bitwise operations
+		throw Abandon.INSTANCE;
+	}
+
+	private int compare(Location<?> expr, Frame frame) {
+		return asInteger(evaluate(expr.getOperand(0), frame)).compareTo(asInteger(evaluate(expr.getOperand(1), frame)));
+	}
+
+	private Object evaluateQuantifier(Location<?> expr, Frame frame) {
+		if (expr.numberOfOperandGroups() != 1) {
+			throw Abandon.INSTANCE;
+		}
+		boolean all = expr.getOpcode() == Bytecode.OPCODE_all;
+		Location<?>[] range = expr.getOperandGroup(0);
+		BigInteger start = asInteger(evaluate(range[SyntaxTree.START], frame));
+		BigInteger end = asInteger(evaluate(range[SyntaxTree.END], frame));
+		for (BigInteger i = start; i.compareTo(end) < 0; i = i.add(BigInteger.ONE)) {
+			frame.put(range[SyntaxTree.VARIABLE], i);
+			if (asBoolean(evaluate(expr.getOperand(SyntaxTree.CONDITION), frame)) != all) {
+				return !all;
+			}
+		}
+		return all;
+	}
+
+	private Object evaluateInvoke(Location<Bytecode.Invoke> expr, Frame frame) {
+		Bytecode.Invoke invoke = expr.getBytecode();
+		if (!(invoke.type() instanceof Type.Function)) {
+			// Methods may have side effects
+			throw Abandon.INSTANCE;
+		}
+		FunctionOrMethod target = graph.resolve(invoke);
+		if (target == null || target.getBody() == null || ++depth > MAX_DEPTH) {
+			throw Abandon.INSTANCE;
+		}
+		Type.FunctionOrMethod type = target.type();
+		Frame callee = new Frame();
+		for (int i = 0; i != expr.numberOfOperands(); ++i) {
+			callee.put(target.getTree().getLocation(i), check(type.params()[i], copy(evaluate(expr.getOperand(i), frame))));
+		}
+		for (Location<?> condition : target.getPrecondition()) {
+			if (!asBoolean(evaluate(condition, callee))) {
+				throw Abandon.INSTANCE;
+			}
+		}
+		// Postconditions refer to the original values of parameters, which
+		// the body may update in place
+		Frame original = new Frame();
+		for (Map.Entry<Location<?>, Object> e : callee.entrySet()) {
+			original.put(e.getKey(), copy(e.getValue()));
+		}
+		Status s = executeBlock(target.getBody(), callee);
+		depth--;
+		if (s != Status.RETURN || callee.result == null || type.returns().length != 1) {
+			throw Abandon.INSTANCE;
+		}
+		Object result = check(type.returns()[0], callee.result);
+		// The return value is declared immediately after the parameters
+		original.put(target.getTree().getLocation(type.params().length), result);
+		for (Location<?> condition : target.getPostcondition()) {
+			if (!asBoolean(evaluate(condition, original))) {
+				throw Abandon.INSTANCE;
+			}
+		}
+		return result;
+	}
+
+	// ======================================================================
+	// Values
+	// ======================================================================
+
+	private static Object toValue(Constant c) {
+		if (c instanceof Constant.Integer) {
+			return ((Constant.Integer) c).value();
+		} else if (c instanceof Constant.Bool) {
+			return ((Constant.Bool) c).value();
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	/**
+	 * Copy a given value. Since arrays and records are values in Whiley, but
+	 * are updated in place here, they must be copied whenever they are
+	 * bound to a variable or stored in another value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	Object copy(Object value) {
+		if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			Object[] r = new Object[allocate(BigInteger.valueOf(array.length))];
+			for (int i = 0; i != r.length; ++i) {
+				r[i] = copy(array[i]);
+			}
+			return r;
+		} else if (value instanceof Map) {
+			Map<String, Object> record = (Map<String, Object>) value;
+			allocate(BigInteger.valueOf(record.size()));
+			Map<String, Object> r = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> e : record.entrySet()) {
+				r.put(e.getKey(), copy(e.getValue()));
+			}
+			return r;
+		}
+		return value;
+	}
+
+	/**
+	 * Check whether two values are equal. Arrays and records are compared
+	 * structurally, since they are values in Whiley.
+	 *
+	 * @param v1
+	 * @param v2
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean equal(Object v1, Object v2) {
+		if (v1 instanceof Object[] && v2 instanceof Object[]) {
+			Object[] a1 = (Object[]) v1;
+			Object[] a2 = (Object[]) v2;
+			if (a1.length != a2.length) {
+				return false;
+			}
+			for (int i = 0; i != a1.length; ++i) {
+				if (!equal(a1[i], a2[i])) {
+					return false;
+				}
+			}
+			return true;
+		} else if (v1 instanceof Map && v2 instanceof Map) {
+			Map<String, Object> r1 = (Map<String, Object>) v1;
+			Map<String, Object> r2 = (Map<String, Object>) v2;
+			if (!r1.keySet().equals(r2.keySet())) {
+				return false;
+			}
+			for (Map.Entry<String, Object> e : r1.entrySet()) {
+				if (!equal(e.getValue(), r2.get(e.getKey()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return v1.equals(v2);
+	}
+
+	/**
+	 * Check that a given value fits the bounds of a given type, where these
+	 * are known (i.e. for fixed-width integers, and arrays or records of
+	 * them). Otherwise, evaluation is abandoned.
+	 *
+	 * @param type
+	 * @param value
+	 * @return The value.
+	 */
+	private static Object check(Type type, Object value) {
+		if (!fits(type, value)) {
+			throw Abandon.INSTANCE;
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean fits(Type type, Object value) {
+		if (value instanceof BigInteger) {
+			BigInteger v = (BigInteger) value;
+			return IntegerRangeAnalysis.rangeOf(type).contains(new IntegerRange(v, v));
+		} else if (value instanceof Object[] && type instanceof Type.Array) {
+			Type elementT = ((Type.Array) type).element();
+			for (Object element : (Object[]) value) {
+				if (!fits(elementT, element)) {
+					return false;
+				}
+			}
+		} else if (value instanceof Map && type instanceof Type.Record) {
+			Type.Record recordT = (Type.Record) type;
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+				Type fieldT = recordT.getField(e.getKey());
+				if (fieldT != null && !fits(fieldT, e.getValue())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static BigInteger asInteger(Object value) {
+		if (value instanceof BigInteger) {
+			return (BigInteger) value;
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	private static boolean asBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	private static Object[] asArray(Object value) {
+		if (value instanceof Object[]) {
+			return (Object[]) value;
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asRecord(Object value) {
+		if (value instanceof Map) {
+			return (Map<String, Object>) value;
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	/**
+	 * Get the position of a given index into a given array, abandoning
+	 * evaluation if it is out of bounds.
+	 *
+	 * @param array
+	 * @param index
+	 * @return
+	 */
+	static int index(Object[] array, Object index) {
+		BigInteger i = asInteger(index);
+		if (i.signum() < 0 || i.compareTo(BigInteger.valueOf(array.length)) >= 0) {
+			throw Abandon.INSTANCE;
+		}
+		return i.intValue();
+	}
+
+	// ======================================================================
+	// Limits
+	// ======================================================================
+
+	private void step() {
+		if (++steps > maxSteps) {
+			throw Abandon.INSTANCE;
+		}
+	}
+
+	private int allocate(BigInteger n) {
+		memory += n.min(BigInteger.valueOf(maxMemory + 1)).longValue();
+		if (memory > maxMemory) {
+			throw Abandon.INSTANCE;
+		}
+		return n.intValue();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		throw Abandon.INSTANCE;
+	}
+
+	/**
+	 * The values of variables in a single invocation.
+	 */
+	private static final class Frame extends IdentityHashMap<Location<?>, Object> {
+		private static final long serialVersionUID = 1L;
+		private Object result;
+	}
+
+	/**
+	 * Signals that evaluation has been abandoned.
+	 */
+	static final class Abandon extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private static final Abandon INSTANCE = new Abandon();
+
+		private Abandon() {
+			super(null, null, false, false);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import wyil.lang.Bytecode;
+
+/**
+ * <p>
+ * Gives the cost (in cycles) of each operation on a particular target. This
+ * is used to estimate the worst-case execution time of generated code. The
+ * costs are necessarily approximate, since they ignore the effects of
+ * caches, pipelines and the C compiler's own optimisations. However, they
+ * should be chosen to be pessimistic.
+ * </p>
+ *
+ * <p>
+ * A number of targets are built in (see {@link #forTarget(String)}).
+ * Otherwise, costs can be loaded from a properties file which maps operation
+ * names (e.g. <code>div</code>, <code>invoke</code>) to cycles. The special
+ * name <code>default</code> gives the cost of any operation not listed.
+ * Arithmetic operations on 64-bit integers may be given a separate cost by
+ * appending <code>64</code> to their name (e.g. <code>div64</code>), since
+ * on 32-bit targets these are often implemented by library routines.
+ * Otherwise, they cost the same as on narrower integers.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CostTable {
+	/**
+	 * Maps the name of each operation to its opcode.
+	 */
+	private static final Map<String, Integer> OPCODES = new LinkedHashMap<String, Integer>();
+
+	static {
+		OPCODES.put("const", Bytecode.OPCODE_const);
+		OPCODES.put("varaccess", Bytecode.OPCODE_varaccess);
+		OPCODES.put("assign", Bytecode.OPCODE_assign);
+		OPCODES.put("vardeclinit", Bytecode.OPCODE_vardeclinit);
+		OPCODES.put("add", Bytecode.OPCODE_add);
+		OPCODES.put("sub", Bytecode.OPCODE_sub);
+		OPCODES.put("mul", Bytecode.OPCODE_mul);
+		OPCODES.put("div", Bytecode.OPCODE_div);
+		OPCODES.put("rem", Bytecode.OPCODE_rem);
+		OPCODES.put("neg", Bytecode.OPCODE_neg);
+		OPCODES.put("shl", Bytecode.OPCODE_shl);
+		OPCODES.put("shr", Bytecode.OPCODE_shr);
+		OPCODES.put("bitwiseand", Bytecode.OPCODE_bitwiseand);
+		OPCODES.put("bitwiseor", Bytecode.OPCODE_bitwiseor);
+		OPCODES.put("bitwisexor", Bytecode.OPCODE_bitwisexor);
+		OPCODES.put("bitwiseinvert", Bytecode.OPCODE_bitwiseinvert);
+		OPCODES.put("eq", Bytecode.OPCODE_eq);
+		OPCODES.put("ne", Bytecode.OPCODE_ne);
+		OPCODES.put("lt", Bytecode.OPCODE_lt);
+		OPCODES.put("le", Bytecode.OPCODE_le);
+		OPCODES.put("gt", Bytecode.OPCODE_gt);
+		OPCODES.put("ge", Bytecode.OPCODE_ge);
+		OPCODES.put("logicaland", Bytecode.OPCODE_logicaland);
+		OPCODES.put("logicalor", Bytecode.OPCODE_logicalor);
+		OPCODES.put("logicalnot", Bytecode.OPCODE_logicalnot);
+		OPCODES.put("arrayindex", Bytecode.OPCODE_arrayindex);
+		OPCODES.put("arraylength", Bytecode.OPCODE_arraylength);
+		OPCODES.put("array", Bytecode.OPCODE_array);
+		OPCODES.put("arraygen", Bytecode.OPCODE_arraygen);
+		OPCODES.put("fieldload", Bytecode.OPCODE_fieldload);
+		OPCODES.put("record", Bytecode.OPCODE_record);
+		OPCODES.put("convert", Bytecode.OPCODE_convert);
+		OPCODES.put("invoke", Bytecode.OPCODE_invoke);
+		OPCODES.put("return", Bytecode.OPCODE_return);
+		OPCODES.put("if", Bytecode.OPCODE_if);
+		OPCODES.put("ifelse", Bytecode.OPCODE_ifelse);
+		OPCODES.put("switch", Bytecode.OPCODE_switch);
+		OPCODES.put("while", Bytecode.OPCODE_while);
+		OPCODES.put("dowhile", Bytecode.OPCODE_dowhile);
+		OPCODES.put("break", Bytecode.OPCODE_break);
+		OPCODES.put("continue", Bytecode.OPCODE_continue);
+		OPCODES.put("all", Bytecode.OPCODE_all);
+		OPCODES.put("some", Bytecode.OPCODE_some);
+		OPCODES.put("assert", Bytecode.OPCODE_assert);
+		OPCODES.put("assume", Bytecode.OPCODE_assume);
+		OPCODES.put("fail", Bytecode.OPCODE_fail);
+	}
+
+	/**
+	 * The operations which may be given a separate cost for 64-bit integers.
+	 */
+	private static final Set<String> WIDE_OPERATIONS = new HashSet<String>(
+			Arrays.asList("add", "sub", "mul", "div", "rem", "neg", "shl", "shr"));
+
+	private final String name;
+	private final Map<Integer, Integer> costs = new HashMap<Integer, Integer>();
+	private final Map<Integer, Integer> wideCosts = new HashMap<Integer, Integer>();
+	private int defaultCost = 1;
+
+	public CostTable(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the cost of a given operation. For operations on arrays which are
+	 * proportional to their length (e.g. array generators), this is the cost
+	 * per element. For loops and conditionals, this is the cost of each
+	 * branch taken.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public int get(int opcode) {
+		Integer c = costs.get(opcode);
+		return c == null ? defaultCost : c;
+	}
+
+	/**
+	 * Get the cost of a given operation, where the operands may be 64-bit
+	 * integers.
+	 *
+	 * @param opcode
+	 * @param wide
+	 *            Indicates whether the operands are 64-bit integers.
+	 * @return
+	 */
+	public int get(int opcode, boolean wide) {
+		Integer c = wide ? wideCosts.get(opcode) : null;
+		return c == null ? get(opcode) : c;
+	}
+
+	/**
+	 * Set the cost of a named operation.
+	 *
+	 * @param operation
+	 *            Name of the operation (e.g. <code>"div"</code> or
+	 *            <code>"div64"</code>), or <code>"default"</code>.
+	 * @param cycles
+	 */
+	public void set(String operation, int cycles) {
+		if (operation.equals("default")) {
+			defaultCost = cycles;
+			return;
+		} else if (operation.endsWith("64")
+				&& WIDE_OPERATIONS.contains(operation.substring(0, operation.length() - 2))) {
+			wideCosts.put(OPCODES.get(operation.substring(0, operation.length() - 2)), cycles);
+			return;
+		}
+		Integer opcode = OPCODES.get(operation);
+		if (opcode == null) {
+			throw new IllegalArgumentException("unknown operation: " + operation);
+		}
+		costs.put(opcode, cycles);
+	}
+
+	/**
+	 * Override costs in this table with those in a given properties stream.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void load(InputStream in) throws IOException {
+		Properties props = new Properties();
+		props.load(in);
+		for (String operation : props.stringPropertyNames()) {
+			try {
+				set(operation, Integer.parseInt(props.getProperty(operation).trim()));
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid cost for " + operation + ": " + props.getProperty(operation));
+			}
+		}
+	}
+
+	/**
+	 * Get the cost table for a given built-in target. The supported targets
+	 * are <code>generic</code>, <code>cortex-m0</code> (which has no
+	 * hardware divide) and <code>cortex-m4</code>. Both Cortex targets
+	 * implement 64-bit division with library routines, as does the
+	 * <code>cortex-m0</code> for 64-bit multiplication and shifts.
+	 *
+	 * @param target
+	 * @return
+	 */
+	public static CostTable forTarget(String target) {
+		CostTable table = new CostTable(target);
+		// Local variables are assumed to be held in registers
+		table.set("varaccess", 0);
+		table.set("vardeclinit", 0);
+		switch (target) {
+		case "generic":
+			table.set("mul", 3);
+			table.set("div", 20);
+			table.set("rem", 20);
+			setMemory(table, 2);
+			setBranches(table, 2);
+			table.set("invoke", 4);
+			break;
+		case "cortex-m0":
+			// The multiplier may be the small (iterative) implementation
+			table.set("mul", 32);
+			// No hardware divide, so this is done by a library routine
+			table.set("div", 50);
+			table.set("rem", 55);
+			// 64-bit operations other than addition and subtraction are
+			// library routines (e.g. __aeabi_lmul, __aeabi_uldivmod)
+			table.set("mul64", 110);
+			table.set("div64", 1200);
+			table.set("rem64", 1250);
+			table.set("shl64", 20);
+			table.set("shr64", 20);
+			table.set("add64", 2);
+			table.set("sub64", 2);
+			table.set("neg64", 2);
+			setMemory(table, 2);
+			setBranches(table, 3);
+			table.set("invoke", 4);
+			break;
+		case "cortex-m4":
+			table.set("div", 12);
+			table.set("rem", 14);
+			// 64-bit division is a library routine (__aeabi_uldivmod)
+			table.set("div64", 140);
+			table.set("rem64", 150);
+			setMemory(table, 2);
+			setBranches(table, 3);
+			table.set("invoke", 4);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown target: " + target);
+		}
+		return table;
+	}
+
+	private static void setMemory(CostTable table, int cycles) {
+		table.set("arrayindex", cycles);
+		table.set("arraylength", cycles);
+		table.set("fieldload", cycles);
+		table.set("array", cycles);
+		table.set("arraygen", cycles);
+	}
+
+	private static void setBranches(CostTable table, int cycles) {
+		for (String op : new String[] { "if", "ifelse", "switch", "while", "dowhile", "break", "continue", "all",
+				"some", "return" }) {
+			table.set(op, cycles);
+		}
+	}
+}
@@ -0,0 +1,312 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import wybs.lang.NameID;
+import wyec.lang.IntegerRange;
+import wyfs.util.Trie;
+import wyil.lang.Bytecode;
+import wyil.lang.Constant;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Determines conservative bounds on the values of integer expressions. For
+ * example, given a variable <code>x</code> of type <code>u8</code>, the
+ * expression <code>x + 1</code> is bounded by <code>[1,256]</code>. Such
+ * facts are used to justify optimisations which are only valid for certain
+ * values (e.g. replacing division with a shift when the dividend is known to
+ * be non-negative).
+ * </p>
+ *
+ * <p>
+ * The analysis is flow-insensitive: the range of a variable is determined
+ * solely by its declared type. Results are cached per location.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class IntegerRangeAnalysis {
+	private final Map<Location<?>, IntegerRange> cache = new IdentityHashMap<Location<?>, IntegerRange>();
+
+	/**
+	 * Determine the range of values a given expression may evaluate to. If
+	 * nothing is known, this returns <code>IntegerRange.TOP</code>.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public IntegerRange rangeOf(Location<?> expr) {
+		IntegerRange r = cache.get(expr);
+		if (r == null) {
+			r = computeRange(expr);
+			cache.put(expr, r);
+		}
+		return r;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected IntegerRange computeRange(Location<?> expr) {
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_const: {
+			Constant c = ((Location<Bytecode.Const>) expr).getBytecode().constant();
+			if (c instanceof Constant.Integer) {
+				BigInteger v = ((Constant.Integer) c).value();
+				return new IntegerRange(v, v);
+			}
+			break;
+		}
+		case Bytecode.OPCODE_varaccess:
+			return rangeOf(getVariableDeclaration(expr.getOperand(0)));
+		case Bytecode.OPCODE_arraylength:
+			return new IntegerRange(BigInteger.ZERO, null);
+		case Bytecode.OPCODE_add:
+			return rangeOf(expr.getOperand(0)).add(rangeOf(expr.getOperand(1)));
+		case Bytecode.OPCODE_sub:
+			return rangeOf(expr.getOperand(0)).subtract(rangeOf(expr.getOperand(1)));
+		case Bytecode.OPCODE_mul:
+			return rangeOf(expr.getOperand(0)).multiply(rangeOf(expr.getOperand(1)));
+		case Bytecode.OPCODE_div:
+			return rangeOf(expr.getOperand(0)).divide(rangeOf(expr.getOperand(1)));
+		case Bytecode.OPCODE_rem:
+			return rangeOf(expr.getOperand(0)).remainder(rangeOf(expr.getOperand(1)));
+		case Bytecode.OPCODE_neg:
+			return rangeOf(expr.getOperand(0)).negate();
+		}
+		return rangeOf(expr.getType());
+	}
+
+	/**
+	 * Determine whether a given condition is guaranteed to hold, based solely
+	 * on the ranges of its operands. For example, given a variable
+	 * <code>x</code> of type <code>u8</code>, the condition
+	 * <code>x &lt; 256</code> always holds. This is conservative: a result of
+	 * <code>false</code> means only that the condition could not be shown to
+	 * hold.
+	 *
+	 * @param cond
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean isAlwaysTrue(Location<?> cond) {
+		switch (cond.getOpcode()) {
+		case Bytecode.OPCODE_const: {
+			Constant c = ((Location<Bytecode.Const>) cond).getBytecode().constant();
+			return c instanceof Constant.Bool && ((Constant.Bool) c).value();
+		}
+		case Bytecode.OPCODE_logicaland:
+			for (Location<?> operand : cond.getOperands()) {
+				if (!isAlwaysTrue(operand)) {
+					return false;
+				}
+			}
+			return true;
+		case Bytecode.OPCODE_logicalor:
+			for (Location<?> operand : cond.getOperands()) {
+				if (isAlwaysTrue(operand)) {
+					return true;
+				}
+			}
+			return false;
+		case Bytecode.OPCODE_lt:
+			return isBelow(cond.getOperand(0), cond.getOperand(1), false);
+		case Bytecode.OPCODE_le:
+			return isBelow(cond.getOperand(0), cond.getOperand(1), true);
+		case Bytecode.OPCODE_gt:
+			return isBelow(cond.getOperand(1), cond.getOperand(0), false);
+		case Bytecode.OPCODE_ge:
+			return isBelow(cond.getOperand(1), cond.getOperand(0), true);
+		case Bytecode.OPCODE_eq: {
+			IntegerRange lhs = rangeOf(cond.getOperand(0));
+			IntegerRange rhs = rangeOf(cond.getOperand(1));
+			return lhs.isConstant() && lhs.equals(rhs);
+		}
+		case Bytecode.OPCODE_ne: {
+			IntegerRange lhs = rangeOf(cond.getOperand(0));
+			IntegerRange rhs = rangeOf(cond.getOperand(1));
+			return isBelow(lhs, rhs, false) || isBelow(rhs, lhs, false);
+		}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether every value of one expression is below (or, if
+	 * inclusive, at most) every value of another.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @param inclusive
+	 * @return
+	 */
+	private boolean isBelow(Location<?> lhs, Location<?> rhs, boolean inclusive) {
+		return isIntegral(lhs) && isIntegral(rhs) && isBelow(rangeOf(lhs), rangeOf(rhs), inclusive);
+	}
+
+	private static boolean isBelow(IntegerRange lhs, IntegerRange rhs, boolean inclusive) {
+		BigInteger ub = lhs.upperBound();
+		BigInteger lb = rhs.lowerBound();
+		if (ub == null || lb == null) {
+			return false;
+		}
+		int c = ub.compareTo(lb);
+		return inclusive ? c <= 0 : c < 0;
+	}
+
+	/**
+	 * Check whether a given expression evaluates to an integer. Comparisons
+	 * are only decided for integers, since the range of anything else is
+	 * unknown.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isIntegral(Location<?> expr) {
+		Type type = expr.getType();
+		return type == Type.T_INT || typeRanges.containsKey(type);
+	}
+
+	/**
+	 * Determine the range of a variable on entry to the statement at a given
+	 * index in a given block (e.g. the initial value of a loop variable).
+	 * This is the range of the value last assigned to it before that
+	 * statement in the block or, if there is no such assignment, the range
+	 * of its type.
+	 *
+	 * @param var
+	 * @param block
+	 * @param index
+	 * @return
+	 */
+	public IntegerRange rangeOnEntry(Location<VariableDeclaration> var, Location<Bytecode.Block> block,
+			int index) {
+		for (int i = index - 1; i >= 0; --i) {
+			Location<?> stmt = block.getOperand(i);
+			if (stmt == var && stmt.getOpcode() == Bytecode.OPCODE_vardeclinit) {
+				return rangeOf(stmt.getOperand(0));
+			} else if (stmt.getOpcode() == Bytecode.OPCODE_assign) {
+				Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+				if (lhs.length == 1 && getVariable(lhs[0]) == var) {
+					return rangeOf(stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE)[0]);
+				}
+			}
+			if (LoopInvariantAnalysis.isAssigned(stmt, var)) {
+				break;
+			}
+		}
+		return rangeOf(var.getType());
+	}
+
+	/**
+	 * Determine the constant by which a given assignment steps a given
+	 * variable. That is, for an assignment of the form <code>i = i + c</code>
+	 * or <code>i = i - c</code> where <code>c</code> is a non-zero constant,
+	 * this returns <code>c</code> or <code>-c</code> respectively. Otherwise,
+	 * it returns null.
+	 *
+	 * @param var
+	 * @param assign
+	 * @return
+	 */
+	public BigInteger stepOf(Location<VariableDeclaration> var, Location<?> assign) {
+		Location<?>[] lhs = assign.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+		Location<?>[] rhs = assign.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+		if (lhs.length != 1 || getVariable(lhs[0]) != var) {
+			return null;
+		}
+		Location<?> e = rhs[0];
+		if (e.getOpcode() != Bytecode.OPCODE_add && e.getOpcode() != Bytecode.OPCODE_sub) {
+			return null;
+		}
+		Location<?> constant;
+		if (getVariable(e.getOperand(0)) == var) {
+			constant = e.getOperand(1);
+		} else if (e.getOpcode() == Bytecode.OPCODE_add && getVariable(e.getOperand(1)) == var) {
+			constant = e.getOperand(0);
+		} else {
+			return null;
+		}
+		IntegerRange c = rangeOf(constant);
+		if (!c.isConstant() || c.lowerBound().signum() == 0) {
+			return null;
+		}
+		return e.getOpcode() == Bytecode.OPCODE_add ? c.lowerBound() : c.lowerBound().negate();
+	}
+
+	/**
+	 * Determine the range of values for a given variable.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	protected IntegerRange rangeOf(Location<VariableDeclaration> decl) {
+		return decl == null ? IntegerRange.TOP : rangeOf(decl.getType());
+	}
+
+	/**
+	 * Determine the range of values permitted by a given type. For the fixed
+	 * width integer types, this is their natural range. Otherwise, nothing is
+	 * known.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static IntegerRange rangeOf(Type type) {
+		IntegerRange r = typeRanges.get(type);
+		return r == null ? IntegerRange.TOP : r;
+	}
+
+	/**
+	 * Determine the variable accessed by a given expression, or null if it
+	 * is not a variable access.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	protected static Location<VariableDeclaration> getVariable(Location<?> expr) {
+		if (expr.getOpcode() != Bytecode.OPCODE_varaccess) {
+			return null;
+		}
+		return getVariableDeclaration(expr.getOperand(0));
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		return null;
+	}
+
+	private static Type intType(String name) {
+		return Type.Nominal(new NameID(Trie.fromString("whiley/lang/Int"), name));
+	}
+
+	private static HashMap<Type, IntegerRange> typeRanges = new HashMap<Type, IntegerRange>() {
+		{
+			put(intType("i8"), new IntegerRange(Byte.MIN_VALUE, Byte.MAX_VALUE));
+			put(intType("i16"), new IntegerRange(Short.MIN_VALUE, Short.MAX_VALUE));
+			put(intType("i32"), new IntegerRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+			put(intType("i64"), new IntegerRange(Long.MIN_VALUE, Long.MAX_VALUE));
+			put(intType("u8"), new IntegerRange(0, 255));
+			put(intType("u16"), new IntegerRange(0, 65535));
+			put(intType("u32"), new IntegerRange(0, 4294967295L));
+			put(intType("u64"), new IntegerRange(BigInteger.ZERO, BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE)));
+		}
+	};
+}
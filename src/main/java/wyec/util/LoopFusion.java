@@ -0,0 +1,909 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import wyec.lang.IntegerRange;
+import wyil.lang.Bytecode;
+import wyil.lang.Constant;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.WyilFile.FunctionOrMethod;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Identifies adjacent loops over the same iteration space which can be fused
+ * into a single loop. For example, consider:
+ * </p>
+ *
+ * <pre>
+ * i32[] ys = [0; n]
+ * int i = 0
+ * while i < n:
+ *     ys[i] = xs[i] * k
+ *     i = i + 1
+ * int j = 0
+ * while j < n:
+ *     zs[j] = ys[j] + 1
+ *     j = j + 1
+ * bool ok = all { k in 0..n | zs[k] >= 0 }
+ * </pre>
+ *
+ * <p>
+ * This makes three passes over memory. However, since each iteration of the
+ * second loop reads only the element of <code>ys</code> written by the same
+ * iteration of the first, both loops can be executed as one. Likewise, the
+ * quantifier can be evaluated incrementally within the same loop. Finally,
+ * since <code>ys</code> is used nowhere else, it can be replaced by a single
+ * scalar holding the current element.
+ * </p>
+ *
+ * <p>
+ * Loops are fused when they have the same initial value, bound and step
+ * (where the bound is not modified by either loop), and they may be separated
+ * only by the initialisation of the second loop's variable. A quantifier is
+ * fused when it is the entire right-hand side of a declaration or assignment
+ * immediately following the loops, and it ranges over the same values. Arrays
+ * modified by one loop and accessed by another must only be accessed at the
+ * current index (i.e. by the loop variable itself), such that no iteration
+ * observes a value written by a later iteration of an earlier loop. Any other
+ * variable modified by one must not be accessed by another. Loops which may
+ * exit early (e.g. via <code>break</code>), or which have other effects (e.g.
+ * invoking a method) are never fused.
+ * </p>
+ *
+ * <p>
+ * Contract checks (i.e. assertions, assumptions and invocations of functions
+ * which may perform a check) are ordering constraints. Once fused, each
+ * iteration of a later loop executes before the subsequent iterations of an
+ * earlier loop. Hence, only the last loop or quantifier fused may check,
+ * since otherwise a later loop might execute (or fail) on values which an
+ * earlier check would have rejected.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopFusion {
+	private final IntegerRangeAnalysis ranges;
+	private final CallGraph graph;
+	private final Set<FunctionOrMethod> checking;
+
+	/**
+	 * Construct a fusion pass which ignores contract checks (e.g. because
+	 * they are stripped).
+	 *
+	 * @param ranges
+	 */
+	public LoopFusion(IntegerRangeAnalysis ranges) {
+		this(ranges, null, null);
+	}
+
+	/**
+	 * Construct a fusion pass for the module of a given call graph.
+	 *
+	 * @param ranges
+	 * @param graph
+	 *            Used to resolve invocations within the module. Those which
+	 *            cannot be resolved are assumed to check.
+	 * @param checking
+	 *            The functions and methods of the module which may perform a
+	 *            contract check.
+	 */
+	public LoopFusion(IntegerRangeAnalysis ranges, CallGraph graph, Set<FunctionOrMethod> checking) {
+		this.ranges = ranges;
+		this.graph = graph;
+		this.checking = checking;
+	}
+
+	/**
+	 * Determine the loops in a given block which can be fused, excluding a
+	 * given set of loops (e.g. those being unrolled).
+	 *
+	 * @param block
+	 * @param excluded
+	 * @return
+	 */
+	public List<Fusion> apply(Location<Bytecode.Block> block, Set<Location<?>> excluded) {
+		List<Fusion> result = new ArrayList<Fusion>();
+		int n = block.numberOfOperands();
+		for (int i = 0; i < n; ++i) {
+			Space first = excluded.contains(block.getOperand(i)) ? null : spaceOf(block, i);
+			if (first == null) {
+				continue;
+			}
+			List<Effects<Location<VariableDeclaration>>> items = new ArrayList<Effects<Location<VariableDeclaration>>>();
+			items.add(effectsOf(first));
+			List<Space> loops = new ArrayList<Space>();
+			List<Location<?>> initialisers = new ArrayList<Location<?>>();
+			List<Location<?>> scans = new ArrayList<Location<?>>();
+			int j = i + 1;
+			// Identify subsequent loops
+			while (j < n) {
+				Location<?> init = null;
+				int k = j;
+				if (block.getOperand(k).getOpcode() != Bytecode.OPCODE_while) {
+					init = block.getOperand(k++);
+				}
+				if (k == n || excluded.contains(block.getOperand(k))) {
+					break;
+				}
+				Space next = spaceOf(block, k);
+				if (next == null || !isSameSpace(first, next)
+						|| (init != null && !isInitialiser(init, next.variable))) {
+					break;
+				}
+				Effects<Location<VariableDeclaration>> effects = effectsOf(next);
+				if (!isIndependent(items, effects)) {
+					break;
+				}
+				items.add(effects);
+				loops.add(next);
+				if (init != null) {
+					initialisers.add(init);
+				}
+				j = k + 1;
+			}
+			// Identify subsequent quantifiers. These must not access the
+			// variables assigned by preceding quantifiers, since they are
+			// evaluated before those assignments once fused.
+			Set<Location<VariableDeclaration>> targets = newIdentitySet();
+			while (j < n) {
+				Location<?> stmt = block.getOperand(j);
+				Location<?> q = getScannedQuantifier(stmt);
+				if (q == null || !isSameSpace(first, q)) {
+					break;
+				}
+				Effects<Location<VariableDeclaration>> effects = effectsOf(q);
+				if (!isIndependent(items, effects) || !Collections.disjoint(effects.accessed, targets)) {
+					break;
+				}
+				items.add(effects);
+				scans.add(q);
+				targets.add(getScanTarget(stmt));
+				j = j + 1;
+			}
+			if (loops.isEmpty() && scans.isEmpty()) {
+				continue;
+			}
+			Fusion fusion = new Fusion(first.loop, first.variable, first.step);
+			for (Space loop : loops) {
+				fusion.loops.add(loop.loop);
+				fusion.steps.add(loop.step);
+				if (loop.variable != first.variable) {
+					fusion.variables.add(loop.variable);
+				}
+			}
+			fusion.initialisers.addAll(initialisers);
+			fusion.scans.addAll(scans);
+			for (Effects<Location<VariableDeclaration>> e : items) {
+				if (e.variable != first.variable) {
+					fusion.accesses.addAll(e.indices);
+				}
+			}
+			scalarise(block, i, j, items, fusion);
+			result.add(fusion);
+			i = j - 1;
+		}
+		return result;
+	}
+
+	// ======================================================================
+	// Iteration Spaces
+	// ======================================================================
+
+	/**
+	 * Describes the values taken by the variable of a simple counting loop.
+	 */
+	private static final class Space {
+		private final Location<?> loop;
+		private final Location<VariableDeclaration> variable;
+		private final BigInteger initial;
+		private final Location<?> bound;
+		private final Location<?> step;
+		private final BigInteger delta;
+
+		public Space(Location<?> loop, Location<VariableDeclaration> variable, BigInteger initial,
+				Location<?> bound, Location<?> step, BigInteger delta) {
+			this.loop = loop;
+			this.variable = variable;
+			this.initial = initial;
+			this.bound = bound;
+			this.step = step;
+			this.delta = delta;
+		}
+	}
+
+	/**
+	 * Determine the iteration space of the <code>while</code> loop at a given
+	 * index in a given block, or null if it is not a simple counting loop.
+	 * That is, its condition compares a variable against a bound which is not
+	 * modified in the loop, the variable has a constant value on entry and
+	 * the last statement of the body steps it by a constant.
+	 *
+	 * @param block
+	 * @param index
+	 * @return
+	 */
+	private Space spaceOf(Location<Bytecode.Block> block, int index) {
+		Location<?> loop = block.getOperand(index);
+		if (loop.getOpcode() != Bytecode.OPCODE_while) {
+			return null;
+		}
+		Location<?> body = loop.getBlock(0);
+		Location<?> condition = loop.getOperand(0);
+		int n = body.numberOfOperands();
+		if (n == 0 || !isComparison(condition)) {
+			return null;
+		}
+		Location<VariableDeclaration> var = IntegerRangeAnalysis.getVariable(condition.getOperand(0));
+		Location<?> bound = condition.getOperand(1);
+		Location<?> step = body.getOperand(n - 1);
+		if (var == null || step.getOpcode() != Bytecode.OPCODE_assign || !isSimple(bound)) {
+			return null;
+		}
+		BigInteger delta = ranges.stepOf(var, step);
+		if (delta == null) {
+			return null;
+		}
+		for (int i = 0; i != n - 1; ++i) {
+			if (LoopInvariantAnalysis.isAssigned(body.getOperand(i), var)) {
+				return null;
+			}
+		}
+		for (Location<VariableDeclaration> v : getVariables(bound)) {
+			if (LoopInvariantAnalysis.isAssigned(body, v)) {
+				return null;
+			}
+		}
+		IntegerRange init = ranges.rangeOnEntry(var, block, index);
+		if (!init.isConstant()) {
+			return null;
+		}
+		return new Space(loop, var, init.lowerBound(), bound, step, delta);
+	}
+
+	private static boolean isSameSpace(Space first, Space next) {
+		return first.initial.equals(next.initial) && first.delta.equals(next.delta)
+				&& first.loop.getOperand(0).getOpcode() == next.loop.getOperand(0).getOpcode()
+				&& isEquivalent(first.bound, next.bound);
+	}
+
+	/**
+	 * Check whether a quantifier ranges over the same values as a given loop.
+	 * Since quantifiers range over <code>start..end</code> (exclusive), the
+	 * loop must step by one and compare with <code>&lt;</code>.
+	 *
+	 * @param first
+	 * @param quantifier
+	 * @return
+	 */
+	private boolean isSameSpace(Space first, Location<?> quantifier) {
+		Location<?>[] range = quantifier.getOperandGroup(0);
+		IntegerRange start = ranges.rangeOf(range[SyntaxTree.START]);
+		return first.loop.getOperand(0).getOpcode() == Bytecode.OPCODE_lt && first.delta.equals(BigInteger.ONE)
+				&& start.isConstant() && start.lowerBound().equals(first.initial)
+				&& isEquivalent(first.bound, range[SyntaxTree.END]);
+	}
+
+	/**
+	 * Check whether a given statement initialises a given variable with a
+	 * constant, such that it can be moved before the fused loop.
+	 *
+	 * @param stmt
+	 * @param var
+	 * @return
+	 */
+	private boolean isInitialiser(Location<?> stmt, Location<VariableDeclaration> var) {
+		Location<?> value;
+		if (stmt == var && stmt.getOpcode() == Bytecode.OPCODE_vardeclinit) {
+			value = stmt.getOperand(0);
+		} else if (stmt.getOpcode() == Bytecode.OPCODE_assign) {
+			Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+			Location<?>[] rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+			if (lhs.length != 1 || rhs.length != 1 || IntegerRangeAnalysis.getVariable(lhs[0]) != var) {
+				return false;
+			}
+			value = rhs[0];
+		} else {
+			return false;
+		}
+		return isSimple(value) && getVariables(value).isEmpty() && ranges.rangeOf(value).isConstant();
+	}
+
+	/**
+	 * Determine the quantifier scanned by a given statement, or null if it is
+	 * not a declaration or assignment whose right-hand side is a quantifier
+	 * with a single range.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private static Location<?> getScannedQuantifier(Location<?> stmt) {
+		Location<?> rhs;
+		if (stmt.getOpcode() == Bytecode.OPCODE_vardeclinit) {
+			rhs = stmt.getOperand(0);
+		} else if (stmt.getOpcode() == Bytecode.OPCODE_assign
+				&& stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE).length == 1
+				&& stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE).length == 1
+				&& stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE)[0].getOpcode() == Bytecode.OPCODE_varaccess) {
+			rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE)[0];
+		} else {
+			return null;
+		}
+		if ((rhs.getOpcode() == Bytecode.OPCODE_all || rhs.getOpcode() == Bytecode.OPCODE_some)
+				&& rhs.numberOfOperandGroups() == 1) {
+			return rhs;
+		}
+		return null;
+	}
+
+	/**
+	 * Determine the variable assigned by a statement scanning a quantifier.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getScanTarget(Location<?> stmt) {
+		if (stmt.getOpcode() == Bytecode.OPCODE_vardeclinit) {
+			return (Location<VariableDeclaration>) stmt;
+		}
+		return IntegerRangeAnalysis.getVariable(stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE)[0]);
+	}
+
+	private static boolean isComparison(Location<?> condition) {
+		switch (condition.getOpcode()) {
+		case Bytecode.OPCODE_lt:
+		case Bytecode.OPCODE_le:
+		case Bytecode.OPCODE_ne:
+			return true;
+		}
+		return false;
+	}
+
+	// ======================================================================
+	// Dependences
+	// ======================================================================
+
+	/**
+	 * Summarises the variables accessed by the body of a loop (excluding its
+	 * step) or the condition of a quantifier. Variables are compared by
+	 * identity and, in practice, are their declarations.
+	 *
+	 * @param <V>
+	 */
+	static final class Effects<V> {
+		final V variable;
+		/**
+		 * Variables accessed (either read or written).
+		 */
+		final Set<V> accessed = newIdentitySet();
+		/**
+		 * Variables written, either in whole or in part.
+		 */
+		final Set<V> written = newIdentitySet();
+		/**
+		 * Variables accessed other than by indexing with the loop variable.
+		 */
+		final Set<V> unaligned = newIdentitySet();
+		/**
+		 * Arrays whose length is accessed.
+		 */
+		final Set<V> lengths = newIdentitySet();
+		/**
+		 * Accesses of the loop variable.
+		 */
+		final List<Location<?>> indices = new ArrayList<Location<?>>();
+		/**
+		 * Accesses of arrays indexed by the loop variable, in order.
+		 */
+		final List<Location<?>> elements = new ArrayList<Location<?>>();
+		/**
+		 * The top-level statements of the body, excluding the step, or the
+		 * condition of a quantifier.
+		 */
+		final List<Location<?>> statements = new ArrayList<Location<?>>();
+		boolean impure;
+		/**
+		 * Whether a contract check may be performed, either directly or by
+		 * an invoked function.
+		 */
+		boolean checked;
+
+		Effects(V variable) {
+			this.variable = variable;
+		}
+	}
+
+	private Effects<Location<VariableDeclaration>> effectsOf(Space space) {
+		Effects<Location<VariableDeclaration>> effects = new Effects<Location<VariableDeclaration>>(space.variable);
+		Location<?> body = space.loop.getBlock(0);
+		for (int i = 0; i != body.numberOfOperands() - 1; ++i) {
+			effects.statements.add(body.getOperand(i));
+			visit(body.getOperand(i), null, effects);
+		}
+		return effects;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Effects<Location<VariableDeclaration>> effectsOf(Location<?> quantifier) {
+		Location<?>[] range = quantifier.getOperandGroup(0);
+		Location<VariableDeclaration> variable = (Location<VariableDeclaration>) range[SyntaxTree.VARIABLE];
+		Effects<Location<VariableDeclaration>> effects = new Effects<Location<VariableDeclaration>>(variable);
+		Location<?> condition = quantifier.getOperand(SyntaxTree.CONDITION);
+		effects.statements.add(condition);
+		visit(condition, null, effects);
+		return effects;
+	}
+
+	private void visit(Location<?> loc, Location<?> parent, Effects<Location<VariableDeclaration>> effects) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess: {
+			Location<VariableDeclaration> decl = IntegerRangeAnalysis.getVariable(loc);
+			if (decl == effects.variable) {
+				effects.indices.add(loc);
+			} else if (parent != null && parent.getOpcode() == Bytecode.OPCODE_arraylength) {
+				effects.lengths.add(decl);
+			} else if (isAligned(parent, loc, effects.variable)) {
+				effects.elements.add(parent);
+			} else {
+				effects.unaligned.add(decl);
+			}
+			effects.accessed.add(decl);
+			// NOTE: must not traverse into the variable declaration
+			return;
+		}
+		case Bytecode.OPCODE_assign:
+			for (Location<?> lval : loc.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+				Location<VariableDeclaration> decl = LoopInvariantAnalysis.getAssignedVariable(lval);
+				if (decl == null) {
+					effects.impure = true;
+				} else {
+					effects.written.add(decl);
+					if (lval.getOpcode() != Bytecode.OPCODE_arrayindex
+							|| lval.getOperand(0).getOpcode() != Bytecode.OPCODE_varaccess) {
+						effects.unaligned.add(decl);
+					}
+				}
+			}
+			break;
+		case Bytecode.OPCODE_invoke: {
+			Bytecode.Invoke invoke = (Bytecode.Invoke) loc.getBytecode();
+			if (!(invoke.type() instanceof Type.Function)) {
+				effects.impure = true;
+			} else if (graph != null) {
+				FunctionOrMethod target = graph.resolve(invoke);
+				effects.checked |= target == null || checking.contains(target);
+			}
+			break;
+		}
+		case Bytecode.OPCODE_assert:
+		case Bytecode.OPCODE_assume:
+			effects.checked |= graph != null;
+			break;
+		case Bytecode.OPCODE_aliasdecl:
+		case Bytecode.OPCODE_break:
+		case Bytecode.OPCODE_continue:
+		case Bytecode.OPCODE_return:
+		case Bytecode.OPCODE_fail:
+		case Bytecode.OPCODE_debug:
+		case Bytecode.OPCODE_indirectinvoke:
+		case Bytecode.OPCODE_newobject:
+		case Bytecode.OPCODE_dereference:
+			effects.impure = true;
+			return;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			visit(loc.getOperand(i), loc, effects);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				visit(operand, loc, effects);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			visit(loc.getBlock(i), loc, effects);
+		}
+	}
+
+	/**
+	 * Check whether a given variable access is the source of an array index
+	 * whose index is the loop variable (e.g. <code>xs[i]</code>).
+	 *
+	 * @param parent
+	 * @param access
+	 * @param variable
+	 * @return
+	 */
+	private static boolean isAligned(Location<?> parent, Location<?> access, Location<VariableDeclaration> variable) {
+		return parent != null && parent.getOpcode() == Bytecode.OPCODE_arrayindex && parent.getOperand(0) == access
+				&& IntegerRangeAnalysis.getVariable(parent.getOperand(1)) == variable;
+	}
+
+	/**
+	 * Check whether a loop or quantifier can be executed in the same
+	 * iteration as a given sequence of preceding loops or quantifiers. Any
+	 * variable modified by one and accessed by the other must be an array
+	 * which both access only at the current index. Furthermore, neither may
+	 * access the other's loop variable, since its value differs once fused.
+	 * Finally, no preceding loop or quantifier may check, since the next
+	 * would then be executed ahead of its later checks.
+	 *
+	 * @param items
+	 * @param next
+	 * @return
+	 */
+	static <V> boolean isIndependent(List<Effects<V>> items, Effects<V> next) {
+		if (next.impure) {
+			return false;
+		}
+		for (Effects<V> item : items) {
+			if (item.impure || item.checked) {
+				return false;
+			} else if (item.variable != next.variable
+					&& (item.accessed.contains(next.variable) || next.accessed.contains(item.variable))) {
+				return false;
+			} else if (!isIndependent(item, next) || !isIndependent(next, item)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static <V> boolean isIndependent(Effects<V> writer, Effects<V> reader) {
+		for (V var : writer.written) {
+			if (reader.accessed.contains(var)
+					&& (writer.unaligned.contains(var) || reader.unaligned.contains(var))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ======================================================================
+	// Scalarisation
+	// ======================================================================
+
+	/**
+	 * Identify arrays declared in the given block which are only used within
+	 * the fused loops and, hence, can be replaced by a scalar holding the
+	 * current element. Such an array must only be accessed at the current
+	 * index, its length must not be used and, in each iteration, its element
+	 * must be assigned by a top-level statement before being read.
+	 *
+	 * @param block
+	 * @param start
+	 *            Index of the first fused loop.
+	 * @param end
+	 *            Index after the last fused statement.
+	 * @param items
+	 * @param fusion
+	 */
+	@SuppressWarnings("unchecked")
+	private static void scalarise(Location<Bytecode.Block> block, int start, int end,
+			List<Effects<Location<VariableDeclaration>>> items, Fusion fusion) {
+		for (int i = 0; i != start; ++i) {
+			Location<?> decl = block.getOperand(i);
+			if (!(decl.getType() instanceof Type.Array) || !isScalarisableDeclaration(decl)) {
+				continue;
+			}
+			Location<VariableDeclaration> var = (Location<VariableDeclaration>) decl;
+			if (isScalarisable(block, i, start, end, var, items)) {
+				List<Location<?>> accesses = new ArrayList<Location<?>>();
+				for (Effects<Location<VariableDeclaration>> e : items) {
+					for (Location<?> element : e.elements) {
+						if (IntegerRangeAnalysis.getVariable(element.getOperand(0)) == var) {
+							accesses.add(element);
+						}
+					}
+				}
+				fusion.scalarised.put(var, accesses);
+			}
+		}
+	}
+
+	private static boolean isScalarisableDeclaration(Location<?> decl) {
+		switch (decl.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+			return true;
+		case Bytecode.OPCODE_vardeclinit:
+			return decl.getOperand(0).getOpcode() == Bytecode.OPCODE_arraygen;
+		}
+		return false;
+	}
+
+	private static boolean isScalarisable(Location<Bytecode.Block> block, int index, int start, int end,
+			Location<VariableDeclaration> var, List<Effects<Location<VariableDeclaration>>> items) {
+		// Check the array is not used outside the fused loops
+		for (int i = index + 1; i != block.numberOfOperands(); ++i) {
+			Location<?> stmt = block.getOperand(i);
+			if ((i < start || i >= end) && isAccessed(stmt, var)) {
+				return false;
+			}
+		}
+		for (Effects<Location<VariableDeclaration>> e : items) {
+			if (e.unaligned.contains(var) || e.lengths.contains(var)) {
+				return false;
+			}
+		}
+		// Check the first access in each iteration is an assignment
+		for (Effects<Location<VariableDeclaration>> e : items) {
+			for (Location<?> stmt : e.statements) {
+				if (isElementAssignment(stmt, var, e.variable)) {
+					return true;
+				} else if (isAccessed(stmt, var)) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a statement assigns the current element of a given array,
+	 * without otherwise accessing it.
+	 *
+	 * @param stmt
+	 * @param var
+	 * @param index
+	 * @return
+	 */
+	private static boolean isElementAssignment(Location<?> stmt, Location<VariableDeclaration> var,
+			Location<VariableDeclaration> index) {
+		if (stmt.getOpcode() != Bytecode.OPCODE_assign) {
+			return false;
+		}
+		Location<?>[] lhs = stmt.getOperandGroup(SyntaxTree.LEFTHANDSIDE);
+		Location<?>[] rhs = stmt.getOperandGroup(SyntaxTree.RIGHTHANDSIDE);
+		return lhs.length == 1 && rhs.length == 1 && lhs[0].getOpcode() == Bytecode.OPCODE_arrayindex
+				&& IntegerRangeAnalysis.getVariable(lhs[0].getOperand(0)) == var
+				&& IntegerRangeAnalysis.getVariable(lhs[0].getOperand(1)) == index && !isAccessed(rhs[0], var);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Check whether a given variable is accessed anywhere within a given
+	 * location.
+	 *
+	 * @param loc
+	 * @param var
+	 * @return
+	 */
+	private static boolean isAccessed(Location<?> loc, Location<VariableDeclaration> var) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+			return IntegerRangeAnalysis.getVariable(loc) == var;
+		case Bytecode.OPCODE_aliasdecl:
+			return IntegerRangeAnalysis.getVariableDeclaration(loc) == var;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			if (isAccessed(loc.getOperand(i), var)) {
+				return true;
+			}
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				if (isAccessed(operand, var)) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			if (isAccessed(loc.getBlock(i), var)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a given expression is simple enough to be compared for
+	 * equivalence (i.e. it consists only of constants, variables, lengths and
+	 * arithmetic).
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isSimple(Location<?> expr) {
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_const:
+			return true;
+		case Bytecode.OPCODE_varaccess:
+			return IntegerRangeAnalysis.getVariable(expr) != null;
+		case Bytecode.OPCODE_arraylength:
+		case Bytecode.OPCODE_neg:
+		case Bytecode.OPCODE_add:
+		case Bytecode.OPCODE_sub:
+		case Bytecode.OPCODE_mul:
+		case Bytecode.OPCODE_div:
+		case Bytecode.OPCODE_rem:
+			for (Location<?> operand : expr.getOperands()) {
+				if (!isSimple(operand)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether two simple expressions are structurally identical.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean isEquivalent(Location<?> a, Location<?> b) {
+		if (a.getOpcode() != b.getOpcode() || a.numberOfOperands() != b.numberOfOperands() || !isSimple(a)) {
+			return false;
+		}
+		switch (a.getOpcode()) {
+		case Bytecode.OPCODE_const: {
+			Constant ca = ((Location<Bytecode.Const>) a).getBytecode().constant();
+			Constant cb = ((Location<Bytecode.Const>) b).getBytecode().constant();
+			return ca.equals(cb);
+		}
+		case Bytecode.OPCODE_varaccess:
+			return IntegerRangeAnalysis.getVariable(a) == IntegerRangeAnalysis.getVariable(b);
+		}
+		for (int i = 0; i != a.numberOfOperands(); ++i) {
+			if (!isEquivalent(a.getOperand(i), b.getOperand(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Location<VariableDeclaration>> getVariables(Location<?> expr) {
+		List<Location<VariableDeclaration>> vars = new ArrayList<Location<VariableDeclaration>>();
+		if (expr.getOpcode() == Bytecode.OPCODE_varaccess) {
+			vars.add(IntegerRangeAnalysis.getVariable(expr));
+		} else {
+			for (Location<?> operand : expr.getOperands()) {
+				vars.addAll(getVariables(operand));
+			}
+		}
+		return vars;
+	}
+
+	private static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+
+	/**
+	 * Describes how a sequence of loops and quantifiers is fused.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Fusion {
+		private final Location<?> loop;
+		private final Location<VariableDeclaration> variable;
+		private final Location<?> step;
+		private final List<Location<?>> loops = new ArrayList<Location<?>>();
+		private final List<Location<?>> steps = new ArrayList<Location<?>>();
+		private final List<Location<VariableDeclaration>> variables = new ArrayList<Location<VariableDeclaration>>();
+		private final List<Location<?>> initialisers = new ArrayList<Location<?>>();
+		private final List<Location<?>> scans = new ArrayList<Location<?>>();
+		private final List<Location<?>> accesses = new ArrayList<Location<?>>();
+		private final Map<Location<VariableDeclaration>, List<Location<?>>> scalarised = new IdentityHashMap<Location<VariableDeclaration>, List<Location<?>>>();
+
+		public Fusion(Location<?> loop, Location<VariableDeclaration> variable, Location<?> step) {
+			this.loop = loop;
+			this.variable = variable;
+			this.step = step;
+		}
+
+		/**
+		 * Get the first loop, into which the others are fused.
+		 *
+		 * @return
+		 */
+		public Location<?> getLoop() {
+			return loop;
+		}
+
+		/**
+		 * Get the variable of the first loop, which is used for all fused
+		 * loops and quantifiers.
+		 *
+		 * @return
+		 */
+		public Location<VariableDeclaration> getVariable() {
+			return variable;
+		}
+
+		/**
+		 * Get the statement stepping the loop variable, which is written after
+		 * all fused bodies.
+		 *
+		 * @return
+		 */
+		public Location<?> getStep() {
+			return step;
+		}
+
+		/**
+		 * Get the subsequent loops whose bodies are fused into the first.
+		 *
+		 * @return
+		 */
+		public List<Location<?>> getLoops() {
+			return loops;
+		}
+
+		/**
+		 * Get the steps of the subsequent loops, which are omitted from their
+		 * bodies.
+		 *
+		 * @return
+		 */
+		public List<Location<?>> getSteps() {
+			return steps;
+		}
+
+		/**
+		 * Get the variables of subsequent loops which differ from that of the
+		 * first. These must be assigned their final value after the fused
+		 * loop.
+		 *
+		 * @return
+		 */
+		public List<Location<VariableDeclaration>> getVariables() {
+			return variables;
+		}
+
+		/**
+		 * Get the statements initialising the variables of subsequent loops,
+		 * which are written before the fused loop.
+		 *
+		 * @return
+		 */
+		public List<Location<?>> getInitialisers() {
+			return initialisers;
+		}
+
+		/**
+		 * Get the quantifiers evaluated incrementally within the fused loop.
+		 *
+		 * @return
+		 */
+		public List<Location<?>> getScans() {
+			return scans;
+		}
+
+		/**
+		 * Get the accesses of the variables of subsequent loops and
+		 * quantifiers, which are replaced by the variable of the first loop.
+		 *
+		 * @return
+		 */
+		public List<Location<?>> getAccesses() {
+			return accesses;
+		}
+
+		/**
+		 * Get the arrays which are replaced by a scalar, along with the
+		 * element accesses of each.
+		 *
+		 * @return
+		 */
+		public Map<Location<VariableDeclaration>, List<Location<?>>> getScalarised() {
+			return scalarised;
+		}
+	}
+}
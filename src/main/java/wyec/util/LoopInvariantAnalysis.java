@@ -0,0 +1,369 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.util.*;
+
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Identifies expressions within a <code>while</code> or <code>do-while</code>
+ * loop which are invariant, and can therefore be hoisted out of the loop and
+ * evaluated once. For example, consider this loop:
+ * </p>
+ *
+ * <pre>
+ * while i < |xs|:
+ *     r = r + (xs[i] * f(k))
+ *     i = i + 1
+ * </pre>
+ * <p>
+ * Here, both <code>|xs|</code> and <code>f(k)</code> are invariant (assuming
+ * <code>f</code> is a function), since neither <code>xs</code> nor
+ * <code>k</code> is modified within the loop.
+ * </p>
+ *
+ * <p>
+ * Only array lengths, field loads and invocations of (pure) functions are
+ * considered for hoisting, since these are the expressions which are costly to
+ * re-evaluate. An expression is invariant if it does not read any variable
+ * modified in the loop, or declared within it. Since hoisting an expression
+ * means it is evaluated even when the loop body is not, function invocations
+ * are only hoisted when they are unconditionally evaluated on entry to the
+ * loop. That is, when they occur in the condition of a <code>while</code>
+ * loop, or in the top-level statements of a <code>do-while</code> loop which
+ * precede any statement that may leave the loop (e.g. a <code>break</code> or
+ * <code>return</code>, or a failed assertion). The condition of a
+ * <code>do-while</code> loop follows its body and, hence, is only
+ * unconditionally evaluated when no statement in the body may leave the
+ * loop.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopInvariantAnalysis {
+
+	/**
+	 * Determine the invariant expressions of a given loop which can be
+	 * hoisted. These are returned in the order they are encountered in the
+	 * loop, and none is a subexpression of another.
+	 *
+	 * @param loop
+	 *            Either a <code>while</code> or <code>do-while</code> loop.
+	 * @return
+	 */
+	public List<Location<?>> apply(Location<?> loop) {
+		Set<Location<VariableDeclaration>> modified = newIdentitySet();
+		Set<Location<VariableDeclaration>> declared = newIdentitySet();
+		// Determine the set of modified variables. For a do-while loop, the
+		// modified operands are provided directly.
+		if (loop.getOpcode() == Bytecode.OPCODE_dowhile) {
+			for (Location<?> operand : loop.getOperandGroup(1)) {
+				Location<VariableDeclaration> decl = getVariableDeclaration(operand);
+				if (decl != null) {
+					modified.add(decl);
+				}
+			}
+		}
+		findModifiedVariables(loop.getBlock(0), modified, declared);
+		// Now, find the hoistable expressions
+		List<Location<?>> hoisted = new ArrayList<Location<?>>();
+		boolean isDoWhile = loop.getOpcode() == Bytecode.OPCODE_dowhile;
+		if (!isDoWhile) {
+			findInvariants(loop.getOperand(0), true, modified, declared, hoisted);
+		}
+		Location<?> body = loop.getBlock(0);
+		boolean unconditional = isDoWhile;
+		for (int i = 0; i != body.numberOfOperands(); ++i) {
+			Location<?> stmt = body.getOperand(i);
+			findInvariants(stmt, unconditional, modified, declared, hoisted);
+			// Statements following one which may leave the loop (or the
+			// current iteration) are not necessarily evaluated on entry.
+			unconditional &= !mayExit(stmt);
+		}
+		if (isDoWhile) {
+			// The condition of a do-while loop is evaluated after the body
+			// and, hence, only on entry when nothing in the body may exit.
+			findInvariants(loop.getOperand(0), unconditional, modified, declared, hoisted);
+		}
+		return hoisted;
+	}
+
+	/**
+	 * Check whether control may leave the enclosing loop, or its current
+	 * iteration, from within a given statement. This conservatively includes
+	 * those nested within inner loops, and assertions which may fail.
+	 *
+	 * @param loc
+	 * @return
+	 */
+	private static boolean mayExit(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+		case Bytecode.OPCODE_aliasdecl:
+			return false;
+		case Bytecode.OPCODE_break:
+		case Bytecode.OPCODE_continue:
+		case Bytecode.OPCODE_return:
+		case Bytecode.OPCODE_fail:
+		case Bytecode.OPCODE_assert:
+		case Bytecode.OPCODE_assume:
+			return true;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			if (mayExit(loc.getOperand(i))) {
+				return true;
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			if (mayExit(loc.getBlock(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find all variables which are assigned or declared within a given
+	 * location.
+	 *
+	 * @param loc
+	 * @param modified
+	 * @param declared
+	 */
+	@SuppressWarnings("unchecked")
+	private void findModifiedVariables(Location<?> loc, Set<Location<VariableDeclaration>> modified,
+			Set<Location<VariableDeclaration>> declared) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+		case Bytecode.OPCODE_aliasdecl:
+			// NOTE: must not traverse into the variable declaration
+			return;
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			declared.add((Location<VariableDeclaration>) loc);
+			break;
+		case Bytecode.OPCODE_assign:
+			for (Location<?> lval : loc.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+				Location<VariableDeclaration> decl = getAssignedVariable(lval);
+				if (decl != null) {
+					modified.add(decl);
+				}
+			}
+			break;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			findModifiedVariables(loc.getOperand(i), modified, declared);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				findModifiedVariables(operand, modified, declared);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			findModifiedVariables(loc.getBlock(i), modified, declared);
+		}
+	}
+
+	/**
+	 * Find the maximal hoistable expressions within a given location.
+	 *
+	 * @param loc
+	 * @param unconditional
+	 *            Indicates whether the location is guaranteed to be evaluated
+	 *            on entry to the loop.
+	 * @param modified
+	 * @param declared
+	 * @param hoisted
+	 */
+	private void findInvariants(Location<?> loc, boolean unconditional, Set<Location<VariableDeclaration>> modified,
+			Set<Location<VariableDeclaration>> declared, List<Location<?>> hoisted) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+		case Bytecode.OPCODE_aliasdecl:
+			return;
+		case Bytecode.OPCODE_arraylength:
+		case Bytecode.OPCODE_fieldload:
+		case Bytecode.OPCODE_invoke:
+			if (isInvariant(loc, modified, declared)
+					&& (unconditional || loc.getOpcode() != Bytecode.OPCODE_invoke)) {
+				hoisted.add(loc);
+				return;
+			}
+			break;
+		case Bytecode.OPCODE_logicaland:
+		case Bytecode.OPCODE_logicalor:
+			// The right-hand side is only conditionally evaluated
+			findInvariants(loc.getOperand(0), unconditional, modified, declared, hoisted);
+			findInvariants(loc.getOperand(1), false, modified, declared, hoisted);
+			return;
+		case Bytecode.OPCODE_all:
+		case Bytecode.OPCODE_some:
+		case Bytecode.OPCODE_lambda:
+		case Bytecode.OPCODE_if:
+		case Bytecode.OPCODE_ifelse:
+		case Bytecode.OPCODE_switch:
+		case Bytecode.OPCODE_while:
+		case Bytecode.OPCODE_dowhile:
+		case Bytecode.OPCODE_namedblock:
+			unconditional = false;
+			break;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			findInvariants(loc.getOperand(i), unconditional, modified, declared, hoisted);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				findInvariants(operand, unconditional, modified, declared, hoisted);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			Location<?> block = loc.getBlock(i);
+			for (int j = 0; j != block.numberOfOperands(); ++j) {
+				findInvariants(block.getOperand(j), unconditional, modified, declared, hoisted);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given expression is invariant. That is, it is pure and
+	 * does not read any variable which is modified or declared in the loop.
+	 *
+	 * @param expr
+	 * @param modified
+	 * @param declared
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean isInvariant(Location<?> expr, Set<Location<VariableDeclaration>> modified,
+			Set<Location<VariableDeclaration>> declared) {
+		switch (expr.getOpcode()) {
+		case Bytecode.OPCODE_const:
+			return true;
+		case Bytecode.OPCODE_varaccess: {
+			Location<VariableDeclaration> decl = getVariableDeclaration(expr.getOperand(0));
+			return decl != null && !modified.contains(decl) && !declared.contains(decl);
+		}
+		case Bytecode.OPCODE_invoke: {
+			Bytecode.Invoke bytecode = ((Location<Bytecode.Invoke>) expr).getBytecode();
+			if (!(bytecode.type() instanceof Type.Function)) {
+				return false;
+			}
+			break;
+		}
+		case Bytecode.OPCODE_arraylength:
+		case Bytecode.OPCODE_fieldload:
+		case Bytecode.OPCODE_add:
+		case Bytecode.OPCODE_sub:
+		case Bytecode.OPCODE_mul:
+		case Bytecode.OPCODE_neg:
+		case Bytecode.OPCODE_bitwiseinvert:
+		case Bytecode.OPCODE_bitwiseand:
+		case Bytecode.OPCODE_bitwiseor:
+		case Bytecode.OPCODE_bitwisexor:
+		case Bytecode.OPCODE_shl:
+		case Bytecode.OPCODE_shr:
+		case Bytecode.OPCODE_convert:
+			break;
+		default:
+			// Conservatively assume anything else is not invariant (e.g.
+			// dereferences, method invocations, etc).
+			return false;
+		}
+		for (int i = 0; i != expr.numberOfOperands(); ++i) {
+			if (!isInvariant(expr.getOperand(i), modified, declared)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine the variable assigned by a given lval, or null if this is
+	 * not a local variable (e.g. it is a dereference).
+	 *
+	 * @param lval
+	 * @return
+	 */
+	public static Location<VariableDeclaration> getAssignedVariable(Location<?> lval) {
+		switch (lval.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+			return getVariableDeclaration(lval.getOperand(0));
+		case Bytecode.OPCODE_arrayindex:
+		case Bytecode.OPCODE_fieldload:
+			return getAssignedVariable(lval.getOperand(0));
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a given statement (or any statement nested within it)
+	 * may assign a given variable.
+	 *
+	 * @param loc
+	 * @param var
+	 * @return
+	 */
+	public static boolean isAssigned(Location<?> loc, Location<VariableDeclaration> var) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+			return false;
+		case Bytecode.OPCODE_aliasdecl:
+			// Conservatively assume aliased variables are assigned
+			return getVariableDeclaration(loc) == var;
+		case Bytecode.OPCODE_assign:
+			for (Location<?> lval : loc.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+				if (getAssignedVariable(lval) == var) {
+					return true;
+				}
+			}
+			break;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			if (isAssigned(loc.getOperand(i), var)) {
+				return true;
+			}
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				if (isAssigned(operand, var)) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			if (isAssigned(loc.getBlock(i), var)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+			return getVariableDeclaration(loc.getOperand(0));
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		return null;
+	}
+
+	private static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+}
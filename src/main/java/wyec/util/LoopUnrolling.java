@@ -0,0 +1,324 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import wyec.lang.IntegerRange;
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Identifies loops and quantifiers which execute a small, constant number of
+ * times and, hence, can be fully unrolled. For example, consider this loop:
+ * </p>
+ *
+ * <pre>
+ * int i = 0
+ * while i < 3:
+ *     xs[i] = xs[i] * k
+ *     i = i + 1
+ * </pre>
+ *
+ * <p>
+ * This executes exactly three times, with <code>i</code> taking the values
+ * <code>0</code>, <code>1</code> and <code>2</code>. It can therefore be
+ * written as three copies of its body (without the final statement), where
+ * <code>i</code> is replaced by the corresponding constant in each.
+ * </p>
+ *
+ * <p>
+ * A <code>while</code> loop is unrolled when its condition compares a
+ * variable against a constant, the variable is assigned a constant
+ * immediately before the loop, and the last statement of the body steps the
+ * variable by a constant. The variable must not be assigned anywhere else in
+ * the body, and the body must not contain <code>break</code> or
+ * <code>continue</code>. A quantifier is unrolled when it has a single range
+ * whose bounds are constant.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopUnrolling {
+	private final IntegerRangeAnalysis ranges;
+	private final int threshold;
+
+	/**
+	 * Construct an analysis which unrolls loops and quantifiers executing at
+	 * most a given number of times.
+	 *
+	 * @param ranges
+	 * @param threshold
+	 */
+	public LoopUnrolling(IntegerRangeAnalysis ranges, int threshold) {
+		this.ranges = ranges;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Determine how to unroll the <code>while</code> loop at a given index in
+	 * a given block, or return null if it cannot be unrolled.
+	 *
+	 * @param block
+	 * @param index
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public Unrolling apply(Location<Bytecode.Block> block, int index) {
+		Location<?> loop = block.getOperand(index);
+		if (loop.getOpcode() != Bytecode.OPCODE_while) {
+			return null;
+		}
+		Location<Bytecode.Block> body = (Location<Bytecode.Block>) loop.getBlock(0);
+		Location<?> condition = loop.getOperand(0);
+		int n = body.numberOfOperands();
+		if (n == 0 || !isComparison(condition) || contains(body, Bytecode.OPCODE_break)
+				|| contains(body, Bytecode.OPCODE_continue)) {
+			return null;
+		}
+		// Identify the loop variable and its bound
+		Location<VariableDeclaration> var = IntegerRangeAnalysis.getVariable(condition.getOperand(0));
+		IntegerRange bound = ranges.rangeOf(condition.getOperand(1));
+		boolean flipped = false;
+		if (var == null) {
+			var = IntegerRangeAnalysis.getVariable(condition.getOperand(1));
+			bound = ranges.rangeOf(condition.getOperand(0));
+			flipped = true;
+		}
+		if (var == null || !bound.isConstant()) {
+			return null;
+		}
+		// Identify the step, which must be the last statement of the body
+		Location<?> step = body.getOperand(n - 1);
+		BigInteger delta = step.getOpcode() == Bytecode.OPCODE_assign ? ranges.stepOf(var, step) : null;
+		if (delta == null) {
+			return null;
+		}
+		for (int i = 0; i != n - 1; ++i) {
+			if (LoopInvariantAnalysis.isAssigned(body.getOperand(i), var)) {
+				return null;
+			}
+		}
+		IntegerRange init = ranges.rangeOnEntry(var, block, index);
+		if (!init.isConstant()) {
+			return null;
+		}
+		// Simulate the loop to determine the value of the variable on each
+		// iteration.
+		List<BigInteger> values = new ArrayList<BigInteger>();
+		BigInteger v = init.lowerBound();
+		while (holds(condition.getOpcode(), flipped, v, bound.lowerBound())) {
+			if (values.size() == threshold) {
+				return null;
+			}
+			values.add(v);
+			v = v.add(delta);
+		}
+		List<Location<?>> accesses = new ArrayList<Location<?>>();
+		for (int i = 0; i != n - 1; ++i) {
+			findAccesses(body.getOperand(i), var, accesses);
+		}
+		return new Unrolling(var, values, v, step, accesses);
+	}
+
+	/**
+	 * Determine how to unroll a given quantifier, or return null if it
+	 * cannot be unrolled.
+	 *
+	 * @param quantifier
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public Unrolling applyQuantifier(Location<?> quantifier) {
+		if (quantifier.numberOfOperandGroups() != 1) {
+			return null;
+		}
+		Location<?>[] range = quantifier.getOperandGroup(0);
+		Location<VariableDeclaration> var = (Location<VariableDeclaration>) range[SyntaxTree.VARIABLE];
+		IntegerRange start = ranges.rangeOf(range[SyntaxTree.START]);
+		IntegerRange end = ranges.rangeOf(range[SyntaxTree.END]);
+		if (!start.isConstant() || !end.isConstant()) {
+			return null;
+		}
+		BigInteger lb = start.lowerBound();
+		BigInteger ub = end.lowerBound();
+		if (ub.subtract(lb).compareTo(BigInteger.valueOf(threshold)) > 0) {
+			return null;
+		}
+		List<BigInteger> values = new ArrayList<BigInteger>();
+		for (BigInteger v = lb; v.compareTo(ub) < 0; v = v.add(BigInteger.ONE)) {
+			values.add(v);
+		}
+		List<Location<?>> accesses = new ArrayList<Location<?>>();
+		findAccesses(quantifier.getOperand(SyntaxTree.CONDITION), var, accesses);
+		return new Unrolling(var, values, null, null, accesses);
+	}
+
+	private static boolean isComparison(Location<?> condition) {
+		switch (condition.getOpcode()) {
+		case Bytecode.OPCODE_lt:
+		case Bytecode.OPCODE_le:
+		case Bytecode.OPCODE_gt:
+		case Bytecode.OPCODE_ge:
+		case Bytecode.OPCODE_ne:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluate a comparison between the loop variable and its bound.
+	 *
+	 * @param opcode
+	 * @param flipped
+	 *            Indicates the bound is on the left-hand side.
+	 * @param v
+	 * @param bound
+	 * @return
+	 */
+	private static boolean holds(int opcode, boolean flipped, BigInteger v, BigInteger bound) {
+		int c = flipped ? bound.compareTo(v) : v.compareTo(bound);
+		switch (opcode) {
+		case Bytecode.OPCODE_lt:
+			return c < 0;
+		case Bytecode.OPCODE_le:
+			return c <= 0;
+		case Bytecode.OPCODE_gt:
+			return c > 0;
+		case Bytecode.OPCODE_ge:
+			return c >= 0;
+		default:
+			return c != 0;
+		}
+	}
+
+	/**
+	 * Find all accesses of a given variable within a given location.
+	 *
+	 * @param loc
+	 * @param var
+	 * @param accesses
+	 */
+	private static void findAccesses(Location<?> loc, Location<VariableDeclaration> var, List<Location<?>> accesses) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_varaccess:
+			if (IntegerRangeAnalysis.getVariable(loc) == var) {
+				accesses.add(loc);
+			}
+			// NOTE: must not traverse into the variable declaration
+			return;
+		case Bytecode.OPCODE_aliasdecl:
+			return;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			findAccesses(loc.getOperand(i), var, accesses);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				findAccesses(operand, var, accesses);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			findAccesses(loc.getBlock(i), var, accesses);
+		}
+	}
+
+	private static boolean contains(Location<?> loc, int opcode) {
+		if (loc.getOpcode() == opcode) {
+			return true;
+		} else if (loc.getOpcode() == Bytecode.OPCODE_varaccess || loc.getOpcode() == Bytecode.OPCODE_aliasdecl) {
+			return false;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			if (contains(loc.getOperand(i), opcode)) {
+				return true;
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			if (contains(loc.getBlock(i), opcode)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Describes how a loop or quantifier is unrolled.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Unrolling {
+		private final Location<VariableDeclaration> variable;
+		private final List<BigInteger> values;
+		private final BigInteger exit;
+		private final Location<?> step;
+		private final List<Location<?>> accesses;
+
+		public Unrolling(Location<VariableDeclaration> variable, List<BigInteger> values, BigInteger exit,
+				Location<?> step, List<Location<?>> accesses) {
+			this.variable = variable;
+			this.values = values;
+			this.exit = exit;
+			this.step = step;
+			this.accesses = accesses;
+		}
+
+		/**
+		 * Get the loop (or quantified) variable.
+		 *
+		 * @return
+		 */
+		public Location<VariableDeclaration> getVariable() {
+			return variable;
+		}
+
+		/**
+		 * Get the value of the variable in each copy of the body.
+		 *
+		 * @return
+		 */
+		public List<BigInteger> getValues() {
+			return values;
+		}
+
+		/**
+		 * Get the value of the loop variable after the loop, or null for a
+		 * quantifier.
+		 *
+		 * @return
+		 */
+		public BigInteger getExitValue() {
+			return exit;
+		}
+
+		/**
+		 * Get the statement stepping the loop variable, which is omitted from
+		 * each copy of the body, or null for a quantifier.
+		 *
+		 * @return
+		 */
+		public Location<?> getStep() {
+			return step;
+		}
+
+		/**
+		 * Get the accesses of the variable in the body, which are replaced
+		 * with its value in each copy.
+		 *
+		 * @return
+		 */
+		public List<Location<?>> getAccesses() {
+			return accesses;
+		}
+	}
+}
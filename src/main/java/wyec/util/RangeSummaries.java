@@ -0,0 +1,823 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import wyec.lang.IntegerRange;
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.WyilFile;
+import wyil.lang.Bytecode.VariableDeclaration;
+import wyil.lang.WyilFile.FunctionOrMethod;
+
+/**
+ * <p>
+ * Summarises the range of values returned by each function or method in a
+ * module, given the ranges of its arguments. This allows the range of an
+ * invocation to be determined from the ranges of its arguments, rather than
+ * solely from the declared return type. For example, consider:
+ * </p>
+ *
+ * <pre>
+ * function scale(int x) -> int:
+ *     return x * 4
+ * </pre>
+ *
+ * <p>
+ * Here, the invocation <code>scale(10)</code> returns a value in the range
+ * <code>[40,40]</code>, whilst an invocation with an argument of type
+ * <code>u8</code> returns a value in the range <code>[0,1020]</code>.
+ * </p>
+ *
+ * <p>
+ * Summaries are computed bottom-up over the strongly connected components of
+ * the call graph. Mutually recursive functions are solved iteratively, with
+ * widening to ensure termination. Components which do not depend on each
+ * other are analysed in parallel. The summary of a function for particular
+ * argument ranges is computed on demand, and memoised. However, recursive
+ * functions are only summarised for the ranges of their parameter types.
+ * </p>
+ *
+ * <p>
+ * The summaries of each module (for the ranges of its parameter types) can be
+ * saved to a cache directory, and are reused when the module is unchanged.
+ * The cached summaries of other modules are also used to determine the range
+ * of invocations to those modules, without reanalysing them. Therefore,
+ * modules should be compiled in dependency order for the best results.
+ * </p>
+ *
+ * <p>
+ * Each cache records the version of the compiler which wrote it, along with
+ * the fingerprint of every other module whose cached summaries were used.
+ * A cache is only used when the compiler version is the same, and the cache
+ * of every such module is itself usable and has the same fingerprint. This
+ * applies equally to the caches of other modules. Caches which cannot be
+ * read are treated as missing, and are written atomically such that they
+ * are never seen partially written.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class RangeSummaries {
+	/**
+	 * The number of iterations over a recursive component before widening is
+	 * applied.
+	 */
+	private static final int WIDENING_DELAY = 3;
+
+	/**
+	 * The first line of every cache file, identifying its format and the
+	 * version of the compiler which wrote it.
+	 */
+	private static final String HEADER = "wyec-ranges 2\t" + getCompilerVersion();
+
+	/**
+	 * Represents a cache which is missing, unreadable or out of date.
+	 */
+	private static final Cache INVALID = new Cache(null, Collections.<String, String>emptyMap(),
+			Collections.<String, IntegerRange[]>emptyMap());
+
+	private final WyilFile module;
+	private final CallGraph graph;
+	private final File cacheDir;
+
+	/**
+	 * Summaries of each function or method for the ranges of its parameter
+	 * types.
+	 */
+	private final Map<FunctionOrMethod, IntegerRange[]> summaries = new ConcurrentHashMap<FunctionOrMethod, IntegerRange[]>();
+
+	/**
+	 * Summaries of functions or methods for particular argument ranges.
+	 */
+	private final Map<Context, IntegerRange[]> contexts = new ConcurrentHashMap<Context, IntegerRange[]>();
+
+	/**
+	 * Functions and methods which are recursive and, hence, are only
+	 * summarised for the ranges of their parameter types.
+	 */
+	private final Set<FunctionOrMethod> recursive = Collections
+			.newSetFromMap(new ConcurrentHashMap<FunctionOrMethod, Boolean>());
+
+	/**
+	 * Caches of other modules, indexed by module.
+	 */
+	private final Map<String, Cache> external = new HashMap<String, Cache>();
+
+	/**
+	 * The fingerprints of the other modules whose cached summaries have been
+	 * used, indexed by module.
+	 */
+	private final Map<String, String> dependencies = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * The functions and methods which are summarised, or null if all of them
+	 * are.
+	 */
+	private Set<FunctionOrMethod> functions;
+
+	/**
+	 * Construct summaries for a given module.
+	 *
+	 * @param module
+	 * @param cacheDir
+	 *            Directory in which summaries are cached, or null if they
+	 *            should not be cached.
+	 */
+	public RangeSummaries(WyilFile module, File cacheDir) {
+		this.module = module;
+		this.graph = new CallGraph(module);
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Restrict the summaries computed to the given functions and methods,
+	 * which must be closed under callees (e.g. those reachable from a set of
+	 * entry points). Any other is summarised by the ranges of its return
+	 * types. This has no effect when the summaries are cached, since the
+	 * cache of a module is used by other modules and, hence, must cover all
+	 * of it.
+	 *
+	 * @param functions
+	 */
+	public void restrict(Collection<FunctionOrMethod> functions) {
+		this.functions = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		this.functions.addAll(functions);
+	}
+
+	/**
+	 * Compute the summaries for every function and method in the module (or
+	 * those it is restricted to), unless they are already cached for the
+	 * given fingerprint of the module.
+	 *
+	 * @param fingerprint
+	 *            Identifies the contents of the module (e.g. a checksum), or
+	 *            null if the summaries of this module should not be cached.
+	 * @param threads
+	 *            Number of threads with which to analyse components in
+	 *            parallel.
+	 * @throws IOException
+	 */
+	public void apply(String fingerprint, int threads) throws IOException {
+		for (List<FunctionOrMethod> component : graph.getStronglyConnectedComponents()) {
+			for (FunctionOrMethod fm : component) {
+				if (component.size() > 1 || graph.getCallees(fm).contains(fm)) {
+					recursive.add(fm);
+				}
+			}
+		}
+		File cache = fingerprint == null ? null : getCacheFile(module.getEntry().id().toString());
+		if (cache != null) {
+			functions = null;
+		}
+		if (cache != null && cache.exists()) {
+			Cache cached = read(cache);
+			if (fingerprint.equals(cached.fingerprint) && isValid(cached) && restore(cached.summaries)) {
+				return;
+			}
+		}
+		solve(threads);
+		if (cache != null) {
+			write(cache, fingerprint);
+		}
+	}
+
+	/**
+	 * Get the summary of a given function or method for the ranges of its
+	 * parameter types. That is, the range of each value it may return.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public IntegerRange[] getSummary(FunctionOrMethod fm) {
+		IntegerRange[] r = summaries.get(fm);
+		return r != null ? r : getTypeRanges(fm.type().returns());
+	}
+
+	/**
+	 * Get the summary of a given function or method for given argument
+	 * ranges.
+	 *
+	 * @param fm
+	 * @param arguments
+	 * @return
+	 */
+	public IntegerRange[] getSummary(FunctionOrMethod fm, IntegerRange[] arguments) {
+		IntegerRange[] params = getTypeRanges(fm.type().params());
+		IntegerRange[] inputs = new IntegerRange[params.length];
+		for (int i = 0; i != params.length; ++i) {
+			inputs[i] = arguments[i].intersection(params[i]);
+		}
+		IntegerRange[] summary = getSummary(fm);
+		if (Arrays.equals(inputs, params) || recursive.contains(fm) || fm.getBody() == null) {
+			return summary;
+		}
+		Context context = new Context(fm, inputs);
+		IntegerRange[] r = contexts.get(context);
+		if (r == null) {
+			// NOTE: this may race with another thread computing the same
+			// context, which is harmless.
+			r = intersect(summary, computeReturns(fm, inputs, Collections.<FunctionOrMethod>emptySet()));
+			contexts.put(context, r);
+		}
+		return r;
+	}
+
+	/**
+	 * Get a range analysis for the body of a given function or method, which
+	 * uses these summaries to determine the ranges of invocations.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public IntegerRangeAnalysis analysisFor(FunctionOrMethod fm) {
+		return new SummaryAnalysis(fm, getTypeRanges(fm.type().params()),
+				Collections.<FunctionOrMethod>emptySet());
+	}
+
+	// ======================================================================
+	// Solving
+	// ======================================================================
+
+	/**
+	 * Solve each component once those it depends on are solved. Components
+	 * whose dependencies are solved are analysed in parallel.
+	 *
+	 * @param threads
+	 */
+	private void solve(int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			Map<FunctionOrMethod, CompletableFuture<Void>> solved = new IdentityHashMap<FunctionOrMethod, CompletableFuture<Void>>();
+			List<CompletableFuture<Void>> all = new ArrayList<CompletableFuture<Void>>();
+			for (final List<FunctionOrMethod> component : graph.getStronglyConnectedComponents()) {
+				// NOTE: a component is either summarised in its entirety or
+				// not at all, since its members call each other
+				if (functions != null && !functions.contains(component.get(0))) {
+					continue;
+				}
+				List<CompletableFuture<Void>> dependencies = new ArrayList<CompletableFuture<Void>>();
+				for (FunctionOrMethod fm : component) {
+					for (FunctionOrMethod callee : graph.getCallees(fm)) {
+						CompletableFuture<Void> f = solved.get(callee);
+						if (f != null) {
+							dependencies.add(f);
+						}
+					}
+				}
+				CompletableFuture<Void> f = CompletableFuture
+						.allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+						.thenRunAsync(new Runnable() {
+							public void run() {
+								solve(component);
+							}
+						}, executor);
+				for (FunctionOrMethod fm : component) {
+					solved.put(fm, f);
+				}
+				all.add(f);
+			}
+			CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Solve a single component. Invocations of functions within the component
+	 * use their current summaries, which begin empty and are iterated until
+	 * they stabilise.
+	 *
+	 * @param component
+	 */
+	private void solve(List<FunctionOrMethod> component) {
+		Set<FunctionOrMethod> members = Collections.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+		members.addAll(component);
+		for (FunctionOrMethod fm : component) {
+			IntegerRange[] r = new IntegerRange[fm.type().returns().length];
+			Arrays.fill(r, IntegerRange.BOTTOM);
+			summaries.put(fm, r);
+		}
+		boolean changed = true;
+		for (int i = 0; changed; ++i) {
+			changed = false;
+			for (FunctionOrMethod fm : component) {
+				IntegerRange[] old = summaries.get(fm);
+				IntegerRange[] r = fm.getBody() == null ? getTypeRanges(fm.type().returns())
+						: computeReturns(fm, getTypeRanges(fm.type().params()), members);
+				IntegerRange[] next = join(old, r);
+				if (i >= WIDENING_DELAY) {
+					next = widen(old, next, fm.type().returns());
+				}
+				if (!Arrays.equals(old, next)) {
+					summaries.put(fm, next);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine the range of each value returned by a given function or
+	 * method for given parameter ranges.
+	 *
+	 * @param fm
+	 * @param inputs
+	 * @param component
+	 *            Functions whose invocations should use their current
+	 *            summaries, regardless of the arguments.
+	 * @return
+	 */
+	private IntegerRange[] computeReturns(FunctionOrMethod fm, IntegerRange[] inputs, Set<FunctionOrMethod> component) {
+		Type[] returns = fm.type().returns();
+		IntegerRange[] r = new IntegerRange[returns.length];
+		Arrays.fill(r, IntegerRange.BOTTOM);
+		SummaryAnalysis analysis = new SummaryAnalysis(fm, inputs, component);
+		for (Location<?> loc : fm.getTree().getLocations()) {
+			if (loc.getOpcode() == Bytecode.OPCODE_return) {
+				for (int i = 0; i != loc.numberOfOperands() && i != r.length; ++i) {
+					r[i] = join(r[i], analysis.rangeOf(loc.getOperand(i)));
+				}
+			}
+		}
+		return intersect(r, getTypeRanges(returns));
+	}
+
+	private static IntegerRange join(IntegerRange r1, IntegerRange r2) {
+		if (r1.isEmpty()) {
+			return r2;
+		} else if (r2.isEmpty()) {
+			return r1;
+		}
+		return r1.union(r2);
+	}
+
+	private static IntegerRange[] join(IntegerRange[] r1, IntegerRange[] r2) {
+		IntegerRange[] r = new IntegerRange[r1.length];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = join(r1[i], r2[i]);
+		}
+		return r;
+	}
+
+	private static IntegerRange[] intersect(IntegerRange[] r1, IntegerRange[] r2) {
+		IntegerRange[] r = new IntegerRange[r1.length];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = r1[i].isEmpty() ? r1[i] : r1[i].intersection(r2[i]);
+		}
+		return r;
+	}
+
+	/**
+	 * Widen any bound which has changed to that of the corresponding type.
+	 * Since ranges never exceed those of their types, this ensures
+	 * termination.
+	 *
+	 * @param old
+	 * @param next
+	 * @param types
+	 * @return
+	 */
+	private static IntegerRange[] widen(IntegerRange[] old, IntegerRange[] next, Type[] types) {
+		IntegerRange[] r = new IntegerRange[next.length];
+		for (int i = 0; i != r.length; ++i) {
+			IntegerRange type = IntegerRangeAnalysis.rangeOf(types[i]);
+			BigInteger lb = next[i].lowerBound();
+			BigInteger ub = next[i].upperBound();
+			if (!old[i].isEmpty() && !Objects.equals(lb, old[i].lowerBound())) {
+				lb = type.lowerBound();
+			}
+			if (!old[i].isEmpty() && !Objects.equals(ub, old[i].upperBound())) {
+				ub = type.upperBound();
+			}
+			r[i] = new IntegerRange(lb, ub);
+		}
+		return r;
+	}
+
+	private static IntegerRange[] getTypeRanges(Type[] types) {
+		IntegerRange[] r = new IntegerRange[types.length];
+		for (int i = 0; i != types.length; ++i) {
+			r[i] = IntegerRangeAnalysis.rangeOf(types[i]);
+		}
+		return r;
+	}
+
+	// ======================================================================
+	// Cache
+	// ======================================================================
+
+	private File getCacheFile(String module) {
+		if (cacheDir == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != module.length(); ++i) {
+			char c = module.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return new File(cacheDir, sb.append(".ranges").toString());
+	}
+
+	private static String getKey(String name, Type type) {
+		return name + "\t" + type;
+	}
+
+	/**
+	 * Restore the summaries of this module from those cached, provided there
+	 * is a summary for every function and method.
+	 *
+	 * @param cached
+	 * @return
+	 */
+	private boolean restore(Map<String, IntegerRange[]> cached) {
+		Map<FunctionOrMethod, IntegerRange[]> restored = new IdentityHashMap<FunctionOrMethod, IntegerRange[]>();
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			IntegerRange[] r = cached.get(getKey(fm.name(), fm.type()));
+			if (r == null || r.length != fm.type().returns().length) {
+				return false;
+			}
+			restored.put(fm, r);
+		}
+		summaries.putAll(restored);
+		return true;
+	}
+
+	/**
+	 * Get the cached summary of a function or method in another module, or
+	 * null if there is none. The fingerprint of the module is recorded as a
+	 * dependency of this one.
+	 *
+	 * @param invoke
+	 * @return
+	 */
+	private IntegerRange[] getExternalSummary(Bytecode.Invoke invoke) {
+		String id = invoke.name().module().toString();
+		Cache cached = load(id);
+		if (cached == INVALID) {
+			return null;
+		}
+		dependencies.put(id, cached.fingerprint);
+		return cached.summaries.get(getKey(invoke.name().name(), invoke.type()));
+	}
+
+	/**
+	 * Load the cache of another module, or return {@link #INVALID} if it is
+	 * missing, unreadable or out of date.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private synchronized Cache load(String id) {
+		Cache cached = external.get(id);
+		if (cached != null) {
+			return cached;
+		}
+		// NOTE: this prevents cyclic dependencies from recursing forever
+		external.put(id, INVALID);
+		File file = getCacheFile(id);
+		cached = INVALID;
+		if (file != null && file.exists()) {
+			Cache c = read(file);
+			cached = isValid(c) ? c : INVALID;
+		}
+		external.put(id, cached);
+		return cached;
+	}
+
+	/**
+	 * Check whether every module whose summaries were used by a given cache
+	 * still has a usable cache with the same fingerprint.
+	 *
+	 * @param cached
+	 * @return
+	 */
+	private boolean isValid(Cache cached) {
+		if (cached == INVALID) {
+			return false;
+		}
+		for (Map.Entry<String, String> e : cached.dependencies.entrySet()) {
+			Cache dependency = load(e.getKey());
+			if (dependency == INVALID || !dependency.fingerprint.equals(e.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the cache in a given file. The first line identifies the format
+	 * and compiler version, and the second gives the fingerprint of the
+	 * module. Then, each dependency is given by a line of the form
+	 * <code>@module</code> followed by its fingerprint. Finally, each line
+	 * gives the name, type and returned ranges of one function. All fields
+	 * are separated by tabs.
+	 *
+	 * @param file
+	 * @return The cache, or {@link #INVALID} if it was written by a different
+	 *         compiler version or cannot be read.
+	 */
+	private static Cache read(File file) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String header = in.readLine();
+				String fingerprint = in.readLine();
+				if (!HEADER.equals(header) || fingerprint == null) {
+					return INVALID;
+				}
+				Map<String, String> dependencies = new HashMap<String, String>();
+				Map<String, IntegerRange[]> r = new HashMap<String, IntegerRange[]>();
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length < 2) {
+						throw new IOException("invalid range cache: " + file);
+					} else if (fields[0].startsWith("@")) {
+						dependencies.put(fields[0].substring(1), fields[1]);
+						continue;
+					}
+					IntegerRange[] ranges = new IntegerRange[fields.length - 2];
+					for (int i = 0; i != ranges.length; ++i) {
+						ranges[i] = parse(fields[i + 2]);
+					}
+					r.put(fields[0] + "\t" + fields[1], ranges);
+				}
+				return new Cache(fingerprint, dependencies, r);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Unreadable caches are treated as missing, since they are only
+			// an optimisation
+			return INVALID;
+		}
+	}
+
+	/**
+	 * Write the summaries of this module to a given cache file. This is
+	 * written to a temporary file first, which then replaces the cache
+	 * atomically (where supported). Hence, concurrent compilations never
+	 * read a partially written cache.
+	 *
+	 * @param file
+	 * @param fingerprint
+	 * @throws IOException
+	 */
+	private void write(File file, String fingerprint) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			try {
+				out.println(HEADER);
+				out.println(fingerprint);
+				for (Map.Entry<String, String> e : new TreeMap<String, String>(dependencies).entrySet()) {
+					out.println("@" + e.getKey() + "\t" + e.getValue());
+				}
+				for (FunctionOrMethod fm : module.functionOrMethods()) {
+					out.print(getKey(fm.name(), fm.type()));
+					for (IntegerRange r : getSummary(fm)) {
+						out.print("\t" + format(r));
+					}
+					out.println();
+				}
+			} finally {
+				out.close();
+			}
+			if (out.checkError()) {
+				throw new IOException("error writing range cache: " + file);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Determine the version of the compiler, such that caches written by
+	 * other versions are not used. This is the version of the package where
+	 * known and, if the compiler is packaged as a file (i.e. a jar), the size
+	 * and modification time of that file. Hence, rebuilding the compiler
+	 * also invalidates the caches.
+	 *
+	 * @return
+	 */
+	private static String getCompilerVersion() {
+		String version = String.valueOf(RangeSummaries.class.getPackage().getImplementationVersion());
+		try {
+			File jar = new File(RangeSummaries.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (jar.isFile()) {
+				version += " " + jar.length() + " " + jar.lastModified();
+			}
+		} catch (Exception e) {
+			// The location is unknown, so only the version can be used
+		}
+		return version;
+	}
+
+	private static String format(IntegerRange r) {
+		String lb = r.lowerBound() == null ? "*" : r.lowerBound().toString();
+		String ub = r.upperBound() == null ? "*" : r.upperBound().toString();
+		return lb + ":" + ub;
+	}
+
+	private static IntegerRange parse(String s) throws IOException {
+		int i = s.indexOf(':');
+		if (i < 0) {
+			throw new IOException("invalid range: " + s);
+		}
+		try {
+			String lb = s.substring(0, i);
+			String ub = s.substring(i + 1);
+			return new IntegerRange(lb.equals("*") ? null : new BigInteger(lb),
+					ub.equals("*") ? null : new BigInteger(ub));
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid range: " + s);
+		}
+	}
+
+	// ======================================================================
+	// Analysis
+	// ======================================================================
+
+	/**
+	 * A range analysis for the body of a function or method, given ranges for
+	 * its parameters. Invocations are bounded using the available summaries.
+	 * Furthermore, a variable which is initialised and never subsequently
+	 * assigned is bounded by the range of its initialiser.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final class SummaryAnalysis extends IntegerRangeAnalysis {
+		private final Map<Location<?>, IntegerRange> parameters = new IdentityHashMap<Location<?>, IntegerRange>();
+		private final Set<Location<VariableDeclaration>> assigned = Collections
+				.newSetFromMap(new IdentityHashMap<Location<VariableDeclaration>, Boolean>());
+		private final Set<FunctionOrMethod> component;
+
+		public SummaryAnalysis(FunctionOrMethod fm, IntegerRange[] inputs, Set<FunctionOrMethod> component) {
+			this.component = component;
+			SyntaxTree tree = fm.getTree();
+			for (Location<?> loc : tree.getLocations()) {
+				switch (loc.getOpcode()) {
+				case Bytecode.OPCODE_assign:
+					for (Location<?> lval : loc.getOperandGroup(SyntaxTree.LEFTHANDSIDE)) {
+						Location<VariableDeclaration> decl = LoopInvariantAnalysis.getAssignedVariable(lval);
+						if (decl != null) {
+							assigned.add(decl);
+						}
+					}
+					break;
+				case Bytecode.OPCODE_aliasdecl: {
+					Location<VariableDeclaration> decl = getVariableDeclaration(loc);
+					if (decl != null) {
+						assigned.add(decl);
+					}
+					break;
+				}
+				}
+			}
+			for (int i = 0; i != inputs.length; ++i) {
+				Location<?> param = tree.getLocation(i);
+				if (!assigned.contains(param)) {
+					parameters.put(param, inputs[i]);
+				}
+			}
+		}
+
+		@Override
+		protected IntegerRange computeRange(Location<?> expr) {
+			if (expr.getOpcode() == Bytecode.OPCODE_invoke) {
+				IntegerRange r = rangeOfInvoke(expr);
+				if (r != null) {
+					return r.intersection(rangeOf(expr.getType()));
+				}
+			}
+			return super.computeRange(expr);
+		}
+
+		private IntegerRange rangeOfInvoke(Location<?> expr) {
+			Bytecode.Invoke invoke = (Bytecode.Invoke) expr.getBytecode();
+			if (invoke.type().returns().length == 0) {
+				return null;
+			}
+			FunctionOrMethod target = graph.resolve(invoke);
+			IntegerRange[] r;
+			if (target == null) {
+				r = getExternalSummary(invoke);
+			} else if (component.contains(target)) {
+				// NOTE: the current summary may still be empty, in which case
+				// the result is imprecise until the component stabilises. This
+				// is sound, since summaries only grow.
+				return summaries.get(target)[0];
+			} else {
+				IntegerRange[] arguments = new IntegerRange[expr.numberOfOperands()];
+				for (int i = 0; i != arguments.length; ++i) {
+					arguments[i] = rangeOf(expr.getOperand(i));
+				}
+				r = getSummary(target, arguments);
+			}
+			return r == null || r[0].isEmpty() ? null : r[0];
+		}
+
+		@Override
+		protected IntegerRange rangeOf(Location<VariableDeclaration> decl) {
+			if (decl == null) {
+				return IntegerRange.TOP;
+			}
+			IntegerRange r = parameters.get(decl);
+			if (r != null) {
+				return r;
+			} else if (decl.getOpcode() == Bytecode.OPCODE_vardeclinit && !assigned.contains(decl)) {
+				return rangeOf(decl.getOperand(0)).intersection(super.rangeOf(decl));
+			}
+			return super.rangeOf(decl);
+		}
+	}
+
+	/**
+	 * The contents of a cache file.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Cache {
+		/**
+		 * Fingerprint of the module whose summaries are cached.
+		 */
+		private final String fingerprint;
+
+		/**
+		 * Fingerprints of the other modules whose cached summaries were used,
+		 * indexed by module.
+		 */
+		private final Map<String, String> dependencies;
+
+		/**
+		 * Summaries indexed by function name and type.
+		 */
+		private final Map<String, IntegerRange[]> summaries;
+
+		public Cache(String fingerprint, Map<String, String> dependencies, Map<String, IntegerRange[]> summaries) {
+			this.fingerprint = fingerprint;
+			this.dependencies = dependencies;
+			this.summaries = summaries;
+		}
+	}
+
+	/**
+	 * Identifies a function or method together with the ranges of its
+	 * arguments.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Context {
+		private final FunctionOrMethod function;
+		private final IntegerRange[] arguments;
+
+		public Context(FunctionOrMethod function, IntegerRange[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Context) {
+				Context c = (Context) o;
+				return function == c.function && Arrays.equals(arguments, c.arguments);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(function) ^ Arrays.hashCode(arguments);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.math.BigInteger;
+
+import wyec.lang.IntegerRange;
+
+/**
+ * <p>
+ * Helper methods for replacing multiplication, division and remainder with
+ * cheaper operations, based on the known ranges of their operands. On cores
+ * without hardware division, every <code>/</code> or <code>%</code> is a call
+ * into a software division routine and, hence, this is worthwhile.
+ * </p>
+ *
+ * <p>
+ * Division of a non-negative dividend <code>x</code> by a constant
+ * <code>d</code> is replaced with a multiply-high sequence
+ * <code>(x * m) >> s</code>. Let <code>m = ceil(2^s / d)</code> and
+ * <code>e = m*d - 2^s</code>. Then, for any <code>0 <= x <= U</code>, we have
+ * <code>floor(x*m / 2^s) == floor(x / d)</code> provided
+ * <code>U*e < 2^s</code>. The smallest such <code>s</code> is chosen for which
+ * <code>U*m</code> fits in 64 bits.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StrengthReduction {
+	private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+	private static final BigInteger TWO_31 = BigInteger.ONE.shiftLeft(31);
+	private static final BigInteger TWO_63 = BigInteger.ONE.shiftLeft(63);
+
+	/**
+	 * Determine the base-two logarithm of a given range, provided it is a
+	 * single constant which is a positive power of two. Otherwise, return -1.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public static int log2(IntegerRange r) {
+		if (r.isConstant() && r.lowerBound().signum() > 0 && r.lowerBound().bitCount() == 1) {
+			return r.lowerBound().getLowestSetBit();
+		}
+		return -1;
+	}
+
+	/**
+	 * Determine the magic multiplier and shift to use for dividing a value in
+	 * the range <code>[0,U]</code> by a constant <code>d</code>. If no
+	 * suitable constants exist within 64-bit arithmetic, null is returned.
+	 *
+	 * @param d
+	 *            Divisor, which must be positive.
+	 * @param upperBound
+	 *            Upper bound of the dividend.
+	 * @return Pair of multiplier and shift, or null.
+	 */
+	public static BigInteger[] magic(BigInteger d, BigInteger upperBound) {
+		for (int s = 0; s < 64; ++s) {
+			BigInteger p = BigInteger.ONE.shiftLeft(s);
+			BigInteger[] qr = p.divideAndRemainder(d);
+			BigInteger m = qr[1].signum() == 0 ? qr[0] : qr[0].add(BigInteger.ONE);
+			BigInteger e = m.multiply(d).subtract(p);
+			if (upperBound.multiply(e).compareTo(p) < 0 && upperBound.multiply(m).compareTo(TWO_64) < 0) {
+				return new BigInteger[] { m, BigInteger.valueOf(s) };
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine the narrowest unsigned C type which holds all values of a
+	 * given non-negative range, or null if there is none.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public static String unsignedType(IntegerRange r) {
+		if (!r.isNonNegative() || r.upperBound() == null) {
+			return null;
+		} else if (r.upperBound().bitLength() <= 32) {
+			return "uint32_t";
+		} else if (r.upperBound().bitLength() <= 64) {
+			return "uint64_t";
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Determine the signed C type used for the result of a reduced
+	 * operation, given its (non-negative) range. This ensures the result
+	 * behaves as a signed value in any enclosing comparison. If the range is
+	 * not known to fit in a signed type, null is returned and the result must
+	 * keep the unsigned type of the operation.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public static String signedType(IntegerRange r) {
+		if (!r.isNonNegative() || r.upperBound() == null) {
+			return null;
+		} else if (r.upperBound().compareTo(TWO_31) < 0) {
+			return "int32_t";
+		} else if (r.upperBound().compareTo(TWO_63) < 0) {
+			return "int64_t";
+		} else {
+			return null;
+		}
+	}
+}
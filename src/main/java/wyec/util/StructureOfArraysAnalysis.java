@@ -0,0 +1,247 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.util.*;
+
+import wybs.lang.NameID;
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.WyilFile;
+import wyil.lang.Bytecode.VariableDeclaration;
+
+/**
+ * <p>
+ * Identifies local variables holding arrays of records which can be safely
+ * written using a <i>structure-of-arrays</i> layout. That is, where an array
+ * of records such as <code>{int x, int y}[]</code> is represented as one
+ * array per field, rather than one array of structs. This layout is
+ * considerably more cache friendly for loops which touch only some fields, and
+ * allows such loops to be vectorised.
+ * </p>
+ *
+ * <p>
+ * A variable is eligible only when every use of it follows one of the
+ * following patterns:
+ * </p>
+ * <ul>
+ * <li><b>Field Access.</b> An <code>arrayindex</code> immediately followed by
+ * a <code>fieldload</code>, as in <code>xs[i].f</code>. This covers both reads
+ * and element updates (i.e. <code>xs[i].f = e</code>).</li>
+ * <li><b>Length.</b> An <code>arraylength</code>, as in <code>|xs|</code>.</li>
+ * </ul>
+ * <p>
+ * Furthermore, the variable must be declared locally with either an array
+ * generator whose element is a record constructor (e.g.
+ * <code>xs = [{x:0, y:0}; n]</code>), or an array initialiser whose elements
+ * are all record constructors. Any other use (e.g. reading a whole element,
+ * passing the array to a function or returning it) means the array escapes
+ * into code which expects the standard layout and, hence, is not eligible.
+ * </p>
+ * <p>
+ * The element type may be a record, or a named type declared in the module
+ * being compiled whose underlying type is a record (e.g.
+ * <code>Point[]</code> where <code>type Point is {int x, int y}</code>).
+ * Named types from other modules are not resolved and, hence, are never
+ * eligible.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StructureOfArraysAnalysis {
+	/**
+	 * The module being compiled, whose type declarations are used to resolve
+	 * named element types.
+	 */
+	private final WyilFile module;
+
+	public StructureOfArraysAnalysis(WyilFile module) {
+		this.module = module;
+	}
+
+	/**
+	 * Determine the set of variable declarations within a given function or
+	 * method which are eligible for the structure-of-arrays layout.
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public Set<Location<VariableDeclaration>> apply(WyilFile.FunctionOrMethod fm) {
+		Set<Location<VariableDeclaration>> candidates = newIdentitySet();
+		Set<Location<VariableDeclaration>> rejected = newIdentitySet();
+		if (fm.getBody() != null) {
+			visit(fm.getBody(), null, null, candidates, rejected);
+		}
+		candidates.removeAll(rejected);
+		return candidates;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void visit(Location<?> loc, Location<?> parent, Location<?> grandparent,
+			Set<Location<VariableDeclaration>> candidates, Set<Location<VariableDeclaration>> rejected) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit: {
+			Location<VariableDeclaration> decl = (Location<VariableDeclaration>) loc;
+			if (isRecordArray(decl.getType()) && hasRecordInitialiser(decl)) {
+				candidates.add(decl);
+				// Visit the fields of each record constructor directly, since
+				// the generator or initialiser itself is a permitted use.
+				Location<?> init = decl.getOperand(0);
+				if (init.getOpcode() == Bytecode.OPCODE_arraygen) {
+					visitChildren(init.getOperand(0), init, candidates, rejected);
+					visit(init.getOperand(1), init, decl, candidates, rejected);
+				} else {
+					for (Location<?> element : init.getOperands()) {
+						visitChildren(element, init, candidates, rejected);
+					}
+				}
+				return;
+			}
+			break;
+		}
+		case Bytecode.OPCODE_varaccess: {
+			Location<VariableDeclaration> decl = getVariableDeclaration(loc.getOperand(0));
+			if (decl != null && isRecordArray(decl.getType()) && !isPermittedUse(loc, parent, grandparent)) {
+				rejected.add(decl);
+			}
+			// NOTE: must not traverse into the variable declaration
+			return;
+		}
+		case Bytecode.OPCODE_aliasdecl: {
+			// Conservatively reject aliased arrays
+			Location<VariableDeclaration> decl = getVariableDeclaration(loc);
+			if (decl != null) {
+				rejected.add(decl);
+			}
+			return;
+		}
+		}
+		visitChildren(loc, parent, candidates, rejected);
+	}
+
+	/**
+	 * Visit all children of a given location, including operands, operand
+	 * groups and blocks.
+	 *
+	 * @param loc
+	 * @param parent
+	 *            The parent of the given location, which becomes the
+	 *            grandparent of its children.
+	 * @param candidates
+	 * @param rejected
+	 */
+	private void visitChildren(Location<?> loc, Location<?> parent, Set<Location<VariableDeclaration>> candidates,
+			Set<Location<VariableDeclaration>> rejected) {
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			visit(loc.getOperand(i), loc, parent, candidates, rejected);
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				visit(operand, loc, parent, candidates, rejected);
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			visit(loc.getBlock(i), loc, parent, candidates, rejected);
+		}
+	}
+
+	private boolean isPermittedUse(Location<?> access, Location<?> parent, Location<?> grandparent) {
+		if (parent == null) {
+			return false;
+		} else if (parent.getOpcode() == Bytecode.OPCODE_arraylength) {
+			return true;
+		} else {
+			return parent.getOpcode() == Bytecode.OPCODE_arrayindex && parent.getOperand(0) == access
+					&& grandparent != null && grandparent.getOpcode() == Bytecode.OPCODE_fieldload;
+		}
+	}
+
+	/**
+	 * Check whether a given declaration is initialised with either a
+	 * generator of a record constructor, or an initialiser of record
+	 * constructors.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private static boolean hasRecordInitialiser(Location<VariableDeclaration> decl) {
+		if (decl.numberOfOperands() == 0) {
+			return false;
+		}
+		Location<?> init = decl.getOperand(0);
+		switch (init.getOpcode()) {
+		case Bytecode.OPCODE_arraygen:
+			return init.getOperand(0).getOpcode() == Bytecode.OPCODE_record;
+		case Bytecode.OPCODE_array:
+			for (Location<?> element : init.getOperands()) {
+				if (element.getOpcode() != Bytecode.OPCODE_record) {
+					return false;
+				}
+			}
+			return init.numberOfOperands() > 0;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a given type is an array of records.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public boolean isRecordArray(Type type) {
+		return getRecordElement(type) != null;
+	}
+
+	/**
+	 * Determine the record type of the elements of a given array type,
+	 * resolving any named types declared in this module.
+	 *
+	 * @param type
+	 * @return The record type, or null if the type is not an array of
+	 *         records.
+	 */
+	public Type.Record getRecordElement(Type type) {
+		if (!(type instanceof Type.Array)) {
+			return null;
+		}
+		Type elementT = ((Type.Array) type).element();
+		// NOTE: the number of steps is bounded, since named types cannot be
+		// defined directly in terms of themselves.
+		while (elementT instanceof Type.Nominal) {
+			NameID name = ((Type.Nominal) elementT).name();
+			if (!name.module().equals(module.getEntry().id())) {
+				return null;
+			}
+			WyilFile.Type decl = module.type(name.name());
+			if (decl == null) {
+				return null;
+			}
+			elementT = decl.type();
+		}
+		return elementT instanceof Type.Record ? (Type.Record) elementT : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Location<VariableDeclaration> getVariableDeclaration(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_vardeclinit:
+			return (Location<VariableDeclaration>) loc;
+		case Bytecode.OPCODE_aliasdecl:
+			return getVariableDeclaration(loc.getOperand(0));
+		}
+		return null;
+	}
+
+	private static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+}
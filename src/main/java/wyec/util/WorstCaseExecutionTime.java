@@ -0,0 +1,557 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.*;
+
+import wybs.lang.Attribute;
+import wyec.lang.IntegerRange;
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.Type;
+import wyil.lang.Bytecode.VariableDeclaration;
+import wyil.lang.WyilFile.FunctionOrMethod;
+
+/**
+ * <p>
+ * Estimates an upper bound on the execution time (in cycles) of each function
+ * or method in a module. This combines the cost of each operation on a given
+ * target (see {@link CostTable}) with bounds on the number of iterations of
+ * each loop. For example, consider this loop:
+ * </p>
+ *
+ * <pre>
+ * u8 i = 0
+ * while i < n:
+ *     ...
+ *     i = i + 1
+ * </pre>
+ *
+ * <p>
+ * Here, if <code>n</code> has type <code>u8</code>, then the loop executes at
+ * most 255 times. Loop bounds are determined by {@link IntegerRangeAnalysis}
+ * for loops whose condition compares a variable against a bound, where the
+ * variable is incremented (or decremented) by a constant exactly once on
+ * every iteration. The bound on a quantifier is determined from its range in
+ * the same way.
+ * </p>
+ *
+ * <p>
+ * Functions for which no bound can be determined are reported as unbounded,
+ * along with the reason. This includes functions containing loops which
+ * cannot be bounded, recursive functions, indirect invocations and
+ * invocations of functions in other modules.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class WorstCaseExecutionTime {
+	private final CallGraph graph;
+	private final CostTable costs;
+	private final IntegerRangeAnalysis ranges = new IntegerRangeAnalysis();
+	private final Map<FunctionOrMethod, Bound> cache = new IdentityHashMap<FunctionOrMethod, Bound>();
+
+	/**
+	 * Functions whose bound is currently being determined. Encountering one
+	 * of these again indicates recursion.
+	 */
+	private final Set<FunctionOrMethod> active = Collections
+			.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+
+	/**
+	 * The function or method whose body is currently being analysed.
+	 */
+	private FunctionOrMethod current;
+
+	public WorstCaseExecutionTime(CallGraph graph, CostTable costs) {
+		this.graph = graph;
+		this.costs = costs;
+	}
+
+	/**
+	 * Determine an upper bound on the execution time of a given function or
+	 * method, including that of any functions or methods it invokes (but not
+	 * the cost of invoking it).
+	 *
+	 * @param fm
+	 * @return
+	 */
+	public Bound apply(FunctionOrMethod fm) {
+		Bound b = cache.get(fm);
+		if (b != null) {
+			return b;
+		} else if (active.contains(fm)) {
+			return Bound.unbounded("recursive call to " + fm.name());
+		} else if (fm.getBody() == null) {
+			return Bound.unbounded(fm.name() + " has no body");
+		}
+		active.add(fm);
+		FunctionOrMethod caller = current;
+		current = fm;
+		b = costOfBlock(fm.getBody());
+		current = caller;
+		active.remove(fm);
+		cache.put(fm, b);
+		return b;
+	}
+
+	/**
+	 * Write the bound for each of the given functions and entry points.
+	 *
+	 * @param out
+	 * @param functions
+	 * @param entries
+	 *            Entry points, which may be empty.
+	 */
+	public void writeReport(PrintStream out, Collection<FunctionOrMethod> functions,
+			Collection<FunctionOrMethod> entries) {
+		out.println("WCET (cycles, " + costs.getName() + ")");
+		for (FunctionOrMethod fm : functions) {
+			out.println(String.format("  %-22s %s", fm.name(), apply(fm)));
+		}
+		if (!entries.isEmpty()) {
+			out.println("Entry points");
+			for (FunctionOrMethod fm : entries) {
+				Bound b = apply(fm).add(Bound.of(costs.get(Bytecode.OPCODE_invoke)));
+				out.println(String.format("  %-22s %s", fm.name(), b));
+			}
+		}
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	private Bound costOfBlock(Location<Bytecode.Block> block) {
+		Bound b = Bound.ZERO;
+		for (int i = 0; i != block.numberOfOperands(); ++i) {
+			Location<?> stmt = block.getOperand(i);
+			switch (stmt.getOpcode()) {
+			case Bytecode.OPCODE_while:
+			case Bytecode.OPCODE_dowhile:
+				b = b.add(costOfLoop(block, i));
+				break;
+			default:
+				b = b.add(costOf(stmt));
+			}
+		}
+		return b;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Bound costOf(Location<?> loc) {
+		int opcode = loc.getOpcode();
+		switch (opcode) {
+		case Bytecode.OPCODE_vardecl:
+		case Bytecode.OPCODE_aliasdecl:
+		case Bytecode.OPCODE_skip:
+		case Bytecode.OPCODE_debug:
+			return Bound.ZERO;
+		case Bytecode.OPCODE_lambda:
+			// The body of a lambda is not executed here
+			return Bound.of(costs.get(opcode));
+		case Bytecode.OPCODE_varaccess:
+			// NOTE: must not traverse into the variable declaration
+			return Bound.of(costs.get(opcode));
+		case Bytecode.OPCODE_namedblock:
+			return costOfBlock((Location<Bytecode.Block>) loc.getBlock(0));
+		case Bytecode.OPCODE_if:
+		case Bytecode.OPCODE_ifelse:
+		case Bytecode.OPCODE_switch: {
+			Bound branches = Bound.ZERO;
+			for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+				branches = branches.max(costOfBlock((Location<Bytecode.Block>) loc.getBlock(i)));
+			}
+			return costOf(loc.getOperand(0)).add(Bound.of(costs.get(opcode))).add(branches);
+		}
+		case Bytecode.OPCODE_all:
+		case Bytecode.OPCODE_some:
+			return costOfQuantifier(loc);
+		case Bytecode.OPCODE_arraygen: {
+			BigInteger n = rangeOf(loc.getOperand(1)).upperBound();
+			if (n == null) {
+				return Bound.unbounded("array generator " + describe(loc) + " has no bound");
+			}
+			Bound b = costOf(loc.getOperand(0)).add(costOf(loc.getOperand(1)));
+			return b.add(Bound.of(costs.get(opcode)).multiply(n.max(BigInteger.ZERO)));
+		}
+		case Bytecode.OPCODE_invoke: {
+			FunctionOrMethod target = graph.resolve((Bytecode.Invoke) loc.getBytecode());
+			Bound b = costOfOperands(loc).add(Bound.of(costs.get(opcode)));
+			if (target == null) {
+				return b.add(Bound.unbounded("call to external " + ((Bytecode.Invoke) loc.getBytecode()).name()));
+			}
+			return b.add(apply(target));
+		}
+		case Bytecode.OPCODE_indirectinvoke:
+			return Bound.unbounded("indirect call " + describe(loc));
+		}
+		return costOfOperands(loc).add(Bound.of(costs.get(opcode, isWide(loc))));
+	}
+
+	private Bound costOfOperands(Location<?> loc) {
+		Bound b = Bound.ZERO;
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			b = b.add(costOf(loc.getOperand(i)));
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				b = b.add(costOf(operand));
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Determine the cost of the loop at a given index in a given block. The
+	 * statements preceding the loop in its block are used to determine
+	 * the initial value of the loop variable.
+	 *
+	 * @param block
+	 * @param index
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private Bound costOfLoop(Location<Bytecode.Block> block, int index) {
+		Location<?> loop = block.getOperand(index);
+		BigInteger n = getTripCount(loop, block, index);
+		if (n == null) {
+			return Bound.unbounded("loop " + describe(loop) + " has no bound");
+		}
+		Bound condition = costOf(loop.getOperand(0)).add(Bound.of(costs.get(loop.getOpcode())));
+		Bound body = costOfBlock((Location<Bytecode.Block>) loop.getBlock(0));
+		if (loop.getOpcode() == Bytecode.OPCODE_dowhile) {
+			// The body is always executed at least once
+			return condition.add(body).multiply(n.add(BigInteger.ONE));
+		}
+		return condition.multiply(n.add(BigInteger.ONE)).add(body.multiply(n));
+	}
+
+	private Bound costOfQuantifier(Location<?> loc) {
+		BigInteger n = BigInteger.ONE;
+		Bound b = Bound.ZERO;
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			Location<?>[] range = loc.getOperandGroup(i);
+			BigInteger lb = rangeOf(range[SyntaxTree.START]).lowerBound();
+			BigInteger ub = rangeOf(range[SyntaxTree.END]).upperBound();
+			if (lb == null || ub == null) {
+				return Bound.unbounded("quantifier " + describe(loc) + " has no bound");
+			}
+			n = n.multiply(ub.subtract(lb).max(BigInteger.ZERO));
+			b = b.add(costOf(range[SyntaxTree.START])).add(costOf(range[SyntaxTree.END]));
+		}
+		Bound body = costOf(loc.getOperand(SyntaxTree.CONDITION)).add(Bound.of(costs.get(loc.getOpcode())));
+		return b.add(body.multiply(n));
+	}
+
+	// ======================================================================
+	// Loop Bounds
+	// ======================================================================
+
+	/**
+	 * Determine an upper bound on the number of iterations of a given loop,
+	 * or null if no bound can be determined. For a <code>do-while</code>
+	 * loop, this excludes the first iteration.
+	 *
+	 * @param loop
+	 * @param block
+	 *            The block containing the loop.
+	 * @param index
+	 *            The index of the loop in the block.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private BigInteger getTripCount(Location<?> loop, Location<Bytecode.Block> block, int index) {
+		Location<Bytecode.Block> body = (Location<Bytecode.Block>) loop.getBlock(0);
+		if (contains(body, Bytecode.OPCODE_continue)) {
+			// A continue may skip the step of the loop variable
+			return null;
+		}
+		BigInteger bound = null;
+		for (Location<?> condition : getConjuncts(loop.getOperand(0))) {
+			BigInteger n = getTripCount(condition, body, block, index);
+			if (n != null) {
+				bound = bound == null ? n : bound.min(n);
+			}
+		}
+		return bound;
+	}
+
+	private BigInteger getTripCount(Location<?> condition, Location<Bytecode.Block> body,
+			Location<Bytecode.Block> block, int index) {
+		int opcode = condition.getOpcode();
+		Location<?> lhs, rhs;
+		switch (opcode) {
+		case Bytecode.OPCODE_lt:
+		case Bytecode.OPCODE_le:
+		case Bytecode.OPCODE_gt:
+		case Bytecode.OPCODE_ge:
+			lhs = condition.getOperand(0);
+			rhs = condition.getOperand(1);
+			break;
+		default:
+			return null;
+		}
+		// Normalise the condition such that the loop variable is on the left
+		// (i.e. flipping x > i to i < x).
+		Location<VariableDeclaration> var = IntegerRangeAnalysis.getVariable(lhs);
+		if (var == null) {
+			var = IntegerRangeAnalysis.getVariable(rhs);
+			Location<?> tmp = lhs;
+			lhs = rhs;
+			rhs = tmp;
+			opcode = flip(opcode);
+		}
+		if (var == null) {
+			return null;
+		}
+		BigInteger step = getStep(var, body);
+		if (step == null) {
+			return null;
+		}
+		IntegerRange init = ranges.rangeOnEntry(var, block, index);
+		IntegerRange limit = rangeOf(rhs);
+		boolean strict = opcode == Bytecode.OPCODE_lt || opcode == Bytecode.OPCODE_gt;
+		BigInteger distance;
+		if ((opcode == Bytecode.OPCODE_lt || opcode == Bytecode.OPCODE_le) && step.signum() > 0) {
+			if (init.lowerBound() == null || limit.upperBound() == null) {
+				return null;
+			}
+			distance = limit.upperBound().subtract(init.lowerBound());
+		} else if ((opcode == Bytecode.OPCODE_gt || opcode == Bytecode.OPCODE_ge) && step.signum() < 0) {
+			if (init.upperBound() == null || limit.lowerBound() == null) {
+				return null;
+			}
+			distance = init.upperBound().subtract(limit.lowerBound());
+			step = step.negate();
+		} else {
+			return null;
+		}
+		if (distance.signum() < 0) {
+			return BigInteger.ZERO;
+		} else if (strict) {
+			// ceil(distance / step)
+			return distance.add(step).subtract(BigInteger.ONE).divide(step);
+		} else {
+			return distance.divide(step).add(BigInteger.ONE);
+		}
+	}
+
+	private static int flip(int opcode) {
+		switch (opcode) {
+		case Bytecode.OPCODE_lt:
+			return Bytecode.OPCODE_gt;
+		case Bytecode.OPCODE_le:
+			return Bytecode.OPCODE_ge;
+		case Bytecode.OPCODE_gt:
+			return Bytecode.OPCODE_lt;
+		default:
+			return Bytecode.OPCODE_le;
+		}
+	}
+
+	/**
+	 * Determine the constant by which a given variable is stepped on every
+	 * iteration of a loop. This requires that the variable is assigned
+	 * exactly once in the loop, by a top-level statement of its body of the
+	 * form <code>i = i + c</code> or <code>i = i - c</code>. Otherwise, this
+	 * returns null.
+	 *
+	 * @param var
+	 * @param body
+	 * @return
+	 */
+	private BigInteger getStep(Location<VariableDeclaration> var, Location<Bytecode.Block> body) {
+		BigInteger step = null;
+		for (int i = 0; i != body.numberOfOperands(); ++i) {
+			Location<?> stmt = body.getOperand(i);
+			if (stmt.getOpcode() == Bytecode.OPCODE_assign && step == null) {
+				step = ranges.stepOf(var, stmt);
+				if (step != null) {
+					continue;
+				}
+			}
+			if (LoopInvariantAnalysis.isAssigned(stmt, var)) {
+				return null;
+			}
+		}
+		return step;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private IntegerRange rangeOf(Location<?> expr) {
+		return ranges.rangeOf(expr);
+	}
+
+	private static IntegerRange rangeOf(Type type) {
+		return IntegerRangeAnalysis.rangeOf(type);
+	}
+
+	/**
+	 * Check whether a given arithmetic operation may be on 64-bit integers,
+	 * since these may be more costly. This is determined from the type of
+	 * its result.
+	 *
+	 * @param loc
+	 * @return
+	 */
+	private static boolean isWide(Location<?> loc) {
+		switch (loc.getOpcode()) {
+		case Bytecode.OPCODE_add:
+		case Bytecode.OPCODE_sub:
+		case Bytecode.OPCODE_mul:
+		case Bytecode.OPCODE_div:
+		case Bytecode.OPCODE_rem:
+		case Bytecode.OPCODE_neg:
+		case Bytecode.OPCODE_shl:
+		case Bytecode.OPCODE_shr:
+			break;
+		default:
+			return false;
+		}
+		IntegerRange r = rangeOf(loc.getType());
+		return r.lowerBound() == null || r.upperBound() == null || !(INT32.contains(r) || UINT32.contains(r));
+	}
+
+	private static final IntegerRange INT32 = new IntegerRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+	private static final IntegerRange UINT32 = new IntegerRange(0, 0xFFFFFFFFL);
+
+	private static List<Location<?>> getConjuncts(Location<?> condition) {
+		List<Location<?>> conjuncts = new ArrayList<Location<?>>();
+		if (condition.getOpcode() == Bytecode.OPCODE_logicaland) {
+			for (Location<?> operand : condition.getOperands()) {
+				conjuncts.addAll(getConjuncts(operand));
+			}
+		} else {
+			conjuncts.add(condition);
+		}
+		return conjuncts;
+	}
+
+	private static boolean contains(Location<?> loc, int opcode) {
+		if (loc.getOpcode() == opcode) {
+			return true;
+		} else if (loc.getOpcode() == Bytecode.OPCODE_varaccess || loc.getOpcode() == Bytecode.OPCODE_aliasdecl) {
+			return false;
+		}
+		for (int i = 0; i != loc.numberOfOperands(); ++i) {
+			if (contains(loc.getOperand(i), opcode)) {
+				return true;
+			}
+		}
+		for (int i = 0; i != loc.numberOfOperandGroups(); ++i) {
+			for (Location<?> operand : loc.getOperandGroup(i)) {
+				if (contains(operand, opcode)) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; i != loc.numberOfBlocks(); ++i) {
+			if (contains(loc.getBlock(i), opcode)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Describe a location for the purposes of reporting, using its source
+	 * line where available.
+	 *
+	 * @param loc
+	 * @return
+	 */
+	private String describe(Location<?> loc) {
+		Attribute.Source source = loc.attribute(Attribute.Source.class);
+		String where = source != null ? "line " + source.line : "#" + loc.getIndex();
+		return "in " + current.name() + " (" + where + ")";
+	}
+
+	/**
+	 * An upper bound on execution time in cycles, which may be unbounded. An
+	 * unbounded value records the reason no bound could be determined.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Bound {
+		public static final Bound ZERO = new Bound(BigInteger.ZERO, null);
+
+		private final BigInteger cycles;
+		private final String reason;
+
+		private Bound(BigInteger cycles, String reason) {
+			this.cycles = cycles;
+			this.reason = reason;
+		}
+
+		public static Bound of(long cycles) {
+			return new Bound(BigInteger.valueOf(cycles), null);
+		}
+
+		public static Bound unbounded(String reason) {
+			return new Bound(null, reason);
+		}
+
+		public boolean isBounded() {
+			return cycles != null;
+		}
+
+		/**
+		 * Get the number of cycles, or null if this is unbounded.
+		 *
+		 * @return
+		 */
+		public BigInteger cycles() {
+			return cycles;
+		}
+
+		/**
+		 * Get the reason this is unbounded, or null if it is bounded.
+		 *
+		 * @return
+		 */
+		public String reason() {
+			return reason;
+		}
+
+		public Bound add(Bound other) {
+			if (!isBounded()) {
+				return this;
+			} else if (!other.isBounded()) {
+				return other;
+			}
+			return new Bound(cycles.add(other.cycles), null);
+		}
+
+		public Bound multiply(BigInteger n) {
+			return isBounded() ? new Bound(cycles.multiply(n), null) : this;
+		}
+
+		public Bound max(Bound other) {
+			if (!isBounded()) {
+				return this;
+			} else if (!other.isBounded()) {
+				return other;
+			}
+			return new Bound(cycles.max(other.cycles), null);
+		}
+
+		@Override
+		public String toString() {
+			return isBounded() ? cycles.toString() : "unbounded: " + reason;
+		}
+	}
+}
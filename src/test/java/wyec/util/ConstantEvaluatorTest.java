@@ -0,0 +1,218 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import org.junit.Test;
+
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.WyilFile;
+
+/**
+ * Tests for {@link ConstantEvaluator}. Most tests evaluate the invocation
+ * returned by a function <code>main</code>, where null indicates that
+ * evaluation is abandoned. The remainder check the operations on values
+ * directly.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ConstantEvaluatorTest {
+
+	@Test
+	public void testArithmetic() throws Exception {
+		assertEquals(BigInteger.valueOf(17), evaluate(
+				"function taps(int n) -> int:\n" +
+				"    return (n * 2) + 1\n",
+				"taps(8)"));
+	}
+
+	@Test
+	public void testLoop() throws Exception {
+		assertEquals(BigInteger.valueOf(45), evaluate(
+				"function sum(int n) -> int:\n" +
+				"    int i = 0\n" +
+				"    int r = 0\n" +
+				"    while i < n:\n" +
+				"        r = r + i\n" +
+				"        i = i + 1\n" +
+				"    return r\n",
+				"sum(10)"));
+	}
+
+	@Test
+	public void testArrayEquality() throws Exception {
+		assertEquals(Boolean.TRUE, evaluate(
+				"function same(int n) -> bool:\n" +
+				"    int[] xs = [n; 3]\n" +
+				"    int[] ys = [n, n, n]\n" +
+				"    return xs == ys\n",
+				"same(1)"));
+	}
+
+	@Test
+	public void testArrayInequality() throws Exception {
+		assertEquals(Boolean.TRUE, evaluate(
+				"function differ(int n) -> bool:\n" +
+				"    int[] xs = [n; 3]\n" +
+				"    int[] ys = [n; 3]\n" +
+				"    ys[1] = n + 1\n" +
+				"    return xs != ys\n",
+				"differ(1)"));
+	}
+
+	@Test
+	public void testRecordEquality() throws Exception {
+		assertEquals(Boolean.TRUE, evaluate(
+				"function same(int n) -> bool:\n" +
+				"    {int[] f} r1 = {f: [n; 2]}\n" +
+				"    {int[] f} r2 = {f: [n, n]}\n" +
+				"    return r1 == r2\n",
+				"same(2)"));
+	}
+
+	@Test
+	public void testPreconditionViolated() throws Exception {
+		assertNull(evaluate(
+				"function pos(int x) -> int\n" +
+				"requires x > 0:\n" +
+				"    return x\n",
+				"pos(0)"));
+	}
+
+	@Test
+	public void testPreconditionHolds() throws Exception {
+		assertEquals(BigInteger.ONE, evaluate(
+				"function pos(int x) -> int\n" +
+				"requires x > 0:\n" +
+				"    return x\n",
+				"pos(1)"));
+	}
+
+	@Test
+	public void testPostconditionViolated() throws Exception {
+		assertNull(evaluate(
+				"function inc(int x) -> (int r)\n" +
+				"ensures r > x:\n" +
+				"    return x\n",
+				"inc(1)"));
+	}
+
+	@Test
+	public void testPostconditionOriginalParameter() throws Exception {
+		// The postcondition refers to the value of x on entry
+		assertEquals(BigInteger.valueOf(2), evaluate(
+				"function inc(int x) -> (int r)\n" +
+				"ensures r == x + 1:\n" +
+				"    x = x + 1\n" +
+				"    return x\n",
+				"inc(1)"));
+	}
+
+	@Test
+	public void testStepLimit() throws Exception {
+		assertNull(evaluate(
+				"function spin(int n) -> int:\n" +
+				"    while n > 0:\n" +
+				"        n = n + 1\n" +
+				"    return n\n",
+				"spin(1)"));
+	}
+
+	@Test
+	public void testEqualNested() {
+		Object v1 = array(record("f", array(1, 2)), record("f", array()));
+		Object v2 = array(record("f", array(1, 2)), record("f", array()));
+		assertTrue(ConstantEvaluator.equal(v1, v2));
+		assertFalse(ConstantEvaluator.equal(v1, array(record("f", array(1, 3)), record("f", array()))));
+		assertFalse(ConstantEvaluator.equal(v1, array(record("f", array(1, 2)))));
+		assertFalse(ConstantEvaluator.equal(record("f", array(1)), record("g", array(1))));
+		assertFalse(ConstantEvaluator.equal(array(1), BigInteger.ONE));
+	}
+
+	@Test
+	public void testIndex() {
+		Object[] xs = array(1, 2, 3);
+		assertEquals(0, ConstantEvaluator.index(xs, BigInteger.ZERO));
+		assertEquals(2, ConstantEvaluator.index(xs, BigInteger.valueOf(2)));
+	}
+
+	@Test(expected = ConstantEvaluator.Abandon.class)
+	public void testIndexAboveBounds() {
+		ConstantEvaluator.index(array(1, 2, 3), BigInteger.valueOf(3));
+	}
+
+	@Test(expected = ConstantEvaluator.Abandon.class)
+	public void testIndexBelowBounds() {
+		ConstantEvaluator.index(array(1, 2, 3), BigInteger.valueOf(-1));
+	}
+
+	@Test
+	public void testCopyIsDeep() {
+		Object[] original = array(array(1, 2), record("f", array(3)));
+		Object[] copy = (Object[]) new ConstantEvaluator(null, 0, 100).copy(original);
+		assertTrue(ConstantEvaluator.equal(original, copy));
+		((Object[]) copy[0])[1] = BigInteger.ZERO;
+		assertEquals(BigInteger.valueOf(2), ((Object[]) original[0])[1]);
+	}
+
+	@Test(expected = ConstantEvaluator.Abandon.class)
+	public void testCopyMemoryLimit() {
+		// Copying allocates the outer array, both inner arrays and the record
+		new ConstantEvaluator(null, 0, 5).copy(array(array(1, 2), record("f", array(3))));
+	}
+
+	/**
+	 * Evaluate a given invocation of a function in a given module.
+	 *
+	 * @param function
+	 *            Source of the function invoked.
+	 * @param invocation
+	 * @return
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object evaluate(String function, String invocation) throws Exception {
+		WyilFile module = WyilFixtures.compile("eval",
+				function + "\n" +
+				"function main() -> int|bool:\n" +
+				"    return " + invocation + "\n");
+		ConstantEvaluator evaluator = new ConstantEvaluator(new CallGraph(module), 10000, 1000);
+		for (Location<?> loc : WyilFixtures.get(module, "main").getTree().getLocations()) {
+			if (loc.getOpcode() == Bytecode.OPCODE_invoke) {
+				return evaluator.evaluate((Location<Bytecode.Invoke>) loc);
+			}
+		}
+		throw new IllegalArgumentException("no invocation in main");
+	}
+
+	/**
+	 * Construct an array value whose elements are given, where integers are
+	 * converted to <code>BigInteger</code>.
+	 *
+	 * @param elements
+	 * @return
+	 */
+	private static Object[] array(Object... elements) {
+		Object[] r = new Object[elements.length];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = elements[i] instanceof Integer ? BigInteger.valueOf((Integer) elements[i]) : elements[i];
+		}
+		return r;
+	}
+
+	private static Map<String, Object> record(String field, Object value) {
+		Map<String, Object> r = new HashMap<String, Object>();
+		r.put(field, value);
+		return r;
+	}
+}
@@ -0,0 +1,415 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import wyil.lang.Bytecode.VariableDeclaration;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.FunctionOrMethod;
+
+/**
+ * Tests for the loops fused and arrays scalarised by {@link LoopFusion}. Most
+ * tests apply fusion to the body of a function <code>f</code>, where the
+ * function <code>g</code> (if present) is considered to perform a contract
+ * check. The remainder check the dependence rules directly on summaries of
+ * loops whose variables are named.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopFusionTest {
+
+	@Test
+	public void testFuseMap() throws Exception {
+		List<LoopFusion.Fusion> fusions = fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [0; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        ys[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = ys[j] + 1\n" +
+				"        j = j + 1\n" +
+				"    return zs\n");
+		assertEquals(1, fusions.size());
+		assertEquals(1, fusions.get(0).getLoops().size());
+		assertEquals(1, fusions.get(0).getInitialisers().size());
+	}
+
+	@Test
+	public void testFuseScan() throws Exception {
+		List<LoopFusion.Fusion> fusions = fuse(
+				"function f(int[] xs) -> bool:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [0; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        ys[i] = xs[i] + 1\n" +
+				"        i = i + 1\n" +
+				"    bool ok = all { k in 0..n | ys[k] >= 0 }\n" +
+				"    return ok\n");
+		assertEquals(1, fusions.size());
+		assertEquals(0, fusions.get(0).getLoops().size());
+		assertEquals(1, fusions.get(0).getScans().size());
+	}
+
+	@Test
+	public void testDifferentBounds() throws Exception {
+		assertTrue(fuse(
+				"function f(int[] xs, int n, int m) -> int[]:\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        xs[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < m:\n" +
+				"        xs[j] = xs[j] + 1\n" +
+				"        j = j + 1\n" +
+				"    return xs\n").isEmpty());
+	}
+
+	@Test
+	public void testUnalignedRead() throws Exception {
+		// The second loop reads an element written by a later iteration of
+		// the first.
+		assertTrue(fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [0; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        ys[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = ys[(n - j) - 1]\n" +
+				"        j = j + 1\n" +
+				"    return zs\n").isEmpty());
+	}
+
+	@Test
+	public void testScalarWritten() throws Exception {
+		// The second loop observes the final value of a scalar written by
+		// the first.
+		assertTrue(fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int s = 0\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        s = s + xs[i]\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = s\n" +
+				"        j = j + 1\n" +
+				"    return zs\n").isEmpty());
+	}
+
+	@Test
+	public void testEarlyExit() throws Exception {
+		assertTrue(fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        if xs[i] < 0:\n" +
+				"            break\n" +
+				"        xs[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = zs[j] + 1\n" +
+				"        j = j + 1\n" +
+				"    return zs\n").isEmpty());
+	}
+
+	@Test
+	public void testAssertBeforeLoop() throws Exception {
+		// The second loop would divide by elements not yet checked
+		String source = "function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        assert xs[i] != 0\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = 100 / xs[(n - j) - 1]\n" +
+				"        j = j + 1\n" +
+				"    return zs\n";
+		assertTrue(fuse(source).isEmpty());
+		// Unless checks are stripped
+		assertEquals(1, fuse(source, false).size());
+	}
+
+	@Test
+	public void testAssertInLastLoop() throws Exception {
+		assertEquals(1, fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        zs[i] = xs[i] + 1\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        assert zs[j] != 0\n" +
+				"        j = j + 1\n" +
+				"    return zs\n").size());
+	}
+
+	@Test
+	public void testCheckingInvokeBeforeLoop() throws Exception {
+		assertTrue(fuse(
+				"function g(int x) -> int\n" +
+				"requires x >= 0:\n" +
+				"    return x\n" +
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        xs[i] = g(xs[i])\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = zs[j] + 1\n" +
+				"        j = j + 1\n" +
+				"    return zs\n").isEmpty());
+	}
+
+	@Test
+	public void testScalarise() throws Exception {
+		List<LoopFusion.Fusion> fusions = fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [0; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        ys[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = ys[j] + 1\n" +
+				"        j = j + 1\n" +
+				"    return zs\n");
+		assertEquals(Collections.singleton("ys"), getScalarised(fusions));
+		// Both element accesses are replaced
+		assertEquals(2, fusions.get(0).getScalarised().values().iterator().next().size());
+	}
+
+	@Test
+	public void testNotScalarisedWhenUsedAfter() throws Exception {
+		assertEquals(Collections.emptySet(), getScalarised(fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [0; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        ys[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = ys[j] + 1\n" +
+				"        j = j + 1\n" +
+				"    return ys\n")));
+	}
+
+	@Test
+	public void testNotScalarisedWhenReadFirst() throws Exception {
+		// The element read is that from the generator, not this iteration
+		assertEquals(Collections.emptySet(), getScalarised(fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [1; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        zs[i] = ys[i]\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        ys[j] = xs[j]\n" +
+				"        j = j + 1\n" +
+				"    return zs\n")));
+	}
+
+	@Test
+	public void testNotScalarisedWhenLengthUsed() throws Exception {
+		assertEquals(Collections.emptySet(), getScalarised(fuse(
+				"function f(int[] xs, int[] zs) -> int[]:\n" +
+				"    int n = |xs|\n" +
+				"    int[] ys = [0; n]\n" +
+				"    int i = 0\n" +
+				"    while i < n:\n" +
+				"        ys[i] = xs[i] * 2\n" +
+				"        i = i + 1\n" +
+				"    int j = 0\n" +
+				"    while j < n:\n" +
+				"        zs[j] = ys[j] + |ys|\n" +
+				"        j = j + 1\n" +
+				"    return zs\n")));
+	}
+
+	@Test
+	public void testIndependentAligned() {
+		// ys[i] = xs[i] * 2 followed by zs[j] = ys[j] + 1
+		LoopFusion.Effects<String> first = effects("i", "ys", "xs");
+		first.written.add("ys");
+		LoopFusion.Effects<String> second = effects("j", "zs", "ys");
+		second.written.add("zs");
+		assertTrue(isIndependent(second, first));
+	}
+
+	@Test
+	public void testDependentUnalignedRead() {
+		// ys[i] = xs[i] * 2 followed by zs[j] = ys[(n - j) - 1]
+		LoopFusion.Effects<String> first = effects("i", "ys", "xs");
+		first.written.add("ys");
+		LoopFusion.Effects<String> second = effects("j", "zs", "ys", "n");
+		second.written.add("zs");
+		second.unaligned.add("ys");
+		second.unaligned.add("n");
+		assertFalse(isIndependent(second, first));
+		// Unless the array read is not the one written
+		second.accessed.remove("ys");
+		assertTrue(isIndependent(second, first));
+	}
+
+	@Test
+	public void testDependentUnalignedWrite() {
+		// s = s + xs[i] followed by zs[j] = s
+		LoopFusion.Effects<String> first = effects("i", "s", "xs");
+		first.written.add("s");
+		first.unaligned.add("s");
+		LoopFusion.Effects<String> second = effects("j", "zs", "s");
+		second.written.add("zs");
+		second.unaligned.add("s");
+		assertFalse(isIndependent(second, first));
+		// In either order
+		assertFalse(isIndependent(first, second));
+	}
+
+	@Test
+	public void testDependentLoopVariable() {
+		// The loop variables differ once fused
+		LoopFusion.Effects<String> first = effects("i", "xs");
+		LoopFusion.Effects<String> second = effects("j", "zs", "i");
+		second.unaligned.add("i");
+		assertFalse(isIndependent(second, first));
+		// Sharing a loop variable is fine
+		assertTrue(isIndependent(effects("i", "zs", "i"), first));
+	}
+
+	@Test
+	public void testDependentImpure() {
+		LoopFusion.Effects<String> first = effects("i", "xs");
+		LoopFusion.Effects<String> second = effects("j", "zs");
+		second.impure = true;
+		assertFalse(isIndependent(second, first));
+		assertFalse(isIndependent(effects("j", "zs"), second));
+	}
+
+	@Test
+	public void testDependentChecked() {
+		// Only a check before the next loop prevents fusion
+		LoopFusion.Effects<String> first = effects("i", "xs");
+		first.checked = true;
+		LoopFusion.Effects<String> second = effects("j", "zs");
+		assertFalse(isIndependent(second, first));
+		assertTrue(isIndependent(first, second));
+	}
+
+	@Test
+	public void testIndependentOfAll() {
+		LoopFusion.Effects<String> first = effects("i", "xs");
+		LoopFusion.Effects<String> second = effects("i", "ys");
+		second.written.add("ys");
+		second.unaligned.add("ys");
+		LoopFusion.Effects<String> third = effects("i", "zs", "ys");
+		List<LoopFusion.Effects<String>> items = Arrays.asList(first, second);
+		assertFalse(LoopFusion.isIndependent(items, third));
+		assertTrue(LoopFusion.isIndependent(items, effects("i", "zs", "xs")));
+	}
+
+	private static List<LoopFusion.Fusion> fuse(String source) throws Exception {
+		return fuse(source, true);
+	}
+
+	/**
+	 * Apply loop fusion to the body of the function <code>f</code> in a given
+	 * module.
+	 *
+	 * @param source
+	 * @param checks
+	 *            Whether contract checks are considered (i.e. are not
+	 *            stripped).
+	 * @return
+	 * @throws Exception
+	 */
+	private static List<LoopFusion.Fusion> fuse(String source, boolean checks) throws Exception {
+		WyilFile module = WyilFixtures.compile("fusion", source);
+		LoopFusion fusion;
+		if (checks) {
+			Set<FunctionOrMethod> checking = Collections
+					.newSetFromMap(new IdentityHashMap<FunctionOrMethod, Boolean>());
+			for (FunctionOrMethod fm : module.functionOrMethods()) {
+				if (fm.name().equals("g")) {
+					checking.add(fm);
+				}
+			}
+			fusion = new LoopFusion(new IntegerRangeAnalysis(), new CallGraph(module), checking);
+		} else {
+			fusion = new LoopFusion(new IntegerRangeAnalysis());
+		}
+		Set<Location<?>> excluded = Collections.emptySet();
+		return fusion.apply(WyilFixtures.get(module, "f").getBody(), excluded);
+	}
+
+	private static Set<String> getScalarised(List<LoopFusion.Fusion> fusions) {
+		Set<String> names = new HashSet<String>();
+		for (LoopFusion.Fusion f : fusions) {
+			for (Location<VariableDeclaration> var : f.getScalarised().keySet()) {
+				names.add(var.getBytecode().getName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Summarise a loop over a given variable which accesses the given
+	 * variables, all of which are aligned.
+	 *
+	 * @param variable
+	 * @param accessed
+	 * @return
+	 */
+	private static LoopFusion.Effects<String> effects(String variable, String... accessed) {
+		LoopFusion.Effects<String> effects = new LoopFusion.Effects<String>(variable);
+		effects.accessed.addAll(Arrays.asList(accessed));
+		return effects;
+	}
+
+	/**
+	 * Check whether a given loop can be fused with a single preceding loop.
+	 *
+	 * @param next
+	 * @param previous
+	 * @return
+	 */
+	private static boolean isIndependent(LoopFusion.Effects<String> next, LoopFusion.Effects<String> previous) {
+		return LoopFusion.isIndependent(Collections.singletonList(previous), next);
+	}
+}
@@ -0,0 +1,111 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import wyil.lang.Bytecode;
+import wyil.lang.SyntaxTree.Location;
+import wyil.lang.WyilFile;
+
+/**
+ * Tests for the expressions hoisted by {@link LoopInvariantAnalysis}. Each
+ * test analyses the first loop in the body of a function <code>f</code>, where
+ * the function <code>g</code> is invariant whenever its argument is.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LoopInvariantAnalysisTest {
+
+	private static final String G = "function g(int x) -> bool:\n" +
+			"    return x > 0\n";
+
+	@Test
+	public void testWhileCondition() throws Exception {
+		assertEquals(Arrays.asList("g"), getInvocations(hoist(G +
+				"function f(int[] xs, int k) -> int:\n" +
+				"    int i = 0\n" +
+				"    while g(k) && i < |xs|:\n" +
+				"        if xs[i] < 0:\n" +
+				"            break\n" +
+				"        i = i + 1\n" +
+				"    return i\n")));
+	}
+
+	@Test
+	public void testDoWhileCondition() throws Exception {
+		assertEquals(Arrays.asList("g"), getInvocations(hoist(G +
+				"function f(int[] xs, int k) -> int:\n" +
+				"    int i = 0\n" +
+				"    do:\n" +
+				"        i = i + 1\n" +
+				"    while g(k) && i < |xs|\n" +
+				"    return i\n")));
+	}
+
+	@Test
+	public void testDoWhileConditionAfterBreak() throws Exception {
+		// The condition is not evaluated when the body leaves the loop
+		List<Location<?>> hoisted = hoist(G +
+				"function f(int[] xs, int k) -> int:\n" +
+				"    int i = 0\n" +
+				"    do:\n" +
+				"        if xs[i] < 0:\n" +
+				"            break\n" +
+				"        i = i + 1\n" +
+				"    while g(|xs| + k) && i < |xs|\n" +
+				"    return i\n");
+		assertEquals(Collections.emptyList(), getInvocations(hoisted));
+		// Array lengths are still hoisted, since they cannot fail
+		assertFalse(hoisted.isEmpty());
+	}
+
+	@Test
+	public void testDoWhileConditionAfterAssert() throws Exception {
+		assertEquals(Collections.emptyList(), getInvocations(hoist(G +
+				"function f(int[] xs, int k) -> int:\n" +
+				"    int i = 0\n" +
+				"    do:\n" +
+				"        assert i < |xs|\n" +
+				"        i = i + 1\n" +
+				"    while g(k) && i < |xs|\n" +
+				"    return i\n")));
+	}
+
+	/**
+	 * Apply loop invariant analysis to the first loop in the body of the
+	 * function <code>f</code> in a given module.
+	 *
+	 * @param source
+	 * @return
+	 * @throws Exception
+	 */
+	private static List<Location<?>> hoist(String source) throws Exception {
+		WyilFile module = WyilFixtures.compile("licm", source);
+		for (Location<?> stmt : WyilFixtures.get(module, "f").getBody().getOperands()) {
+			if (stmt.getOpcode() == Bytecode.OPCODE_while || stmt.getOpcode() == Bytecode.OPCODE_dowhile) {
+				return new LoopInvariantAnalysis().apply(stmt);
+			}
+		}
+		throw new IllegalArgumentException("no loop found");
+	}
+
+	private static List<String> getInvocations(List<Location<?>> hoisted) {
+		List<String> names = new ArrayList<String>();
+		for (Location<?> expr : hoisted) {
+			if (expr.getOpcode() == Bytecode.OPCODE_invoke) {
+				names.add(((Bytecode.Invoke) expr.getBytecode()).name().name());
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,169 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import wyec.lang.IntegerRange;
+
+/**
+ * Tests for the constants generated by {@link StrengthReduction}. The
+ * multiply-high sequences for division are checked against <code>/</code>
+ * and <code>%</code>, exhaustively for small dividends and at the boundaries
+ * for large ones.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StrengthReductionTest {
+	private static final BigInteger U16 = BigInteger.valueOf(0xFFFF);
+	private static final BigInteger U32 = BigInteger.ONE.shiftLeft(32).subtract(BigInteger.ONE);
+	private static final BigInteger U64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+	@Test
+	public void testMagicExhaustive16() {
+		// NOTE: the product is less than 2^64 and, hence, the unsigned shift
+		// of a long is exact.
+		for (long d = 1; d <= 1024; ++d) {
+			BigInteger[] magic = StrengthReduction.magic(BigInteger.valueOf(d), U16);
+			assertNotNull("d = " + d, magic);
+			long m = magic[0].longValue();
+			int s = magic[1].intValue();
+			for (long x = 0; x <= 0xFFFF; ++x) {
+				long q = (x * m) >>> s;
+				if (q != x / d || x - (q * d) != x % d) {
+					fail("x = " + x + ", d = " + d + ": " + q);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMagicBoundary31() {
+		// Every divisor has a sequence for non-negative i32 dividends
+		BigInteger upperBound = BigInteger.valueOf(Integer.MAX_VALUE);
+		for (long d = 1; d <= 2000; ++d) {
+			checkBoundaries(BigInteger.valueOf(d), upperBound);
+		}
+		long[] divisors = { 46341, 65537, 1000000007L, 0x7FFFFFFEL, 0x7FFFFFFFL };
+		for (long d : divisors) {
+			checkBoundaries(BigInteger.valueOf(d), upperBound);
+		}
+	}
+
+	@Test
+	public void testMagicBoundary32() {
+		long[] divisors = { 1, 2, 3, 5, 10, 12, 60, 100, 641, 1000, 1 << 20, 6700417, 0x80000000L, 0xFFFFFFFFL };
+		for (long d : divisors) {
+			checkBoundaries(BigInteger.valueOf(d), U32);
+		}
+	}
+
+	@Test
+	public void testMagicUnavailable() {
+		// Division by 7 of a u32 needs a 33-bit multiplier, whose product
+		// with the dividend does not fit in 64 bits
+		assertNull(StrengthReduction.magic(BigInteger.valueOf(7), U32));
+		assertNull(StrengthReduction.magic(BigInteger.valueOf(0x7FFFFFFFL), U32));
+		assertNull(StrengthReduction.magic(BigInteger.valueOf(3), BigInteger.ONE.shiftLeft(40)));
+		assertNull(StrengthReduction.magic(BigInteger.valueOf(3), U64));
+		// Except for powers of two
+		assertNotNull(StrengthReduction.magic(BigInteger.ONE, U64));
+		assertNotNull(StrengthReduction.magic(BigInteger.ONE.shiftLeft(39), BigInteger.ONE.shiftLeft(40)));
+	}
+
+	@Test
+	public void testMagicMinimalShift() {
+		// Powers of two need no rounding error and, hence, an exact shift
+		BigInteger[] magic = StrengthReduction.magic(BigInteger.valueOf(8), U32);
+		assertEquals(BigInteger.ONE, magic[0]);
+		assertEquals(BigInteger.valueOf(3), magic[1]);
+	}
+
+	@Test
+	public void testUnsignedType() {
+		assertEquals("uint32_t", StrengthReduction.unsignedType(range(0, U32)));
+		assertEquals("uint64_t", StrengthReduction.unsignedType(range(0, U32.add(BigInteger.ONE))));
+		assertEquals("uint64_t", StrengthReduction.unsignedType(range(0, U64)));
+		assertNull(StrengthReduction.unsignedType(range(0, U64.add(BigInteger.ONE))));
+		assertNull(StrengthReduction.unsignedType(new IntegerRange(-1, 10)));
+		assertNull(StrengthReduction.unsignedType(new IntegerRange(BigInteger.ZERO, null)));
+		assertNull(StrengthReduction.unsignedType(IntegerRange.TOP));
+	}
+
+	@Test
+	public void testSignedType() {
+		BigInteger max32 = BigInteger.valueOf(Integer.MAX_VALUE);
+		BigInteger max64 = BigInteger.valueOf(Long.MAX_VALUE);
+		assertEquals("int32_t", StrengthReduction.signedType(range(0, max32)));
+		assertEquals("int64_t", StrengthReduction.signedType(range(0, max32.add(BigInteger.ONE))));
+		assertEquals("int64_t", StrengthReduction.signedType(range(0, max64)));
+		assertNull(StrengthReduction.signedType(range(0, max64.add(BigInteger.ONE))));
+		assertNull(StrengthReduction.signedType(new IntegerRange(-1, 10)));
+		assertNull(StrengthReduction.signedType(new IntegerRange(BigInteger.ZERO, null)));
+	}
+
+	@Test
+	public void testLog2() {
+		assertEquals(0, StrengthReduction.log2(new IntegerRange(1, 1)));
+		assertEquals(3, StrengthReduction.log2(new IntegerRange(8, 8)));
+		assertEquals(63, StrengthReduction.log2(range(BigInteger.ONE.shiftLeft(63), BigInteger.ONE.shiftLeft(63))));
+		assertEquals(-1, StrengthReduction.log2(new IntegerRange(0, 0)));
+		assertEquals(-1, StrengthReduction.log2(new IntegerRange(6, 6)));
+		assertEquals(-1, StrengthReduction.log2(new IntegerRange(-8, -8)));
+		assertEquals(-1, StrengthReduction.log2(new IntegerRange(2, 4)));
+	}
+
+	/**
+	 * Check the multiply-high sequence for a given divisor against
+	 * <code>/</code> and <code>%</code>, for dividends near zero, near the
+	 * upper bound and either side of multiples of the divisor.
+	 *
+	 * @param d
+	 * @param upperBound
+	 */
+	private static void checkBoundaries(BigInteger d, BigInteger upperBound) {
+		BigInteger[] magic = StrengthReduction.magic(d, upperBound);
+		assertNotNull("d = " + d, magic);
+		assertTrue(upperBound.multiply(magic[0]).bitLength() <= 64);
+		for (long k = 0; k <= 100; ++k) {
+			checkDivision(BigInteger.valueOf(k), d, magic, upperBound);
+			checkDivision(upperBound.subtract(BigInteger.valueOf(k)), d, magic, upperBound);
+		}
+		BigInteger last = upperBound.divide(d);
+		for (long k = 1; k <= 100; ++k) {
+			for (BigInteger q : new BigInteger[] { BigInteger.valueOf(k), last.subtract(BigInteger.valueOf(k)) }) {
+				BigInteger x = q.multiply(d);
+				checkDivision(x.subtract(BigInteger.ONE), d, magic, upperBound);
+				checkDivision(x, d, magic, upperBound);
+				checkDivision(x.add(BigInteger.ONE), d, magic, upperBound);
+			}
+		}
+	}
+
+	private static void checkDivision(BigInteger x, BigInteger d, BigInteger[] magic, BigInteger upperBound) {
+		if (x.signum() < 0 || x.compareTo(upperBound) > 0) {
+			return;
+		}
+		BigInteger q = x.multiply(magic[0]).shiftRight(magic[1].intValue());
+		BigInteger[] expected = x.divideAndRemainder(d);
+		assertEquals("x = " + x + ", d = " + d, expected[0], q);
+		assertEquals("x = " + x + ", d = " + d, expected[1], x.subtract(q.multiply(d)));
+	}
+
+	private static IntegerRange range(long lowerBound, BigInteger upperBound) {
+		return range(BigInteger.valueOf(lowerBound), upperBound);
+	}
+
+	private static IntegerRange range(BigInteger lowerBound, BigInteger upperBound) {
+		return new IntegerRange(lowerBound, upperBound);
+	}
+}
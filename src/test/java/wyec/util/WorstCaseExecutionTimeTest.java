@@ -0,0 +1,171 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import wyil.lang.Bytecode;
+import wyil.lang.WyilFile;
+
+/**
+ * Tests for the loop bounds determined by {@link WorstCaseExecutionTime}.
+ * Every operation costs nothing except evaluating a loop condition, which
+ * costs one cycle. Hence, the bound for a function containing a single loop
+ * is one more than its trip count. The remaining tests check cost tables and
+ * the arithmetic on bounds directly.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class WorstCaseExecutionTimeTest {
+
+	@Test
+	public void testLessThan() throws Exception {
+		assertEquals(BigInteger.valueOf(10), tripCount("int i = 0", "i < 10", "i = i + 1"));
+	}
+
+	@Test
+	public void testLessThanOrEqual() throws Exception {
+		assertEquals(BigInteger.valueOf(11), tripCount("int i = 0", "i <= 10", "i = i + 1"));
+	}
+
+	@Test
+	public void testLessThanStep() throws Exception {
+		assertEquals(BigInteger.valueOf(4), tripCount("int i = 0", "i < 10", "i = i + 3"));
+	}
+
+	@Test
+	public void testFlipped() throws Exception {
+		assertEquals(BigInteger.valueOf(10), tripCount("int i = 0", "10 > i", "i = i + 1"));
+	}
+
+	@Test
+	public void testGreaterThanDecrement() throws Exception {
+		assertEquals(BigInteger.valueOf(10), tripCount("int i = 10", "i > 0", "i = i - 1"));
+	}
+
+	@Test
+	public void testGreaterThanOrEqualDecrement() throws Exception {
+		assertEquals(BigInteger.valueOf(11), tripCount("int i = 10", "i >= 0", "i = i - 1"));
+	}
+
+	@Test
+	public void testWrongDirection() throws Exception {
+		assertNull(tripCount("int i = 0", "i < 10", "i = i - 1"));
+	}
+
+	@Test
+	public void testContinue() throws Exception {
+		assertNull(tripCount("int i = 0", "i < 10", "if i == 5:\n            continue\n        i = i + 1"));
+	}
+
+	@Test
+	public void testMultipleSteps() throws Exception {
+		assertNull(tripCount("int i = 0", "i < 10", "i = i + 1\n        i = i + 1"));
+	}
+
+	/**
+	 * Determine the trip count of a loop with a given initialisation,
+	 * condition and body, or null if it is unbounded.
+	 *
+	 * @param init
+	 * @param condition
+	 * @param body
+	 * @return
+	 * @throws Exception
+	 */
+	private static BigInteger tripCount(String init, String condition, String body) throws Exception {
+		WyilFile module = WyilFixtures.compile("loop",
+				"function f() -> int:\n" +
+				"    " + init + "\n" +
+				"    while " + condition + ":\n" +
+				"        " + body + "\n" +
+				"    return i\n");
+		CostTable costs = new CostTable("test");
+		costs.set("default", 0);
+		costs.set("while", 1);
+		WorstCaseExecutionTime wcet = new WorstCaseExecutionTime(new CallGraph(module), costs);
+		BigInteger cycles = wcet.apply(WyilFixtures.get(module, "f")).cycles();
+		return cycles == null ? null : cycles.subtract(BigInteger.ONE);
+	}
+
+	@Test
+	public void testCortexM0() {
+		CostTable costs = CostTable.forTarget("cortex-m0");
+		assertEquals(32, costs.get(Bytecode.OPCODE_mul));
+		assertEquals(32, costs.get(Bytecode.OPCODE_mul, false));
+		assertTrue(costs.get(Bytecode.OPCODE_mul, true) > costs.get(Bytecode.OPCODE_mul));
+		assertTrue(costs.get(Bytecode.OPCODE_div, true) > costs.get(Bytecode.OPCODE_div));
+	}
+
+	@Test
+	public void testWideDefault() {
+		// Without a separate cost, 64-bit operations cost the same
+		CostTable costs = CostTable.forTarget("generic");
+		assertEquals(costs.get(Bytecode.OPCODE_mul), costs.get(Bytecode.OPCODE_mul, true));
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		CostTable costs = CostTable.forTarget("cortex-m4");
+		costs.load(new ByteArrayInputStream("default = 7\nmul = 5\ndiv64 = 300\n".getBytes("UTF-8")));
+		assertEquals(5, costs.get(Bytecode.OPCODE_mul));
+		assertEquals(300, costs.get(Bytecode.OPCODE_div, true));
+		// Costs not in the file are unchanged, except for the default
+		assertEquals(12, costs.get(Bytecode.OPCODE_div));
+		assertEquals(7, costs.get(Bytecode.OPCODE_add));
+	}
+
+	@Test(expected = IOException.class)
+	public void testLoadInvalidCost() throws Exception {
+		new CostTable("test").load(new ByteArrayInputStream("div = slow\n".getBytes("UTF-8")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownOperation() {
+		// Only arithmetic has a separate cost for 64-bit integers
+		new CostTable("test").set("invoke64", 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownTarget() {
+		CostTable.forTarget("cortex-m7");
+	}
+
+	@Test
+	public void testBoundArithmetic() {
+		WorstCaseExecutionTime.Bound b = WorstCaseExecutionTime.Bound.of(3);
+		assertEquals(BigInteger.valueOf(7), b.add(WorstCaseExecutionTime.Bound.of(4)).cycles());
+		assertEquals(BigInteger.valueOf(30), b.multiply(BigInteger.TEN).cycles());
+		assertEquals(BigInteger.valueOf(4), b.max(WorstCaseExecutionTime.Bound.of(4)).cycles());
+		assertEquals(BigInteger.valueOf(3), b.max(WorstCaseExecutionTime.Bound.ZERO).cycles());
+		// Bounds may exceed the range of a long
+		BigInteger big = BigInteger.valueOf(Long.MAX_VALUE);
+		assertEquals(big.multiply(big), WorstCaseExecutionTime.Bound.of(Long.MAX_VALUE).multiply(big).cycles());
+	}
+
+	@Test
+	public void testBoundUnbounded() {
+		WorstCaseExecutionTime.Bound b = WorstCaseExecutionTime.Bound.of(3);
+		WorstCaseExecutionTime.Bound u = WorstCaseExecutionTime.Bound.unbounded("recursion");
+		assertFalse(u.isBounded());
+		assertNull(u.cycles());
+		assertNull(b.reason());
+		// Unbounded values are absorbing and keep their reason
+		assertEquals("recursion", b.add(u).reason());
+		assertEquals("recursion", u.add(b).reason());
+		assertEquals("recursion", b.max(u).reason());
+		assertEquals("recursion", u.multiply(BigInteger.ZERO).reason());
+		assertEquals("unbounded: recursion", u.toString());
+	}
+}
@@ -0,0 +1,87 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// This software may be modified and distributed under the terms
+// of the BSD license.  See the LICENSE file for details.
+
+package wyec.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assume;
+
+import wyec.WyEC;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.FunctionOrMethod;
+
+/**
+ * Compiles small Whiley programs into WyIL for use in tests. This uses the
+ * command given by the <code>WYC</code> environment variable (as for the
+ * benchmarks), or <code>wyc</code> otherwise. Tests are skipped when this is
+ * not available, except in continuous integration (i.e. when the
+ * <code>CI</code> environment variable is set) where they fail instead.
+ *
+ * @author David J. Pearce
+ *
+ */
+class WyilFixtures {
+
+	/**
+	 * Compile a given Whiley module and decode the resulting WyIL file.
+	 *
+	 * @param name
+	 *            Name of the module.
+	 * @param source
+	 *            Whiley source of the module.
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static WyilFile compile(String name, String source) throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("wyec").toFile();
+		Files.write(new File(dir, name + ".whiley").toPath(), source.getBytes("UTF-8"));
+		String wyc = System.getenv("WYC");
+		String[] command = (wyc != null ? wyc : "wyc").trim().split("\\s+");
+		command = Arrays.copyOf(command, command.length + 1);
+		command[command.length - 1] = name + ".whiley";
+		Process process = null;
+		try {
+			process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+		} catch (IOException e) {
+			if (System.getenv("CI") != null) {
+				fail("wyc is not available: " + e.getMessage());
+			}
+			Assume.assumeNoException("wyc is not available", e);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream input = process.getInputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = input.read(buffer)) != -1) {
+			output.write(buffer, 0, n);
+		}
+		assertEquals(output.toString("UTF-8"), 0, process.waitFor());
+		return WyEC.read(dir, name + ".wyil");
+	}
+
+	/**
+	 * Get the function or method with a given name in a given module.
+	 *
+	 * @param module
+	 * @param name
+	 * @return
+	 */
+	static FunctionOrMethod get(WyilFile module, String name) {
+		for (FunctionOrMethod fm : module.functionOrMethods()) {
+			if (fm.name().equals(name)) {
+				return fm;
+			}
+		}
+		throw new IllegalArgumentException("unknown function or method: " + name);
+	}
+}